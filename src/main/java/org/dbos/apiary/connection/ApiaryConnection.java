@@ -5,8 +5,11 @@ import org.dbos.apiary.function.TransactionContext;
 import org.dbos.apiary.function.WorkerContext;
 
 import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A connection to a primary database.
@@ -56,10 +59,65 @@ public interface ApiaryConnection {
      */
     Map<Integer, String> getPartitionHostMap();
 
+    /**
+     * For internal use only.
+     * @return a counter incremented each time a read-write function commits through this connection, or -1 if not tracked.
+     */
+    default long getCommitEpoch() {
+        return -1;
+    }
+
+    /**
+     * For internal use only. Must be called by the thread that called callFunction, right after it returns.
+     * @return a future that completes once the commit of that function is durable.
+     */
+    default CompletableFuture<Void> whenDurable() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * For internal use only. Prepare for serving, e.g., open connections and prepare statements, before the worker accepts requests.
+     * @param workerContext the worker context.
+     * @param statements    the statements of the registered functions of this connection's type.
+     */
+    default void warmup(WorkerContext workerContext, Collection<String> statements) {
+    }
+
+    // Flush and stop background tasks when the worker shuts down. They restart on demand if the connection is reused.
+    default void stopBackgroundTasks() {
+    }
+
+    // Stop background tasks and close every pooled connection when the worker shuts down. The connection cannot be reused.
+    default void close() {
+    }
+
     default Connection createNewConnection() {
         return null;
     }
 
+    /**
+     * For internal use only. Get a connection for replay, from a pool if the database supports one.
+     * @return a connection, must be returned with releaseConnection.
+     * @throws SQLException
+     */
+    default Connection acquireConnection() throws SQLException {
+        return createNewConnection();
+    }
+
+    /**
+     * For internal use only.
+     * @param conn a connection from acquireConnection.
+     */
+    default void releaseConnection(Connection conn) {
+        try {
+            if (conn != null) {
+                conn.close();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * for internal use only. Similar to callFunction, but is only used for replay, because the worker can explicitly specify a connection to the database.
      * @param conn
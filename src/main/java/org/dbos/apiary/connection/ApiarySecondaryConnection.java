@@ -23,4 +23,8 @@ public interface ApiarySecondaryConnection {
     void commit(Map<String, List<String>> writtenKeys, TransactionContext txc);
 
     void garbageCollect(Set<TransactionContext> activeTransactions);
+
+    // Close every pooled connection when the worker shuts down. The connection cannot be reused.
+    default void close() {
+    }
 }
@@ -142,7 +142,6 @@ public class ElasticsearchConnection implements ApiarySecondaryConnection {
         if (!ApiaryConfig.XDBTransactions) {
             return true;
         }
-        Set<Long> activeTransactions = new HashSet<>(txc.activeTransactions);
         validationLock.lock();
         boolean valid = true;
         for (String index: writtenKeys.keySet()) {
@@ -150,7 +149,7 @@ public class ElasticsearchConnection implements ApiarySecondaryConnection {
                 // Has the key been modified by a transaction not in the snapshot?
                 Set<Long> writes = committedWrites.getOrDefault(index, Collections.emptyMap()).getOrDefault(key, Collections.emptySet());
                 for (Long write : writes) {
-                    if (write >= txc.xmax || activeTransactions.contains(write)) {
+                    if (!txc.snapshot.isVisible(write)) {
                         valid = false;
                         break;
                     }
@@ -64,6 +64,23 @@ public abstract class ApiaryContext {
      */
     public abstract FunctionOutput apiaryCallFunction(String name, Object... inputs) throws Exception;
 
+    /**
+     * Synchronously invoke a function once per argument tuple.
+     * Contexts that run the function locally use its vectorized <code>runBatchFunction</code> if it has one,
+     * otherwise the function is called once per tuple.
+     *
+     * @param name      the fully-qualified name of the invoked function.
+     * @param inputs    one list of arguments per invocation.
+     * @return          the outputs of the invocations, in the order of their arguments.
+     */
+    public List<FunctionOutput> apiaryCallFunctionBatch(String name, List<Object[]> inputs) throws Exception {
+        List<FunctionOutput> outputs = new ArrayList<>(inputs.size());
+        for (Object[] input : inputs) {
+            outputs.add(apiaryCallFunction(name, input));
+        }
+        return outputs;
+    }
+
     /** Apiary-private **/
 
     /**
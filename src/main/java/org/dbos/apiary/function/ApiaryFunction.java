@@ -3,6 +3,8 @@ package org.dbos.apiary.function;
 import org.dbos.apiary.utilities.Utilities;
 
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * The base class for Apiary functions.
@@ -27,4 +29,30 @@ public interface ApiaryFunction {
         output = functionMethod.invoke(this, contextInput);
         return ctxt.getFunctionOutput(output);
     }
+
+    /**
+     * Run the function once for each argument tuple with its vectorized form, a public <code>runBatchFunction</code>
+     * taking the context and a <code>List&lt;Object[]&gt;</code>, and returning an array with one output per tuple.
+     * @return the outputs in the order of the inputs, or null if the function has no vectorized form.
+     */
+    default List<FunctionOutput> apiaryRunBatchFunction(ApiaryContext ctxt, List<Object[]> inputs) throws Exception {
+        Method batchMethod = Utilities.getFunctionMethod(this, "runBatchFunction");
+        if (batchMethod == null) {
+            return null;
+        }
+        // Each tuple is still one logical invocation.
+        if (ctxt.execID != 0) {
+            for (int i = 0; i < inputs.size(); i++) {
+                recordInvocation(ctxt, this.getClass().getName());
+            }
+        }
+
+        Object[] output = (Object[]) batchMethod.invoke(this, ctxt, inputs);
+        assert (output.length == inputs.size());
+        List<FunctionOutput> outputs = new ArrayList<>(output.length);
+        for (Object o : output) {
+            outputs.add(ctxt.getFunctionOutput(o));
+        }
+        return outputs;
+    }
 }
@@ -1,5 +1,6 @@
 package org.dbos.apiary.function;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -11,12 +12,54 @@ public class FunctionOutput {
     public final List<Task> queuedTasks;
     private Map<String, List<String>> writtenKeys;
 
+    /**
+     * The output of a function that did not complete, for example because it gave up retrying.
+     * It is sent back to the caller as an error reply.
+     */
+    public static final class Failure {
+        public final String message;
+
+        public Failure(String message) {
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return message;
+        }
+    }
+
     public FunctionOutput(Object output, List<Task> queuedTasks) {
         assert(output != null);
         this.output = output;
         this.queuedTasks = queuedTasks;
     }
 
+    /**
+     * Return the output of a failed function.
+     * @param message   the error message returned to the caller.
+     * @return a <code>FunctionOutput</code> holding a {@link Failure}.
+     */
+    public static FunctionOutput failed(String message) {
+        return new FunctionOutput(new Failure(String.valueOf(message)), new ArrayList<>());
+    }
+
+    /**
+     * Return whether the function failed. The output is then a {@link Failure}.
+     * @return <code>true</code> if the function failed.
+     */
+    public boolean isFailed() {
+        return output instanceof Failure;
+    }
+
+    /**
+     * Return the error message of a failed function. If the function did not fail, return <code>null</code>.
+     * @return the error message.
+     */
+    public String getErrorMessage() {
+        return output instanceof Failure ? ((Failure) output).message : null;
+    }
+
     /**
      * Return a <code>String</code> output. If the output is not <code>String</code>, return <code>null</code>.
      * @return the <code>String</code> output.
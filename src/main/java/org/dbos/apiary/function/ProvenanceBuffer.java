@@ -3,6 +3,7 @@ package org.dbos.apiary.function;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.GeneratedMessage;
 import org.dbos.apiary.utilities.ApiaryConfig;
+import org.dbos.apiary.utilities.PooledThreadLocal;
 import org.postgresql.ds.PGSimpleDataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -73,24 +74,29 @@ public class ProvenanceBuffer {
     }
 
     // TODO: need a better way to auto-reconnect to the remote provenance DB, during transient failures.
-    public final ThreadLocal<Connection> conn;
+    public final PooledThreadLocal<Connection> conn;
     private final String databaseType;
 
     public final Boolean hasConnection;
 
     private Thread exportThread;
 
+    // Worker IDs, unique among the workers exporting to the same provenance database.
+    private static final String workerIDSequence = "ApiaryWorkerIDs";
+    private final ReadOnlyTxIDGenerator readOnlyTxIDs;
+
     public ProvenanceBuffer(String databaseType, String databaseAddress) throws ClassNotFoundException {
         this.databaseType = databaseType;
         if (databaseType == null) {
             logger.info("No provenance buffer!");
             this.conn = null;
             this.hasConnection = false;
+            this.readOnlyTxIDs = new ReadOnlyTxIDGenerator(0);
             return;
         }
         if (databaseType.equals(ApiaryConfig.vertica)) {
             Class.forName("com.vertica.jdbc.Driver");
-            this.conn = ThreadLocal.withInitial(() -> {
+            this.conn = PooledThreadLocal.ofConnections(() -> {
                 // Connect to Vertica.
                 Properties verticaProp = new Properties();
                 verticaProp.put("user", "dbadmin");
@@ -108,10 +114,10 @@ public class ProvenanceBuffer {
 
                 }
                 return null;
-            });
+            }, ApiaryConfig.threadLocalMaxIdle);
         } else {
             assert(databaseType.equals(ApiaryConfig.postgres));
-            this.conn = ThreadLocal.withInitial(() -> {
+            this.conn = PooledThreadLocal.ofConnections(() -> {
                 // Connect to Postgres.
                 PGSimpleDataSource ds = new PGSimpleDataSource();
                 ds.setServerNames(new String[] {databaseAddress});
@@ -128,14 +134,17 @@ public class ProvenanceBuffer {
                     e.printStackTrace();
                     return null;
                 }
-            });
+            }, ApiaryConfig.threadLocalMaxIdle);
         }
 
         if (conn.get() == null) {
             logger.info("No DB instance for provenance!");
             this.hasConnection = false;
+            this.readOnlyTxIDs = new ReadOnlyTxIDGenerator(0);
             return;
         }
+        this.readOnlyTxIDs = new ReadOnlyTxIDGenerator(assignWorkerID(conn.get()));
+        conn.release();
 
 
         Runnable r = () -> {
@@ -153,6 +162,31 @@ public class ProvenanceBuffer {
         this.hasConnection = true;
     }
 
+    // Take the next ID from a sequence in the provenance database, so no two workers share one.
+    private static long assignWorkerID(Connection c) {
+        try {
+            Statement s = c.createStatement();
+            s.execute(String.format("CREATE SEQUENCE IF NOT EXISTS %s;", workerIDSequence));
+            ResultSet rs = s.executeQuery(String.format("SELECT NEXTVAL('%s');", workerIDSequence));
+            rs.next();
+            long workerID = rs.getLong(1);
+            rs.close();
+            s.close();
+            logger.info("Provenance worker ID: {}", workerID);
+            return workerID;
+        } catch (SQLException e) {
+            logger.error("Failed to assign a worker ID: {}", e.getMessage());
+            throw new RuntimeException("Failed to assign a worker ID.");
+        }
+    }
+
+    /**
+     * @return a new synthetic ID for a read-only transaction, unique among the workers sharing the provenance database.
+     */
+    public long nextReadOnlyTxID() {
+        return readOnlyTxIDs.next();
+    }
+
     public void close() {
         // Close the buffer.
         if (exportThread == null) {
@@ -164,23 +198,48 @@ public class ProvenanceBuffer {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        conn.close();
     }
 
-    private static class TableBuffer {
-        public final String preparedQuery;
-        public final Map<Integer, Integer> colTypeMap; // In JDBC, first column starts from 1, not 0.
-        public final Queue<Object[]> bufferEntryQueue = new ConcurrentLinkedQueue<>();
+    /**
+     * The pending entries of one provenance table. Frequent writers can hold on to it to skip the table lookup.
+     */
+    public static class TableBuffer {
+        private final String preparedQuery;
+        private final Map<Integer, Integer> colTypeMap; // In JDBC, first column starts from 1, not 0.
+        private final Queue<Object[]> bufferEntryQueue = new ConcurrentLinkedQueue<>();
 
-        public TableBuffer (String preparedQuery, Map<Integer, Integer> colTypeMap) {
+        private TableBuffer (String preparedQuery, Map<Integer, Integer> colTypeMap) {
             this.preparedQuery = preparedQuery;
             this.colTypeMap = colTypeMap;
         }
+
+        public void add(Object... objects) {
+            if (preparedQuery != null) {
+                bufferEntryQueue.add(objects);
+            }
+        }
     }
 
     private final Map<String, TableBuffer> tableBufferMap = new ConcurrentHashMap<>();
 
     public void addEntry(String table, Object... objects) {
-        if (!tableBufferMap.containsKey(table)) {
+        getTableBuffer(table).add(objects);
+    }
+
+    /**
+     * Look up the column types of a provenance table before its first entry, off the critical path.
+     */
+    public void warmup(String table) {
+        getTableBuffer(table);
+    }
+
+    /**
+     * @return the buffer of a provenance table. Entries added to a table without provenance columns are dropped.
+     */
+    public TableBuffer getTableBuffer(String table) {
+        TableBuffer buffer = tableBufferMap.get(table);
+        if (buffer == null) {
             Map<Integer, Integer> colTypeMap = getColTypeMap(table);
             if ((colTypeMap == null) || colTypeMap.isEmpty()) {
                 // Do not capture provenance.
@@ -189,10 +248,9 @@ public class ProvenanceBuffer {
                 String preparedQuery = getPreparedQuery(table, colTypeMap.size());
                 tableBufferMap.putIfAbsent(table, new TableBuffer(preparedQuery, colTypeMap));
             }
+            buffer = tableBufferMap.get(table);
         }
-        if (tableBufferMap.get(table).preparedQuery != null) {
-            tableBufferMap.get(table).bufferEntryQueue.add(objects);
-        }
+        return buffer;
     }
 
     private void exportBuffer() {
@@ -298,8 +356,8 @@ public class ProvenanceBuffer {
             pstmt.setLong(colIndex, smallVal);
         } else if (colType == Types.VARCHAR) {
             pstmt.setString(colIndex, val.toString());
-        } else if (colType == Types.BINARY) {
-            // The bytea type.
+        } else if (colType == Types.BINARY || colType == Types.VARBINARY || colType == Types.LONGVARBINARY) {
+            // The bytea type, or varbinary in other databases.
             pstmt.setBytes(colIndex, (byte[]) val);
         } else {
             // Everything else will be passed directly as string.
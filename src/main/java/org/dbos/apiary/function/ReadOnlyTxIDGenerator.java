@@ -0,0 +1,33 @@
+package org.dbos.apiary.function;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Synthetic IDs of read-only transactions, which Postgres does not assign a transaction ID.
+ * The IDs are negative, so they never collide with database transaction IDs, and are used as provenance keys.
+ * The magnitude holds a worker ID in the high bits and a per-worker counter in the low bits, so workers with
+ * different IDs never generate the same ID.
+ */
+public class ReadOnlyTxIDGenerator {
+    public static final int workerIDBits = 20;
+    public static final int counterBits = 63 - workerIDBits;
+
+    private final long workerID;
+    private final AtomicLong counter = new AtomicLong(0);
+
+    /**
+     * @param workerID  an ID unique among the workers sharing a provenance database, reduced modulo 2^workerIDBits.
+     */
+    public ReadOnlyTxIDGenerator(long workerID) {
+        this.workerID = Math.floorMod(workerID, 1L << workerIDBits);
+    }
+
+    /**
+     * @return a new negative read-only transaction ID.
+     */
+    public long next() {
+        long count = counter.incrementAndGet();
+        assert (count < (1L << counterBits));
+        return -((workerID << counterBits) | count);
+    }
+}
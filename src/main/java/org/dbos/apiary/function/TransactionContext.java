@@ -1,6 +1,5 @@
 package org.dbos.apiary.function;
 
-import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class TransactionContext {
@@ -8,14 +7,20 @@ public class TransactionContext {
     public final long txID;
     public final long xmin;
     public final long xmax;
-    public final List<Long> activeTransactions;
+    public final TransactionSnapshot snapshot;
+    public final long[] activeTransactions;  // Sorted, must not be modified.
     public final AtomicInteger querySeqNum;  // Query sequence number within a transaction, starting from 0.
 
-    public TransactionContext(long txID, long xmin, long xmax, List<Long> activeTransactions) {
+    public TransactionContext(long txID, TransactionSnapshot snapshot) {
         this.txID = txID;
-        this.xmin = xmin;
-        this.xmax = xmax;
-        this.activeTransactions = activeTransactions;
+        this.xmin = snapshot.xmin;
+        this.xmax = snapshot.xmax;
+        this.snapshot = snapshot;
+        this.activeTransactions = snapshot.getActiveTransactions();
         this.querySeqNum = new AtomicInteger(0);
     }
+
+    public TransactionContext(long txID, long xmin, long xmax, long... activeTransactions) {
+        this(txID, TransactionSnapshot.of(xmin, xmax, activeTransactions));
+    }
 }
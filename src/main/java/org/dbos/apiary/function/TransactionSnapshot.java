@@ -0,0 +1,229 @@
+package org.dbos.apiary.function;
+
+import java.util.Arrays;
+
+/**
+ * An immutable MVCC snapshot: transactions below xmin are visible, transactions at or above xmax are not,
+ * and the sorted active transactions in between are not visible either.
+ * Shared by the primary database and all secondary stores to check visibility with a binary search.
+ */
+public final class TransactionSnapshot {
+    private static final long[] noActiveTransactions = new long[0];
+
+    public final long xmin;
+    public final long xmax;
+    private final long[] activeTransactions;  // Sorted, no duplicates.
+
+    private TransactionSnapshot(long xmin, long xmax, long[] activeTransactions) {
+        this.xmin = xmin;
+        this.xmax = xmax;
+        this.activeTransactions = activeTransactions;
+    }
+
+    /**
+     * @return a snapshot with the given active transactions, in any order.
+     */
+    public static TransactionSnapshot of(long xmin, long xmax, long... activeTransactions) {
+        return new TransactionSnapshot(xmin, xmax, sortedUnique(activeTransactions.clone(), activeTransactions.length));
+    }
+
+    /**
+     * @return a snapshot in which every transaction before xmin is visible.
+     */
+    public static TransactionSnapshot of(long xmin) {
+        return new TransactionSnapshot(xmin, xmin, noActiveTransactions);
+    }
+
+    /**
+     * @return true if the transaction was still active when the snapshot was taken.
+     */
+    public boolean isActive(long txID) {
+        return (txID >= xmin) && (txID < xmax) && (Arrays.binarySearch(activeTransactions, txID) >= 0);
+    }
+
+    /**
+     * @return true if the effects of the transaction are visible in the snapshot.
+     */
+    public boolean isVisible(long txID) {
+        return (txID < xmin) || ((txID < xmax) && (Arrays.binarySearch(activeTransactions, txID) < 0));
+    }
+
+    public int numActiveTransactions() {
+        return activeTransactions.length;
+    }
+
+    /**
+     * @return the sorted active transactions. The array must not be modified.
+     */
+    public long[] getActiveTransactions() {
+        return activeTransactions;
+    }
+
+    /**
+     * @return a snapshot that also treats the given transactions below xmax as active.
+     */
+    public TransactionSnapshot withActiveTransactions(long[] txIDs, int length) {
+        long[] merged = Arrays.copyOf(activeTransactions, activeTransactions.length + length);
+        int n = activeTransactions.length;
+        for (int i = 0; i < length; i++) {
+            if (txIDs[i] < xmax) {
+                merged[n++] = txIDs[i];
+            }
+        }
+        if (n == activeTransactions.length) {
+            return this;
+        }
+        return new TransactionSnapshot(Math.min(xmin, minOf(merged, n)), xmax, sortedUnique(merged, n));
+    }
+
+    private static long minOf(long[] values, int length) {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < length; i++) {
+            min = Math.min(min, values[i]);
+        }
+        return min;
+    }
+
+    private static long[] sortedUnique(long[] values, int length) {
+        if (length == 0) {
+            return noActiveTransactions;
+        }
+        Arrays.sort(values, 0, length);
+        int n = 1;
+        for (int i = 1; i < length; i++) {
+            if (values[i] != values[n - 1]) {
+                values[n++] = values[i];
+            }
+        }
+        return (n == values.length) ? values : Arrays.copyOf(values, n);
+    }
+
+    /* Text format of pg_current_snapshot(): xmin:xmax:xip1,xip2,... */
+
+    /**
+     * Parse a Postgres snapshot without intermediate strings.
+     */
+    public static TransactionSnapshot parse(CharSequence s) {
+        int len = s.length();
+        int pos = 0;
+        long xmin = 0;
+        while (pos < len && s.charAt(pos) != ':') {
+            xmin = xmin * 10 + digit(s, pos++);
+        }
+        pos++;
+        long xmax = 0;
+        while (pos < len && s.charAt(pos) != ':') {
+            xmax = xmax * 10 + digit(s, pos++);
+        }
+        pos++;
+        if (pos >= len) {
+            return new TransactionSnapshot(xmin, xmax, noActiveTransactions);
+        }
+        int count = 1;
+        for (int i = pos; i < len; i++) {
+            if (s.charAt(i) == ',') {
+                count++;
+            }
+        }
+        long[] active = new long[count];
+        int n = 0;
+        long value = 0;
+        boolean sorted = true;
+        for (; pos <= len; pos++) {
+            if (pos == len || s.charAt(pos) == ',') {
+                sorted &= (n == 0) || (value > active[n - 1]);
+                active[n++] = value;
+                value = 0;
+            } else {
+                value = value * 10 + digit(s, pos);
+            }
+        }
+        // Postgres lists active transactions in order, sort only if it did not.
+        return new TransactionSnapshot(xmin, xmax, sorted ? active : sortedUnique(active, n));
+    }
+
+    private static int digit(CharSequence s, int pos) {
+        char c = s.charAt(pos);
+        if (c < '0' || c > '9') {
+            throw new IllegalArgumentException("Invalid snapshot: " + s);
+        }
+        return c - '0';
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(24 + 12 * activeTransactions.length);
+        sb.append(xmin).append(':').append(xmax).append(':');
+        for (int i = 0; i < activeTransactions.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(activeTransactions[i]);
+        }
+        return sb.toString();
+    }
+
+    /* Compact binary format: varint(zigzag(xmin)), varint(xmax - xmin), varint(count), then varint deltas. */
+
+    public byte[] encode() {
+        byte[] buf = new byte[10 * (3 + activeTransactions.length)];
+        int pos = putVarint(buf, 0, (xmin << 1) ^ (xmin >> 63));
+        pos = putVarint(buf, pos, xmax - xmin);
+        pos = putVarint(buf, pos, activeTransactions.length);
+        long prev = xmin;
+        for (long txID : activeTransactions) {
+            pos = putVarint(buf, pos, txID - prev);
+            prev = txID;
+        }
+        return Arrays.copyOf(buf, pos);
+    }
+
+    public static TransactionSnapshot decode(byte[] buf) {
+        int[] pos = new int[1];
+        long zigzag = getVarint(buf, pos);
+        long xmin = (zigzag >>> 1) ^ -(zigzag & 1);
+        long xmax = xmin + getVarint(buf, pos);
+        int count = (int) getVarint(buf, pos);
+        long[] active = (count == 0) ? noActiveTransactions : new long[count];
+        long prev = xmin;
+        for (int i = 0; i < count; i++) {
+            prev += getVarint(buf, pos);
+            active[i] = prev;
+        }
+        return new TransactionSnapshot(xmin, xmax, active);
+    }
+
+    private static int putVarint(byte[] buf, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static long getVarint(byte[] buf, int[] pos) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf[pos[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof TransactionSnapshot)) {
+            return false;
+        }
+        TransactionSnapshot other = (TransactionSnapshot) o;
+        return (xmin == other.xmin) && (xmax == other.xmax) && Arrays.equals(activeTransactions, other.activeTransactions);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * Long.hashCode(xmin) + Long.hashCode(xmax)) + Arrays.hashCode(activeTransactions);
+    }
+}
@@ -5,14 +5,19 @@ import org.dbos.apiary.connection.ApiarySecondaryConnection;
 import org.dbos.apiary.procedures.postgres.GetApiaryClientID;
 import org.dbos.apiary.utilities.ApiaryConfig;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
 
 public class WorkerContext {
     public final Map<String, ApiarySecondaryConnection> secondaryConnections = new HashMap<>();
     private final Map<String, Callable<ApiaryFunction>> functions = new HashMap<>();
     private final Map<String, String> functionTypes = new HashMap<>();
+    private final Set<String> readOnlyFunctions = new HashSet<>();
+    private final Map<String, ApiaryConfig.CommitMode> commitModes = new HashMap<>();
+    private final Map<String, Set<String>> functionStatements = new HashMap<>();
     private ApiaryConnection primaryConnection = null;
     private String primaryConnectionType;
 
@@ -42,6 +47,71 @@ public class WorkerContext {
         functionTypes.put(name, type);
     }
 
+    public void registerFunction(String name, String type, Callable<ApiaryFunction> function, boolean isReadOnly) {
+        registerFunction(name, type, function);
+        if (isReadOnly) {
+            readOnlyFunctions.add(name);
+        } else {
+            readOnlyFunctions.remove(name);
+        }
+    }
+
+    public void registerFunction(String name, String type, Callable<ApiaryFunction> function, ApiaryConfig.CommitMode commitMode) {
+        registerFunction(name, type, function);
+        commitModes.put(name, commitMode);
+    }
+
+    /**
+     * Declare the SQL statements a function runs, so they can be prepared before serving.
+     * Statements held in <code>static final String</code> fields of the function class are found automatically.
+     */
+    public void registerStatements(String function, String... statements) {
+        functionStatements.computeIfAbsent(function, k -> new LinkedHashSet<>()).addAll(Arrays.asList(statements));
+    }
+
+    private static final Pattern sqlPattern = Pattern.compile("^\\s*(SELECT|INSERT|UPDATE|DELETE|UPSERT|WITH)\\b", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * @param type  the function type, e.g., {@link ApiaryConfig#postgres}.
+     * @return the declared and discovered statements of all functions of a type.
+     */
+    public Set<String> getStatements(String type) {
+        Set<String> statements = new LinkedHashSet<>();
+        for (String name : functions.keySet()) {
+            if (!type.equals(functionTypes.get(name))) {
+                continue;
+            }
+            statements.addAll(functionStatements.getOrDefault(name, Collections.emptySet()));
+            ApiaryFunction f = getFunction(name);
+            if (f == null) {
+                continue;
+            }
+            for (Field field : f.getClass().getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) && Modifier.isFinal(modifiers) && (field.getType() == String.class)) {
+                    try {
+                        field.setAccessible(true);
+                        String value = (String) field.get(null);
+                        if ((value != null) && sqlPattern.matcher(value).find()) {
+                            statements.add(value);
+                        }
+                    } catch (ReflectiveOperationException | RuntimeException e) {
+                        // Not accessible, the statement is prepared on first use instead.
+                    }
+                }
+            }
+        }
+        return statements;
+    }
+
+    public boolean isReadOnly(String function) {
+        return readOnlyFunctions.contains(function);
+    }
+
+    public ApiaryConfig.CommitMode getCommitMode(String function) {
+        return commitModes.getOrDefault(function, ApiaryConfig.CommitMode.SYNCHRONOUS);
+    }
+
     public String getFunctionType(String function) {
         return functionTypes.get(function);
     }
@@ -6,6 +6,7 @@ import org.dbos.apiary.function.FunctionOutput;
 import org.dbos.apiary.function.TransactionContext;
 import org.dbos.apiary.function.WorkerContext;
 import org.dbos.apiary.postgres.PostgresConnection;
+import org.dbos.apiary.postgres.PreparedStatementCache;
 import org.dbos.apiary.utilities.ApiaryConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,9 +47,23 @@ public class GCSConnection implements ApiarySecondaryConnection {
                                        TransactionContext txc, String service,
                                        long execID, long functionID,
                                        Object... inputs) throws Exception {
-        GCSContext ctxt = new GCSContext(storage, writtenKeys, lockManager, workerContext, txc, service, execID, functionID, primary.connection.get());
-        return workerContext.getFunction(functionName).apiaryRunFunction(ctxt, inputs);
-}
+        // Use the primary transaction's connection if this call is part of it.
+        // Read-only secondary calls run without a primary transaction, so borrow a pooled connection.
+        Connection c = primary.connection.get();
+        boolean borrowed = (c == null);
+        if (borrowed) {
+            c = primary.acquireConnection();
+        }
+        try {
+            GCSContext ctxt = new GCSContext(storage, writtenKeys, lockManager, workerContext, txc, service, execID, functionID, c);
+            return workerContext.getFunction(functionName).apiaryRunFunction(ctxt, inputs);
+        } finally {
+            if (borrowed) {
+                PreparedStatementCache.get(c).releaseAll();
+                primary.releaseConnection(c);
+            }
+        }
+    }
 
     @Override
     public void rollback(Map<String, List<String>> writtenKeys, TransactionContext txc) {
@@ -64,7 +79,6 @@ public class GCSConnection implements ApiarySecondaryConnection {
 
     @Override
     public boolean validate(Map<String, List<String>> writtenKeys, TransactionContext txc) {
-        Set<Long> activeTransactions = new HashSet<>(txc.activeTransactions);
         validationLock.lock();
         boolean valid = true;
         for (String bucket: writtenKeys.keySet()) {
@@ -72,7 +86,7 @@ public class GCSConnection implements ApiarySecondaryConnection {
                 // Has the key been modified by a transaction not in the snapshot?
                 Set<Long> writes = committedWrites.getOrDefault(bucket, Collections.emptyMap()).getOrDefault(key, Collections.emptySet());
                 for (Long write : writes) {
-                    if (write >= txc.xmax || activeTransactions.contains(write)) {
+                    if (!txc.snapshot.isVisible(write)) {
                         valid = false;
                         break;
                     }
@@ -108,8 +122,9 @@ public class GCSConnection implements ApiarySecondaryConnection {
         // No need to keep track of writes that are visible to all active or future transactions.
         committedWrites.values().forEach(i -> i.values().forEach(w -> w.removeIf(txID -> txID < globalxmin)));
         // Delete old versions that are no longer visible to any active or future transaction.
+        Connection c = null;
         try {
-            Connection c = primary.connection.get();
+            c = primary.acquireConnection();
             PreparedStatement psFind = c.prepareStatement(findDeletable);
             PreparedStatement psDelete = c.prepareStatement(delete);
             List<String> deleteNames = new ArrayList<>();
@@ -127,6 +142,8 @@ public class GCSConnection implements ApiarySecondaryConnection {
 
             }
             c.commit();
+            psFind.close();
+            psDelete.close();
             Bucket bucket = storage.get(ApiaryConfig.gcsTestBucket);  // TODO: More buckets.
             for (int i = 0; i < deleteNames.size(); i++) {
                 String name = deleteNames.get(i);
@@ -135,6 +152,8 @@ public class GCSConnection implements ApiarySecondaryConnection {
             }
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            primary.releaseConnection(c);
         }
 
     }
@@ -7,6 +7,7 @@ import org.dbos.apiary.function.ApiaryContext;
 import org.dbos.apiary.function.FunctionOutput;
 import org.dbos.apiary.function.TransactionContext;
 import org.dbos.apiary.function.WorkerContext;
+import org.dbos.apiary.postgres.PreparedStatementCache;
 import org.dbos.apiary.utilities.ApiaryConfig;
 import org.postgresql.util.PSQLException;
 import org.postgresql.util.PSQLState;
@@ -33,6 +34,7 @@ public class GCSContext extends ApiaryContext {
     public final Storage storage;
     public final TransactionContext txc;
     private final Connection primary;
+    private final PreparedStatementCache statementCache;
 
     final Map<String, List<String>> writtenKeys;
     private final Map<String, Map<String, AtomicBoolean>> lockManager;
@@ -43,6 +45,7 @@ public class GCSContext extends ApiaryContext {
         this.storage = storage;
         this.txc = txc;
         this.primary = primary;
+        this.statementCache = PreparedStatementCache.get(primary);
         this.lockManager = lockManager;
         this.writtenKeys = writtenKeys;
     }
@@ -67,22 +70,22 @@ public class GCSContext extends ApiaryContext {
         }
         writtenKeys.putIfAbsent(bucket, new ArrayList<>());
         writtenKeys.get(bucket).add(name);
-        PreparedStatement ps = primary.prepareStatement(insert);
+        PreparedStatement ps = statementCache.acquire(insert);
         ps.setString(1, name);
         ps.setLong(2, txc.txID);
         ps.setLong(3, Long.MAX_VALUE);
         ps.executeUpdate();
-        ps.close();
+        statementCache.release(ps);
         BlobId blobID = BlobId.of(bucket, name + txc.txID);
         BlobInfo blobInfo = BlobInfo.newBuilder(blobID).setContentType(contentType).build();
         storage.create(blobInfo, bytes);
-        ps = primary.prepareStatement(update);
+        ps = statementCache.acquire(update);
         ps.setLong(1, txc.txID);
         ps.setString(2, name);
         ps.setLong(3, txc.txID);
         ps.setLong(4, Long.MAX_VALUE);
         ps.executeUpdate();
-        ps.close();
+        statementCache.release(ps);
     }
 
     public byte[] retrieve(String bucket, String name) throws SQLException {
@@ -90,7 +93,7 @@ public class GCSContext extends ApiaryContext {
             BlobId blobID = BlobId.of(bucket, name);
             return storage.readAllBytes(blobID);
         }
-        PreparedStatement ps = primary.prepareStatement(retrieve);
+        PreparedStatement ps = statementCache.acquire(retrieve);
         ps.setString(1, name);
         ps.setLong(2, txc.xmax);
         ps.setLong(3, txc.txID);
@@ -99,16 +102,16 @@ public class GCSContext extends ApiaryContext {
         while (rs.next()) {
             long beginVersion = rs.getLong(1);
             long endVersion = rs.getLong(2);
-            if (!txc.activeTransactions.contains(beginVersion) && endVersion != txc.txID && (endVersion >= txc.xmax || txc.activeTransactions.contains(endVersion))) {
+            if (!txc.snapshot.isActive(beginVersion) && endVersion != txc.txID && !txc.snapshot.isVisible(endVersion)) {
                 version = beginVersion;
                 break;
             }
         }
+        rs.close();
+        statementCache.release(ps);
         if (version == -1) {
             return null;
         }
-        rs.close();
-        ps.close();
         BlobId blobID = BlobId.of(bucket, name + version);
         return storage.readAllBytes(blobID);
     }
@@ -62,7 +62,6 @@ public class MongoConnection implements ApiarySecondaryConnection {
 
     @Override
     public boolean validate(Map<String, List<String>> writtenKeys, TransactionContext txc) {
-        Set<Long> activeTransactions = new HashSet<>(txc.activeTransactions);
         validationLock.lock();
         boolean valid = true;
         for (String collection: writtenKeys.keySet()) {
@@ -70,7 +69,7 @@ public class MongoConnection implements ApiarySecondaryConnection {
                 // Has the key been modified by a transaction not in the snapshot?
                 Set<Long> writes = committedWrites.getOrDefault(collection, Collections.emptyMap()).getOrDefault(key, Collections.emptySet());
                 for (Long write : writes) {
-                    if (write >= txc.xmax || activeTransactions.contains(write)) {
+                    if (!txc.snapshot.isVisible(write)) {
                         valid = false;
                         break;
                     }
@@ -8,6 +8,7 @@ import org.dbos.apiary.function.FunctionOutput;
 import org.dbos.apiary.function.TransactionContext;
 import org.dbos.apiary.function.WorkerContext;
 import org.dbos.apiary.utilities.ApiaryConfig;
+import org.dbos.apiary.utilities.PooledThreadLocal;
 import org.dbos.apiary.utilities.Percentile;
 import org.postgresql.util.PSQLException;
 import org.postgresql.util.PSQLState;
@@ -32,7 +33,7 @@ public class MysqlConnection implements ApiarySecondaryConnection {
     public Percentile commits = new Percentile();
 
     private final MysqlDataSource ds;
-    private final ThreadLocal<Connection> connection;
+    private final PooledThreadLocal<Connection> connection;
     private final Map<String, Map<String, Set<Long>>> committedWrites = new ConcurrentHashMap<>();
     private final Lock validationLock = new ReentrantLock();
 
@@ -47,7 +48,7 @@ public class MysqlConnection implements ApiarySecondaryConnection {
         this.ds.setUser(databaseUsername);
         this.ds.setPassword(databasePassword);
 
-        this.connection = ThreadLocal.withInitial(() -> {
+        this.connection = PooledThreadLocal.ofConnections(() -> {
             try {
                 Connection conn = ds.getConnection();
                 // Manually commit transaction after function execution.
@@ -59,7 +60,7 @@ public class MysqlConnection implements ApiarySecondaryConnection {
                 e.printStackTrace();
             }
             return null;
-        });
+        }, ApiaryConfig.threadLocalMaxIdle);
 
         try {
             Connection testConn = ds.getConnection();
@@ -197,7 +198,6 @@ public class MysqlConnection implements ApiarySecondaryConnection {
             e.printStackTrace();
         }
         writtenKeys.putIfAbsent(MysqlContext.committedToken, new ArrayList<>());
-        Set<Long> activeTransactions = new HashSet<>(txc.activeTransactions);
         validationLock.lock();
         boolean valid = true;
         for (String table: writtenKeys.keySet()) {
@@ -208,7 +208,7 @@ public class MysqlConnection implements ApiarySecondaryConnection {
                 // Has the key been modified by a transaction not in the snapshot?
                 Set<Long> writes = committedWrites.getOrDefault(table, Collections.emptyMap()).getOrDefault(key, Collections.emptySet());
                 for (Long write : writes) {
-                    if (write >= txc.xmax || activeTransactions.contains(write)) {
+                    if (!txc.snapshot.isVisible(write)) {
                         valid = false;
                         break;
                     }
@@ -288,4 +288,8 @@ public class MysqlConnection implements ApiarySecondaryConnection {
         }
     }
 
+    @Override
+    public void close() {
+        connection.close();
+    }
 }
@@ -219,12 +219,12 @@ public class MysqlContext extends ApiaryContext {
         // TODO: This implementation assume predicates at the end. No more group by or others. May find a better solution.
         // Also hard to use prepared statement because the number of active transactions varies.
         StringBuilder filterQuery = new StringBuilder(sanitizeQuery);
-        String activeTxnString = txc.activeTransactions.stream().map(v -> "?").collect(Collectors.joining(", "));
+        String activeTxnString = Arrays.stream(txc.activeTransactions).mapToObj(v -> "?").collect(Collectors.joining(", "));
 
         // Add filters to the end.
         // Query would be <user query> AND ((beginVersion < txc.xmax? AND beginVersion NOT IN (?, ?..)) OR beginVersion = txID?) AND (endVersion > xmax? OR endVersion IN (?, ?) ) AND endVersion != txID?.
         // Number of prepared parameters: input + xmax + numActiveTxn + txid + xmax + numActiveTxn + txid.
-        int numParams = 4 + (2 * txc.activeTransactions.size());
+        int numParams = 4 + (2 * txc.activeTransactions.length);
         Object[] apiaryInput = new Object[input.length + numParams];
         System.arraycopy(input, 0, apiaryInput, 0, input.length);
 
@@ -233,8 +233,8 @@ public class MysqlContext extends ApiaryContext {
         apiaryInput[inputIdx++] = txc.xmax;
         if (!activeTxnString.isEmpty()) {
             filterQuery.append(String.format(" AND %s NOT IN ( %s ))", beginVersion, activeTxnString));
-            for (int i = 0; i < txc.activeTransactions.size(); i++) {
-                apiaryInput[inputIdx++] = txc.activeTransactions.get(i);
+            for (int i = 0; i < txc.activeTransactions.length; i++) {
+                apiaryInput[inputIdx++] = txc.activeTransactions[i];
             }
         } else {
             filterQuery.append(" )");
@@ -247,8 +247,8 @@ public class MysqlContext extends ApiaryContext {
         apiaryInput[inputIdx++] = txc.xmax;
         if (!activeTxnString.isEmpty()) {
             filterQuery.append(String.format(" OR %s IN ( %s ))", endVersion, activeTxnString));
-            for (int i = 0; i < txc.activeTransactions.size(); i++) {
-                apiaryInput[inputIdx++] = txc.activeTransactions.get(i);
+            for (int i = 0; i < txc.activeTransactions.length; i++) {
+                apiaryInput[inputIdx++] = txc.activeTransactions[i];
             }
         } else {
             filterQuery.append(" )");
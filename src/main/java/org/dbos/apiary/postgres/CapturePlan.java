@@ -0,0 +1,164 @@
+package org.dbos.apiary.postgres;
+
+import org.dbos.apiary.function.ProvenanceBuffer;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How to record the rows of a query as provenance: which result columns go to which slots of which Events table.
+ * The plan depends only on the SQL text and the table schemas, so it is computed from the result metadata
+ * on the first execution of a statement and reused afterwards. Plans and schema maps of a table are dropped
+ * when it is created or dropped through {@link PostgresConnection}, other schema changes are not detected.
+ */
+class CapturePlan {
+    private static final int maxCachedPlans = 4096;
+    private static final Map<String, CapturePlan> planCache = new ConcurrentHashMap<>();
+    private static final AtomicLong numPrepared = new AtomicLong(0);
+
+    // Per table: the Events table, its number of columns, and the result columns read from it.
+    final String[] eventTables;
+    final int[] numTableColumns;
+    final int[][] resultColumns;  // Result column index (1-based) per table.
+    final int[][] tableIndexes;   // Column index within the table, or -1 if not in the table.
+    final String tableNames;      // Comma-separated, as recorded in the query metadata.
+    final String projection;      // Comma-separated result column names.
+    final int exportOperation;
+
+    // The buffers of the Events tables in the provenance buffer the plan was last used with.
+    private static final class EventBuffers {
+        final ProvenanceBuffer provBuff;
+        final ProvenanceBuffer.TableBuffer[] buffers;
+
+        EventBuffers(ProvenanceBuffer provBuff, ProvenanceBuffer.TableBuffer[] buffers) {
+            this.provBuff = provBuff;
+            this.buffers = buffers;
+        }
+    }
+    private volatile EventBuffers eventBuffers;
+
+    private CapturePlan(Connection conn, String procedure, ResultSetMetaData rsmd) throws SQLException {
+        // Group result columns by the table they are read from, in order of first appearance.
+        Map<String, List<Integer>> tableColumns = new LinkedHashMap<>();
+        List<String> columnNames = new ArrayList<>();
+        for (int colNum = 1; colNum <= rsmd.getColumnCount(); colNum++) {
+            tableColumns.computeIfAbsent(rsmd.getTableName(colNum), k -> new ArrayList<>()).add(colNum);
+            columnNames.add(rsmd.getColumnName(colNum));
+        }
+        int numTables = tableColumns.size();
+        this.eventTables = new String[numTables];
+        this.numTableColumns = new int[numTables];
+        this.resultColumns = new int[numTables][];
+        this.tableIndexes = new int[numTables][];
+        int t = 0;
+        for (Map.Entry<String, List<Integer>> e : tableColumns.entrySet()) {
+            Map<String, Integer> schema = PostgresContext.getSchemaMap(conn, e.getKey());
+            List<Integer> cols = e.getValue();
+            eventTables[t] = e.getKey() + "Events";
+            numTableColumns[t] = schema.size();
+            resultColumns[t] = new int[cols.size()];
+            tableIndexes[t] = new int[cols.size()];
+            for (int i = 0; i < cols.size(); i++) {
+                resultColumns[t][i] = cols.get(i);
+                tableIndexes[t][i] = schema.getOrDefault(columnNames.get(cols.get(i) - 1), -1);
+            }
+            t++;
+        }
+        this.tableNames = String.join(",", tableColumns.keySet());
+        this.projection = String.join(",", columnNames);
+        this.exportOperation = PostgresContext.getQueryType(procedure);
+    }
+
+    /**
+     * Get the capture plan of a statement, computing it from the metadata of its result on first use.
+     * @param procedure the SQL text of the statement, without parameter values.
+     * @param rs        a result of the statement.
+     */
+    static CapturePlan get(PostgresContext ctxt, String procedure, ResultSet rs) throws SQLException {
+        CapturePlan plan = planCache.get(procedure);
+        if (plan == null) {
+            plan = prepare(ctxt.conn, procedure, rs.getMetaData());
+        }
+        return plan;
+    }
+
+    /**
+     * Compute and cache the capture plan of a statement from its result metadata, e.g., from a described statement.
+     */
+    static CapturePlan prepare(Connection conn, String procedure, ResultSetMetaData rsmd) throws SQLException {
+        CapturePlan plan = new CapturePlan(conn, procedure, rsmd);
+        numPrepared.incrementAndGet();
+        if (planCache.size() >= maxCachedPlans) {
+            planCache.clear();
+        }
+        planCache.put(procedure, plan);
+        return plan;
+    }
+
+    /**
+     * Drop the plans of statements reading a table, and its cached schema, e.g., after the table is dropped.
+     */
+    static void invalidate(String table) {
+        PostgresContext.invalidateSchemaMap(table);
+        PostgresContext.invalidateSchemaMap(table + "Events");
+        planCache.values().removeIf(plan -> plan.readsTable(table));
+    }
+
+    private boolean readsTable(String table) {
+        for (String eventTable : eventTables) {
+            String planTable = eventTable.substring(0, eventTable.length() - "Events".length());
+            if (planTable.equalsIgnoreCase(table) || planTable.equalsIgnoreCase(table + "Events")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static long getNumPrepared() {
+        return numPrepared.get();
+    }
+
+    /**
+     * Resolve the buffers of the Events tables once, so capturing a row does no table lookups.
+     * @return the buffer of each Events table, in plan order.
+     */
+    ProvenanceBuffer.TableBuffer[] getEventBuffers(ProvenanceBuffer provBuff) {
+        EventBuffers resolved = eventBuffers;
+        if ((resolved == null) || (resolved.provBuff != provBuff)) {
+            ProvenanceBuffer.TableBuffer[] buffers = new ProvenanceBuffer.TableBuffer[eventTables.length];
+            for (int t = 0; t < eventTables.length; t++) {
+                buffers[t] = provBuff.getTableBuffer(eventTables[t]);
+            }
+            resolved = new EventBuffers(provBuff, buffers);
+            eventBuffers = resolved;
+        }
+        return resolved.buffers;
+    }
+
+    /**
+     * Record the current row of a result set in the Events tables.
+     * @param buffers   the Events table buffers, from getEventBuffers().
+     */
+    void captureRow(ProvenanceBuffer.TableBuffer[] buffers, ResultSet rs, long txID, long timestamp, int querySeqNum) throws SQLException {
+        for (int t = 0; t < eventTables.length; t++) {
+            int[] cols = resultColumns[t];
+            int[] indexes = tableIndexes[t];
+            Object[] rowData = new Object[4 + numTableColumns[t]];
+            rowData[0] = txID;
+            rowData[1] = timestamp;
+            rowData[2] = exportOperation;
+            rowData[3] = querySeqNum;
+            for (int i = 0; i < cols.length; i++) {
+                if (indexes[i] >= 0) {
+                    rowData[4 + indexes[i]] = rs.getObject(cols[i]);
+                }
+            }
+            buffers[t].add(rowData);
+        }
+    }
+}
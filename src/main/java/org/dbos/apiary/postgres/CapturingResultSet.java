@@ -0,0 +1,51 @@
+package org.dbos.apiary.postgres;
+
+import org.dbos.apiary.function.ProvenanceBuffer;
+import org.dbos.apiary.utilities.Utilities;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A result set that records read provenance as the function consumes rows.
+ * Each row returned by next() is recorded in the Events table of every table it reads from,
+ * so a streaming result set never has to be read twice or held in memory.
+ */
+class CapturingResultSet extends DelegatingResultSet {
+
+    private final CapturePlan plan;
+    private final ProvenanceBuffer.TableBuffer[] eventBuffers;
+    private final long txID;
+    private final long timestamp;
+    private final int querySeqNum;
+
+    private CapturingResultSet(ResultSet rs, PostgresContext ctxt, CapturePlan plan, long timestamp, int querySeqNum) {
+        super(rs);
+        this.plan = plan;
+        this.eventBuffers = plan.getEventBuffers(ctxt.workerContext.provBuff);
+        this.txID = ctxt.txc.txID;
+        this.timestamp = timestamp;
+        this.querySeqNum = querySeqNum;
+    }
+
+    /**
+     * Record the metadata of a query, and return its result set wrapped to record each row read.
+     * @param procedure the SQL text of the query, its capture plan is cached under it.
+     */
+    static ResultSet capture(PostgresContext ctxt, ResultSet rs, int querySeqNum, String queryString, String procedure) throws SQLException {
+        long timestamp = Utilities.getMicroTimestamp();
+        CapturePlan plan = CapturePlan.get(ctxt, procedure, rs);
+        Object[] metaData = new Object[]{ctxt.txc.txID, querySeqNum, queryString, plan.tableNames, plan.projection};
+        ctxt.workerContext.provBuff.addEntry(ProvenanceBuffer.PROV_QueryMetadata, metaData);
+        return new CapturingResultSet(rs, ctxt, plan, timestamp, querySeqNum);
+    }
+
+    @Override
+    public boolean next() throws SQLException {
+        boolean hasRow = rs.next();
+        if (hasRow) {
+            plan.captureRow(eventBuffers, rs, txID, timestamp, querySeqNum);
+        }
+        return hasRow;
+    }
+}
@@ -0,0 +1,133 @@
+package org.dbos.apiary.postgres;
+
+import org.dbos.apiary.function.ProvenanceBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolve Postgres commit timestamps off the critical path.
+ * Committed transactions are queued here, and a background thread looks up the commit timestamps of many
+ * transactions per query, fills them into the provenance entries, and only then adds the entries to the buffer.
+ */
+public class CommitTimestampResolver {
+    private static final Logger logger = LoggerFactory.getLogger(CommitTimestampResolver.class);
+
+    private static final int maxBatchSize = 1000;
+    private static final long pollIntervalMs = 10;
+
+    // pg_xact_commit_timestamp takes a 32-bit xid, so strip the epoch from the 64-bit txid.
+    private static final String lookupCommitTimestamps = "SELECT t, CAST(extract(epoch from pg_xact_commit_timestamp((t % 4294967296)::text::xid)) * 1000000 AS BIGINT) " +
+            "FROM unnest(?::bigint[]) AS t;";
+
+    private static class PendingEntry {
+        final ProvenanceBuffer provBuff;
+        final String table;
+        final long txID;
+        final Object[] entry;
+        final int commitTimeIndex;
+
+        PendingEntry(ProvenanceBuffer provBuff, String table, long txID, Object[] entry, int commitTimeIndex) {
+            this.provBuff = provBuff;
+            this.table = table;
+            this.txID = txID;
+            this.entry = entry;
+            this.commitTimeIndex = commitTimeIndex;
+        }
+    }
+
+    private final PostgresConnectionPool pool;
+    private final BlockingQueue<PendingEntry> pendingEntries = new LinkedBlockingQueue<>();
+    private final Thread resolverThread;
+    private volatile boolean running = true;
+
+    public CommitTimestampResolver(PostgresConnectionPool pool) {
+        this.pool = pool;
+        this.resolverThread = new Thread(this::resolverThread);
+        this.resolverThread.setDaemon(true);
+        this.resolverThread.start();
+    }
+
+    /**
+     * Add a provenance entry once the commit timestamp of its transaction is known.
+     * @param provBuff          the provenance buffer.
+     * @param table             the provenance table.
+     * @param txID              the committed transaction ID.
+     * @param entry             the provenance entry, the commit timestamp column holds a fallback timestamp.
+     * @param commitTimeIndex   the index of the commit timestamp column in the entry.
+     */
+    public void submit(ProvenanceBuffer provBuff, String table, long txID, Object[] entry, int commitTimeIndex) {
+        pendingEntries.add(new PendingEntry(provBuff, table, txID, entry, commitTimeIndex));
+    }
+
+    /**
+     * Resolve all submitted entries, add them to their buffers, and stop the background thread.
+     */
+    public void close() {
+        running = false;
+        try {
+            resolverThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void resolverThread() {
+        List<PendingEntry> batch = new ArrayList<>();
+        // Keep draining after close, so no submitted entry is dropped.
+        while ((running || !pendingEntries.isEmpty()) && !Thread.currentThread().isInterrupted()) {
+            try {
+                PendingEntry first = pendingEntries.poll(pollIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                pendingEntries.drainTo(batch, maxBatchSize - 1);
+                resolveBatch(batch);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                // Never lose entries, keep the fallback timestamp if the lookup failed.
+                for (PendingEntry p : batch) {
+                    p.provBuff.addEntry(p.table, p.entry);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    private void resolveBatch(List<PendingEntry> batch) {
+        Long[] txIDs = batch.stream().map(p -> p.txID).distinct().toArray(Long[]::new);
+        Map<Long, Long> commitTimes = new HashMap<>();
+        Connection conn = null;
+        try {
+            conn = pool.acquire();
+            PreparedStatement pstmt = conn.prepareStatement(lookupCommitTimestamps);
+            pstmt.setArray(1, conn.createArrayOf("bigint", txIDs));
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                long commitTime = rs.getLong(2);
+                if (!rs.wasNull()) {
+                    commitTimes.put(rs.getLong(1), commitTime);
+                }
+            }
+            rs.close();
+            pstmt.close();
+        } catch (SQLException e) {
+            logger.error("Failed to get commit timestamps: {}", e.getMessage());
+        } finally {
+            pool.release(conn);
+        }
+        for (PendingEntry p : batch) {
+            Long commitTime = commitTimes.get(p.txID);
+            if (commitTime != null) {
+                p.entry[p.commitTimeIndex] = commitTime;
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package org.dbos.apiary.postgres;
+
+import org.dbos.apiary.utilities.ApiaryConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Retry conflicting transactions with jittered exponential backoff.
+ * Keys that abort often are hot: their retries wait in a local FIFO queue and run one at a time,
+ * instead of repeatedly conflicting with each other in the database.
+ * By default the contention key of a function call is the function name; a finer key, such as the row
+ * a function updates, can be set with {@link #setContentionKey(String, Function)}.
+ */
+public class ContentionAwareRetryPolicy implements RetryPolicy {
+    private static final Logger logger = LoggerFactory.getLogger(ContentionAwareRetryPolicy.class);
+
+    private static final long hotKeyWindowMs = 1000;
+    private static final int maxTrackedKeys = 4096;
+
+    private static class KeyState {
+        final ReentrantLock retryLock = new ReentrantLock(true);  // Fair, so queued retries run in order.
+        long windowStartMs = System.currentTimeMillis();
+        int windowAborts = 0;
+        int prevWindowAborts = 0;
+
+        synchronized void recordAbort(long nowMs) {
+            roll(nowMs);
+            windowAborts++;
+        }
+
+        synchronized boolean isHot(long nowMs) {
+            roll(nowMs);
+            return Math.max(windowAborts, prevWindowAborts) >= ApiaryConfig.retryHotKeyAborts;
+        }
+
+        private void roll(long nowMs) {
+            long elapsed = nowMs - windowStartMs;
+            if (elapsed >= hotKeyWindowMs) {
+                prevWindowAborts = (elapsed < 2 * hotKeyWindowMs) ? windowAborts : 0;
+                windowAborts = 0;
+                windowStartMs = nowMs;
+            }
+        }
+    }
+
+    public static class FunctionStats {
+        public final AtomicLong attempts = new AtomicLong(0);
+        public final AtomicLong commits = new AtomicLong(0);
+        public final AtomicLong aborts = new AtomicLong(0);
+        public final AtomicLong retries = new AtomicLong(0);
+        public final AtomicLong giveUps = new AtomicLong(0);
+
+        /**
+         * @return the fraction of attempts that aborted because of a conflict.
+         */
+        public double getAbortRate() {
+            long n = attempts.get();
+            return (n == 0) ? 0 : (double) aborts.get() / n;
+        }
+
+        /**
+         * @return the average number of retries per committed call.
+         */
+        public double getRetryRate() {
+            long n = commits.get();
+            return (n == 0) ? 0 : (double) retries.get() / n;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("attempts=%d commits=%d aborts=%d retries=%d giveUps=%d abortRate=%.3f retryRate=%.3f",
+                    attempts.get(), commits.get(), aborts.get(), retries.get(), giveUps.get(), getAbortRate(), getRetryRate());
+        }
+    }
+
+    private final Map<String, Function<Object[], Object>> contentionKeys = new ConcurrentHashMap<>();
+    private final Map<Object, KeyState> keyStates = new ConcurrentHashMap<>();
+    private final Map<String, FunctionStats> functionStats = new ConcurrentHashMap<>();
+
+    /**
+     * Set how to compute the contention key of a function call from its inputs.
+     * @param functionName  the function name.
+     * @param keyFunction   maps the function inputs to a key; calls with equal keys are likely to conflict.
+     */
+    public void setContentionKey(String functionName, Function<Object[], Object> keyFunction) {
+        contentionKeys.put(functionName, keyFunction);
+    }
+
+    private Object getKey(String functionName, Object[] inputs) {
+        Function<Object[], Object> keyFunction = contentionKeys.get(functionName);
+        if (keyFunction == null) {
+            return functionName;
+        }
+        return new KeyOf(functionName, keyFunction.apply(inputs));
+    }
+
+    private static final class KeyOf {
+        final String functionName;
+        final Object key;
+
+        KeyOf(String functionName, Object key) {
+            this.functionName = functionName;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof KeyOf)) {
+                return false;
+            }
+            KeyOf other = (KeyOf) o;
+            return functionName.equals(other.functionName) && Objects.equals(key, other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * functionName.hashCode() + Objects.hashCode(key);
+        }
+    }
+
+    public FunctionStats getStats(String functionName) {
+        return functionStats.computeIfAbsent(functionName, k -> new FunctionStats());
+    }
+
+    public Map<String, FunctionStats> getAllStats() {
+        return functionStats;
+    }
+
+    @Override
+    public Object beginAttempt(String functionName, Object[] inputs, int attempt) {
+        FunctionStats stats = getStats(functionName);
+        stats.attempts.incrementAndGet();
+        if (attempt == 0) {
+            return null;
+        }
+        stats.retries.incrementAndGet();
+        // Full jitter: sleep a random time up to the exponential backoff.
+        long backoffUs = Math.min(ApiaryConfig.retryMaxBackoffUs, ApiaryConfig.retryBaseBackoffUs << Math.min(attempt - 1, 30));
+        if (backoffUs > 0) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(ThreadLocalRandom.current().nextLong(backoffUs + 1)));
+        }
+        KeyState state = keyStates.get(getKey(functionName, inputs));
+        if ((state != null) && state.isHot(System.currentTimeMillis())) {
+            state.retryLock.lock();
+            return state;
+        }
+        return null;
+    }
+
+    @Override
+    public void endAttempt(Object handle, String functionName, boolean committed) {
+        if (handle != null) {
+            ((KeyState) handle).retryLock.unlock();
+        }
+        if (committed) {
+            getStats(functionName).commits.incrementAndGet();
+        }
+    }
+
+    @Override
+    public boolean shouldRetry(String functionName, Object[] inputs, int attempt) {
+        FunctionStats stats = getStats(functionName);
+        stats.aborts.incrementAndGet();
+        if (keyStates.size() > maxTrackedKeys) {
+            keyStates.values().removeIf(s -> !s.retryLock.isLocked() && !s.isHot(System.currentTimeMillis()));
+        }
+        keyStates.computeIfAbsent(getKey(functionName, inputs), k -> new KeyState()).recordAbort(System.currentTimeMillis());
+        if ((ApiaryConfig.retryMaxAttempts > 0) && (attempt + 1 >= ApiaryConfig.retryMaxAttempts)) {
+            stats.giveUps.incrementAndGet();
+            logger.info("Function {} failed after {} attempts: {}", functionName, attempt + 1, stats);
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,128 @@
+package org.dbos.apiary.postgres;
+
+import org.dbos.apiary.utilities.ApiaryConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Make asynchronously committed transactions durable in groups.
+ * Transactions committed with synchronous_commit=off register here after their commit returns.
+ * A background thread periodically runs one synchronously committed transaction as a WAL flush barrier:
+ * when it commits, the WAL is flushed past every commit registered before it, so all of their futures complete.
+ * Many asynchronous commits thus share one WAL flush.
+ * If no barrier succeeds within {@link ApiaryConfig#groupCommitTimeoutMs}, the future completes exceptionally.
+ */
+public class GroupCommitCoordinator {
+    private static final Logger logger = LoggerFactory.getLogger(GroupCommitCoordinator.class);
+
+    // Assigning a transaction ID makes the barrier write a commit record, so its commit waits for the WAL flush.
+    // Run on an autocommit connection, synchronously regardless of the server default.
+    private static final String barrier = "SELECT set_config('synchronous_commit', 'on', true), txid_current();";
+
+    private final PostgresConnectionPool pool;
+    private final ConcurrentLinkedQueue<CompletableFuture<Void>> pending = new ConcurrentLinkedQueue<>();
+    private final Thread barrierThread;
+    private volatile boolean running = true;
+
+    public GroupCommitCoordinator(PostgresConnectionPool pool) {
+        this.pool = pool;
+        this.barrierThread = new Thread(this::barrierThread);
+        this.barrierThread.setDaemon(true);
+        this.barrierThread.start();
+    }
+
+    /**
+     * Register a transaction that committed asynchronously.
+     * @return a future that completes once the commit is flushed to the WAL.
+     */
+    public CompletableFuture<Void> register() {
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        if (!running) {
+            durable.completeExceptionally(new IllegalStateException("Group commit coordinator is closed."));
+            return durable;
+        }
+        pending.add(durable);
+        return durable.orTimeout(ApiaryConfig.groupCommitTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the barrier thread. Run a last barrier for the pending commits, or fail them if it does not succeed.
+     */
+    public void close() {
+        running = false;
+        barrierThread.interrupt();
+        try {
+            barrierThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<CompletableFuture<Void>> group = new ArrayList<>();
+        CompletableFuture<Void> f;
+        while ((f = pending.poll()) != null) {
+            group.add(f);
+        }
+        if (group.isEmpty()) {
+            return;
+        }
+        boolean flushed = flushBarrier();
+        for (CompletableFuture<Void> durable : group) {
+            if (flushed) {
+                durable.complete(null);
+            } else {
+                durable.completeExceptionally(new IllegalStateException("Failed to flush WAL before closing."));
+            }
+        }
+    }
+
+    private void barrierThread() {
+        List<CompletableFuture<Void>> group = new ArrayList<>();
+        while (running && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(ApiaryConfig.groupCommitIntervalUs));
+            // Only commits registered before the barrier starts are covered by it.
+            CompletableFuture<Void> f;
+            while ((f = pending.poll()) != null) {
+                group.add(f);
+            }
+            // Timed out futures are already failed.
+            group.removeIf(CompletableFuture::isDone);
+            if (group.isEmpty()) {
+                continue;
+            }
+            if (flushBarrier()) {
+                for (CompletableFuture<Void> durable : group) {
+                    durable.complete(null);
+                }
+                group.clear();
+            }
+            // Otherwise, keep the group and retry at the next interval.
+        }
+        // Closing, leave the unflushed group to close().
+        pending.addAll(group);
+    }
+
+    private boolean flushBarrier() {
+        Connection conn = null;
+        try {
+            conn = pool.acquire();
+            Statement stmt = conn.createStatement();
+            stmt.execute(barrier);
+            stmt.close();
+            return true;
+        } catch (SQLException e) {
+            logger.error("Failed to flush WAL for group commit: {}", e.getMessage());
+            return false;
+        } finally {
+            pool.release(conn);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package org.dbos.apiary.postgres;
+
+import org.dbos.apiary.function.ProvenanceBuffer;
+import org.dbos.apiary.utilities.ApiaryConfig;
+import org.dbos.apiary.utilities.Utilities;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Bulk insert rows with COPY ... FROM STDIN in the binary format.
+ * Rows are encoded into a fixed-size buffer and streamed to the database, so a large insert is not
+ * materialized as one message. Only plain INSERT ... VALUES (?, ...) statements into columns of common
+ * types are supported; for anything else, {@link #copy} returns false and the caller falls back to a batch insert.
+ */
+class PostgresBulkCopy {
+    private static final Pattern insertPattern = Pattern.compile(
+            "^\\s*INSERT\\s+INTO\\s+([\\w.]+)\\s*(?:\\(([^)]*)\\))?\\s*VALUES\\s*\\(([\\s?,]*)\\)\\s*;?\\s*$",
+            Pattern.CASE_INSENSITIVE);
+
+    private static final byte[] header = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0, 0, 0, 0, 0, 0, 0, 0, 0};
+    private static final int bufferSize = 1 << 16;
+
+    // Postgres type OIDs.
+    private static final int BOOL = 16;
+    private static final int BYTEA = 17;
+    private static final int INT8 = 20;
+    private static final int INT2 = 21;
+    private static final int INT4 = 23;
+    private static final int TEXT = 25;
+    private static final int FLOAT4 = 700;
+    private static final int FLOAT8 = 701;
+    private static final int BPCHAR = 1042;
+    private static final int VARCHAR = 1043;
+    private static final int TIMESTAMP = 1114;
+    private static final int TIMESTAMPTZ = 1184;
+    private static final Set<Integer> supportedTypes = Set.of(BOOL, BYTEA, INT8, INT2, INT4, TEXT, FLOAT4, FLOAT8, BPCHAR, VARCHAR, TIMESTAMP, TIMESTAMPTZ);
+
+    // Microseconds from the Unix epoch to the Postgres epoch (2000-01-01).
+    private static final long postgresEpochMicros = 946684800000000L;
+
+    private static final String getColumnTypes = "SELECT attname, atttypid FROM pg_attribute " +
+            "WHERE attrelid = to_regclass(?) AND attnum > 0 AND NOT attisdropped ORDER BY attnum;";
+
+    // Lower-case table name -> ordered column names and type OIDs. Invalidated by DDL through PostgresConnection
+    // and whenever a COPY fails, so a table recreated with other column types is looked up again.
+    private static final Map<String, LinkedHashMap<String, Integer>> columnTypeCache = new ConcurrentHashMap<>();
+
+    private final byte[] buffer = new byte[bufferSize];
+    private int pos = 0;
+    private CopyIn copyIn;
+
+    /**
+     * Insert rows with COPY if the statement allows it.
+     * @return false if the statement or its column types are not supported, nothing is inserted then.
+     */
+    static boolean copy(PostgresContext ctxt, String procedure, List<Object[]> inputs) throws SQLException {
+        Matcher m = insertPattern.matcher(procedure);
+        if (!m.matches()) {
+            return false;
+        }
+        String table = m.group(1);
+        LinkedHashMap<String, Integer> tableColumns = getColumnTypes(ctxt.conn, table);
+        if (tableColumns == null) {
+            return false;
+        }
+        List<String> columns = new ArrayList<>();
+        if (m.group(2) != null) {
+            for (String c : m.group(2).split(",")) {
+                columns.add(c.trim());
+            }
+        } else {
+            columns.addAll(tableColumns.keySet());
+        }
+        int numParams = m.group(3).replaceAll("[^?]", "").length();
+        if (numParams != columns.size()) {
+            return false;
+        }
+        int[] types = new int[columns.size()];
+        for (int i = 0; i < types.length; i++) {
+            Integer type = lookupIgnoreCase(tableColumns, columns.get(i));
+            if ((type == null) || !supportedTypes.contains(type)) {
+                return false;
+            }
+            types[i] = type;
+        }
+        // Check all values first, a failed COPY would abort the transaction.
+        for (Object[] input : inputs) {
+            if (input.length != types.length) {
+                return false;
+            }
+            for (int i = 0; i < types.length; i++) {
+                if (!isCompatible(input[i], types[i])) {
+                    return false;
+                }
+            }
+        }
+
+        String copySql = String.format("COPY %s (%s) FROM STDIN (FORMAT BINARY)", table, String.join(", ", columns));
+        PostgresBulkCopy encoder = new PostgresBulkCopy();
+        try {
+            encoder.copyIn = ctxt.conn.unwrap(PGConnection.class).getCopyAPI().copyIn(copySql);
+            encoder.write(header, header.length);
+            for (Object[] input : inputs) {
+                encoder.writeRow(input, types);
+            }
+            encoder.writeShort(-1);  // Trailer.
+            encoder.flush();
+            encoder.copyIn.endCopy();
+        } catch (SQLException e) {
+            // The cached column types may be stale.
+            invalidate(table);
+            throw e;
+        } finally {
+            if ((encoder.copyIn != null) && encoder.copyIn.isActive()) {
+                encoder.copyIn.cancelCopy();
+            }
+        }
+        if (ApiaryConfig.captureBulkInserts && (ctxt.workerContext.provBuff != null)) {
+            captureProvenance(ctxt, copySql, table, columns, inputs);
+        }
+        return true;
+    }
+
+    private static Integer lookupIgnoreCase(Map<String, Integer> columns, String name) {
+        Integer type = columns.get(name);
+        if (type != null) {
+            return type;
+        }
+        // Unquoted identifiers are folded to lower case.
+        return columns.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Forget the cached column types of a table, after it is dropped or altered.
+     */
+    static void invalidate(String table) {
+        columnTypeCache.remove(table.toLowerCase(Locale.ROOT));
+    }
+
+    private static LinkedHashMap<String, Integer> getColumnTypes(Connection conn, String table) throws SQLException {
+        LinkedHashMap<String, Integer> cached = columnTypeCache.get(table.toLowerCase(Locale.ROOT));
+        if (cached != null) {
+            return cached;
+        }
+        LinkedHashMap<String, Integer> columns = new LinkedHashMap<>();
+        PreparedStatement pstmt = conn.prepareStatement(getColumnTypes);
+        pstmt.setString(1, table);
+        ResultSet rs = pstmt.executeQuery();
+        while (rs.next()) {
+            columns.put(rs.getString(1), rs.getInt(2));
+        }
+        rs.close();
+        pstmt.close();
+        if (columns.isEmpty()) {
+            return null;
+        }
+        columnTypeCache.put(table.toLowerCase(Locale.ROOT), columns);
+        return columns;
+    }
+
+    // Record the inserted rows as provenance Events, as executeUpdate does for its RETURNING rows.
+    private static void captureProvenance(PostgresContext ctxt, String copySql, String table,
+                                          List<String> columns, List<Object[]> inputs) throws SQLException {
+        int querySeqNum = ctxt.txc.querySeqNum.getAndIncrement();
+        long timestamp = Utilities.getMicroTimestamp();
+        Map<String, Integer> schemaMap = new HashMap<>();
+        int index = 0;
+        for (String c : getColumnTypes(ctxt.conn, table).keySet()) {
+            schemaMap.put(c.toUpperCase(Locale.ROOT), index++);
+        }
+        int[] colIndex = new int[columns.size()];
+        for (int i = 0; i < colIndex.length; i++) {
+            colIndex[i] = schemaMap.get(columns.get(i).toUpperCase(Locale.ROOT));
+        }
+        Object[] metaData = new Object[]{ctxt.txc.txID, querySeqNum, copySql, table, "*"};
+        ctxt.workerContext.provBuff.addEntry(ProvenanceBuffer.PROV_QueryMetadata, metaData);
+        for (Object[] input : inputs) {
+            Object[] rowData = new Object[4 + schemaMap.size()];
+            rowData[0] = ctxt.txc.txID;
+            rowData[1] = timestamp;
+            rowData[2] = ProvenanceBuffer.ExportOperation.INSERT.getValue();
+            rowData[3] = querySeqNum;
+            for (int i = 0; i < colIndex.length; i++) {
+                rowData[4 + colIndex[i]] = input[i];
+            }
+            ctxt.workerContext.provBuff.addEntry(table + "Events", rowData);
+        }
+    }
+
+    private static boolean isCompatible(Object o, int type) {
+        switch (type) {
+            case BOOL:
+                return (o == null) || (o instanceof Boolean);
+            case INT2:
+                // Out-of-range values must fail as they would with a batch insert, not be truncated.
+                return (o == null) || (o instanceof Short) || (o instanceof Byte)
+                        || (((o instanceof Integer) || (o instanceof Long))
+                            && (((Number) o).longValue() >= Short.MIN_VALUE) && (((Number) o).longValue() <= Short.MAX_VALUE));
+            case INT4:
+                return (o == null) || (o instanceof Integer) || (o instanceof Short) || (o instanceof Byte)
+                        || ((o instanceof Long) && ((Long) o >= Integer.MIN_VALUE) && ((Long) o <= Integer.MAX_VALUE));
+            case INT8:
+                return (o == null) || (o instanceof Long) || (o instanceof Integer) || (o instanceof Short) || (o instanceof Byte);
+            case FLOAT4:
+            case FLOAT8:
+                return (o == null) || (o instanceof Number);
+            case TIMESTAMP:
+            case TIMESTAMPTZ:
+                return (o == null) || (o instanceof Timestamp);
+            case BYTEA:
+                return (o == null) || (o instanceof byte[]);
+            default:
+                return (o == null) || (o instanceof String);
+        }
+    }
+
+    /* Streaming encoder for the binary COPY format. */
+
+    private void writeRow(Object[] input, int[] types) throws SQLException {
+        writeShort(types.length);
+        for (int i = 0; i < types.length; i++) {
+            writeField(input[i], types[i]);
+        }
+    }
+
+    private void writeField(Object o, int type) throws SQLException {
+        if (o == null) {
+            writeInt(-1);
+            return;
+        }
+        switch (type) {
+            case BOOL:
+                writeInt(1);
+                ensure(1);
+                buffer[pos++] = (byte) (((Boolean) o) ? 1 : 0);
+                break;
+            case INT2:
+                writeInt(2);
+                writeShort(((Number) o).shortValue());
+                break;
+            case INT4:
+                writeInt(4);
+                writeInt(((Number) o).intValue());
+                break;
+            case INT8:
+                writeInt(8);
+                writeLong(((Number) o).longValue());
+                break;
+            case FLOAT4:
+                writeInt(4);
+                writeInt(Float.floatToIntBits(((Number) o).floatValue()));
+                break;
+            case FLOAT8:
+                writeInt(8);
+                writeLong(Double.doubleToLongBits(((Number) o).doubleValue()));
+                break;
+            case TIMESTAMP: {
+                // Without a time zone, store the JVM-local wall time, as setTimestamp does.
+                LocalDateTime t = ((Timestamp) o).toLocalDateTime();
+                long micros = t.toEpochSecond(ZoneOffset.UTC) * 1000000L + t.getNano() / 1000;
+                writeInt(8);
+                writeLong(micros - postgresEpochMicros);
+                break;
+            }
+            case TIMESTAMPTZ: {
+                Timestamp t = (Timestamp) o;
+                long micros = Math.floorDiv(t.getTime(), 1000L) * 1000000L + t.getNanos() / 1000;
+                writeInt(8);
+                writeLong(micros - postgresEpochMicros);
+                break;
+            }
+            case BYTEA: {
+                byte[] bytes = (byte[]) o;
+                writeInt(bytes.length);
+                write(bytes, bytes.length);
+                break;
+            }
+            default: {
+                // Text types.
+                byte[] bytes = o.toString().getBytes(StandardCharsets.UTF_8);
+                writeInt(bytes.length);
+                write(bytes, bytes.length);
+            }
+        }
+    }
+
+    private void ensure(int n) throws SQLException {
+        if (pos + n > buffer.length) {
+            flush();
+        }
+    }
+
+    private void flush() throws SQLException {
+        if (pos > 0) {
+            copyIn.writeToCopy(buffer, 0, pos);
+            pos = 0;
+        }
+    }
+
+    private void write(byte[] bytes, int length) throws SQLException {
+        if (length > buffer.length) {
+            flush();
+            copyIn.writeToCopy(bytes, 0, length);
+            return;
+        }
+        ensure(length);
+        System.arraycopy(bytes, 0, buffer, pos, length);
+        pos += length;
+    }
+
+    private void writeShort(int v) throws SQLException {
+        ensure(2);
+        buffer[pos++] = (byte) (v >>> 8);
+        buffer[pos++] = (byte) v;
+    }
+
+    private void writeInt(int v) throws SQLException {
+        ensure(4);
+        buffer[pos++] = (byte) (v >>> 24);
+        buffer[pos++] = (byte) (v >>> 16);
+        buffer[pos++] = (byte) (v >>> 8);
+        buffer[pos++] = (byte) v;
+    }
+
+    private void writeLong(long v) throws SQLException {
+        writeInt((int) (v >>> 32));
+        writeInt((int) v);
+    }
+}
@@ -4,6 +4,7 @@ import org.dbos.apiary.connection.ApiaryConnection;
 import org.dbos.apiary.function.FunctionOutput;
 import org.dbos.apiary.function.ProvenanceBuffer;
 import org.dbos.apiary.function.TransactionContext;
+import org.dbos.apiary.function.TransactionSnapshot;
 import org.dbos.apiary.function.WorkerContext;
 import org.dbos.apiary.utilities.ApiaryConfig;
 import org.dbos.apiary.utilities.Utilities;
@@ -16,9 +17,10 @@ import org.slf4j.LoggerFactory;
 import java.lang.reflect.InvocationTargetException;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A connection to a Postgres database.
@@ -27,13 +29,26 @@ public class PostgresConnection implements ApiaryConnection {
     private static final Logger logger = LoggerFactory.getLogger(PostgresConnection.class);
 
     private final PGSimpleDataSource ds;
-    public final ThreadLocal<Connection> connection;
-    public final ThreadLocal<Connection> bgConnection;  // For background tasks, not the critical one for function executions.
-    private final ReadWriteLock activeTransactionsLock = new ReentrantReadWriteLock();
-    private long biggestxmin = Long.MIN_VALUE;
-    private final Set<TransactionContext> activeTransactions = ConcurrentHashMap.newKeySet();
-    private final Set<TransactionContext> abortedTransactions = ConcurrentHashMap.newKeySet();
-    private TransactionContext latestTransactionContext;
+    // The pooled connection bound to the current thread while it runs a function, null otherwise.
+    public final ThreadLocal<Connection> connection = new ThreadLocal<>();
+    private final Map<Integer, PostgresConnectionPool> pools = new ConcurrentHashMap<>();  // One pool per isolation level.
+    private final Map<Integer, Integer> poolSizes = new ConcurrentHashMap<>();
+    private final PostgresConnectionPool bgPool;  // For background tasks, not the critical one for function executions.
+    private CommitTimestampResolver commitTimestampResolver = null;  // Created on first use.
+    private GroupCommitCoordinator groupCommitCoordinator = null;  // Created on first use.
+    private volatile WalProvenanceCapture walProvenanceCapture = null;  // Started by the first function with provenance.
+    // Whether to capture update provenance from the WAL, false if this database cannot decode it.
+    private volatile boolean captureUpdatesFromWal = false;
+    private final ReadReplicaRouter replicaRouter;
+    // Durability of the last function called by this thread, taken by whenDurable().
+    private final ThreadLocal<CompletableFuture<Void>> lastCommitDurable = new ThreadLocal<>();
+    private RetryPolicy retryPolicy = new ContentionAwareRetryPolicy();
+    private final AtomicLong biggestxmin = new AtomicLong(Long.MIN_VALUE);
+    // Immutable sets published atomically, so a new transaction or the GC thread gets a snapshot in O(1) without locks.
+    private final AtomicReference<TransactionSet> activeTransactions = new AtomicReference<>(TransactionSet.empty());
+    private final AtomicReference<TransactionSet> abortedTransactions = new AtomicReference<>(TransactionSet.empty());
+    private volatile TransactionContext latestTransactionContext;
+    private final AtomicLong commitEpoch = new AtomicLong(0);
 
     /**
      * Create a connection to a Postgres database.
@@ -45,26 +60,8 @@ public class PostgresConnection implements ApiaryConnection {
      * @throws SQLException
      */
     public PostgresConnection(String hostname, Integer port, String databaseUsername, String databasePassword) throws SQLException {
-        this.ds = new PGSimpleDataSource();
-        this.ds.setServerNames(new String[] {hostname});
-        this.ds.setPortNumbers(new int[] {port});
-        this.ds.setDatabaseName(ApiaryConfig.dbosDBName);  // Default use dbos databse.
-        this.ds.setUser(databaseUsername);
-        this.ds.setPassword(databasePassword);
-        this.ds.setSsl(false);
-
+        this(newDataSource(hostname, port, databaseUsername, databasePassword));
         logger.info("Postgres isolation level: {}", ApiaryConfig.isolationLevel);
-        this.connection = ThreadLocal.withInitial(() -> createNewConnection());
-        this.bgConnection = ThreadLocal.withInitial(() -> {
-            try {
-                Connection conn = ds.getConnection();
-                conn.setAutoCommit(true);
-                return conn;
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
-            return null;
-        });
         try {
             Connection testConn = ds.getConnection();
             Statement stmt = testConn.createStatement();
@@ -77,6 +74,16 @@ public class PostgresConnection implements ApiaryConnection {
                 ApiaryConfig.trackCommitTimestamp = false;
                 logger.info("Postgres track_commit_timestamp = off!");
             }
+            if (ApiaryConfig.captureUpdatesFromWal) {
+                // The slot is only created when the first function with provenance starts the decoder.
+                rs = stmt.executeQuery("SHOW wal_level;");
+                rs.next();
+                if (rs.getString(1).equals("logical")) {
+                    captureUpdatesFromWal = true;
+                } else {
+                    logger.info("Postgres wal_level = {}, capture update provenance with RETURNING", rs.getString(1));
+                }
+            }
             testConn.close();
         } catch (SQLException e) {
             logger.info("Failed to connect to Postgres");
@@ -92,7 +99,8 @@ public class PostgresConnection implements ApiaryConnection {
                 + ProvenanceBuffer.PROV_PROCEDURENAME + " VARCHAR(512) NOT NULL, "
                 + ProvenanceBuffer.PROV_END_TIMESTAMP + " BIGINT, "
                 + ProvenanceBuffer.PROV_FUNC_STATUS + " VARCHAR(20), "
-                + ProvenanceBuffer.PROV_TXN_SNAPSHOT + " VARCHAR(1024) ");
+                + ProvenanceBuffer.PROV_TXN_SNAPSHOT + " BYTEA ");
+        migrateSnapshotColumn();
         createTable(ProvenanceBuffer.PROV_ApiaryMetadata,
                 "Key VARCHAR(1024) NOT NULL, Value Integer, PRIMARY KEY(key)");
         createTable(ProvenanceBuffer.PROV_QueryMetadata,
@@ -115,17 +123,59 @@ public class PostgresConnection implements ApiaryConnection {
         // createTable("RecordedOutputs", "ExecID bigint, FunctionID bigint, StringOutput VARCHAR(1000), IntOutput integer, StringArrayOutput bytea, IntArrayOutput bytea, FutureOutput bigint, QueuedTasks bytea, PRIMARY KEY(ExecID, FunctionID)");
     }
 
+    // Only set up the connection pools. Does not contact the database, create tables, or change the global config.
+    private PostgresConnection(PGSimpleDataSource ds) {
+        this.ds = ds;
+        this.bgPool = new PostgresConnectionPool("postgres-background", () -> {
+            try {
+                Connection conn = ds.getConnection();
+                conn.setAutoCommit(true);
+                return conn;
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            return null;
+        }, ApiaryConfig.postgresBackgroundPoolSize, ApiaryConfig.postgresPoolTimeoutMs);
+        this.replicaRouter = new ReadReplicaRouter(bgPool);
+    }
+
+    /**
+     * Connect to a database that another worker set up, e.g., a remote shard, to run functions on it.
+     * Unlike the public constructor, this creates no tables and leaves the global config unchanged.
+     */
+    static PostgresConnection connectRemote(String hostname, Integer port, String databaseUsername, String databasePassword) {
+        return new PostgresConnection(newDataSource(hostname, port, databaseUsername, databasePassword));
+    }
+
+    private static PGSimpleDataSource newDataSource(String hostname, Integer port, String databaseUsername, String databasePassword) {
+        PGSimpleDataSource ds = new PGSimpleDataSource();
+        ds.setServerNames(new String[] {hostname});
+        ds.setPortNumbers(new int[] {port});
+        ds.setDatabaseName(ApiaryConfig.dbosDBName);  // Default use dbos databse.
+        ds.setUser(databaseUsername);
+        ds.setPassword(databasePassword);
+        ds.setSsl(false);
+        ds.setPrepareThreshold(ApiaryConfig.prepareThreshold);
+        return ds;
+    }
+
     /**
      * Drop a table and its corresponding events table if they exist.
      * @param tableName the table to drop.
      * @throws SQLException
      */
     public void dropTable(String tableName) throws SQLException {
-        Connection conn = bgConnection.get();
-        Statement truncateTable = conn.createStatement();
-        truncateTable.execute(String.format("DROP TABLE IF EXISTS %s;", tableName));
-        truncateTable.execute(String.format("DROP TABLE IF EXISTS %sEvents;", tableName));
-        truncateTable.close();
+        Connection conn = bgPool.acquire();
+        try {
+            Statement truncateTable = conn.createStatement();
+            truncateTable.execute(String.format("DROP TABLE IF EXISTS %s;", tableName));
+            truncateTable.execute(String.format("DROP TABLE IF EXISTS %sEvents;", tableName));
+            truncateTable.close();
+        } finally {
+            bgPool.release(conn);
+            PostgresBulkCopy.invalidate(tableName);
+            CapturePlan.invalidate(tableName);
+        }
     }
 
     /**
@@ -134,13 +184,17 @@ public class PostgresConnection implements ApiaryConnection {
      * @param deleteProvenance  if true, truncate the events table as well.
      */
     public void truncateTable(String tableName, boolean deleteProvenance) throws SQLException {
-        Connection conn = bgConnection.get();
-        Statement truncateTable = conn.createStatement();
-        truncateTable.execute(String.format("TRUNCATE %s;", tableName));
-        if (deleteProvenance) {
-            truncateTable.execute(String.format("TRUNCATE %sEvents;", tableName));
+        Connection conn = bgPool.acquire();
+        try {
+            Statement truncateTable = conn.createStatement();
+            truncateTable.execute(String.format("TRUNCATE %s;", tableName));
+            if (deleteProvenance) {
+                truncateTable.execute(String.format("TRUNCATE %sEvents;", tableName));
+            }
+            truncateTable.close();
+        } finally {
+            bgPool.release(conn);
         }
-        truncateTable.close();
     }
 
     /**
@@ -150,7 +204,17 @@ public class PostgresConnection implements ApiaryConnection {
      * @throws SQLException
      */
     public void createTable(String tableName, String specStr) throws SQLException {
-        Connection conn = bgConnection.get();
+        Connection conn = bgPool.acquire();
+        try {
+            createTable(conn, tableName, specStr);
+        } finally {
+            bgPool.release(conn);
+            PostgresBulkCopy.invalidate(tableName);
+            CapturePlan.invalidate(tableName);
+        }
+    }
+
+    private void createTable(Connection conn, String tableName, String specStr) throws SQLException {
         Statement s = conn.createStatement();
         s.execute(String.format("CREATE TABLE IF NOT EXISTS %s (%s);", tableName, specStr));
         if (!specStr.contains("APIARY_TRANSACTION_ID")) {
@@ -169,39 +233,105 @@ public class PostgresConnection implements ApiaryConnection {
             }
             provTable.append(");");
             s.execute(provTable.toString());
+            if (captureUpdatesFromWal) {
+                // The WAL only logs the key of a deleted row by default, log whole rows to capture their values.
+                s.execute(String.format("ALTER TABLE %s REPLICA IDENTITY FULL;", tableName));
+            }
         }
         s.close();
     }
 
+    /**
+     * Older deployments store transaction snapshots as pg_snapshot text, CREATE TABLE IF NOT EXISTS keeps that column.
+     * Convert it to the binary encoding in place, in one transaction.
+     */
+    private void migrateSnapshotColumn() throws SQLException {
+        Connection conn = bgPool.acquire();
+        try {
+            PreparedStatement typeStmt = conn.prepareStatement("SELECT data_type FROM information_schema.columns " +
+                    "WHERE table_name = lower(?) AND column_name = lower(?);");
+            typeStmt.setString(1, ApiaryConfig.tableFuncInvocations);
+            typeStmt.setString(2, ProvenanceBuffer.PROV_TXN_SNAPSHOT);
+            ResultSet rs = typeStmt.executeQuery();
+            String dataType = rs.next() ? rs.getString(1) : null;
+            rs.close();
+            typeStmt.close();
+            if ((dataType == null) || dataType.equals("bytea")) {
+                return;
+            }
+            logger.info("Migrate {}.{} from {} to bytea", ApiaryConfig.tableFuncInvocations, ProvenanceBuffer.PROV_TXN_SNAPSHOT, dataType);
+            String table = ApiaryConfig.tableFuncInvocations;
+            String column = ProvenanceBuffer.PROV_TXN_SNAPSHOT;
+            String tmpColumn = column + "_BYTES";
+            conn.setAutoCommit(false);
+            try {
+                Statement s = conn.createStatement();
+                s.execute(String.format("ALTER TABLE %s ADD COLUMN %s BYTEA;", table, tmpColumn));
+                PreparedStatement updateStmt = conn.prepareStatement(
+                        String.format("UPDATE %s SET %s = ? WHERE %s = ?;", table, tmpColumn, column));
+                ResultSet snapshots = s.executeQuery(String.format("SELECT DISTINCT %s FROM %s WHERE %s IS NOT NULL;", column, table, column));
+                while (snapshots.next()) {
+                    String snapshot = snapshots.getString(1);
+                    updateStmt.setBytes(1, TransactionSnapshot.parse(snapshot).encode());
+                    updateStmt.setString(2, snapshot);
+                    updateStmt.addBatch();
+                }
+                snapshots.close();
+                updateStmt.executeBatch();
+                updateStmt.close();
+                s.execute(String.format("ALTER TABLE %s DROP COLUMN %s;", table, column));
+                s.execute(String.format("ALTER TABLE %s RENAME COLUMN %s TO %s;", table, tmpColumn, column));
+                s.close();
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                logger.error("Failed to migrate {}.{}: {}", table, column, e.getMessage());
+                throw new RuntimeException("Incompatible provenance schema, cannot migrate the transaction snapshot column.", e);
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } finally {
+            bgPool.release(conn);
+        }
+    }
+
     public void createIndex(String indexString) throws SQLException {
-        Connection c = bgConnection.get();
-        Statement s = c.createStatement();
-        s.execute(indexString);
-        s.close();
+        Connection c = bgPool.acquire();
+        try {
+            Statement s = c.createStatement();
+            s.execute(indexString);
+            s.close();
+        } finally {
+            bgPool.release(c);
+        }
     }
 
     private void rollback(PostgresContext ctxt) throws SQLException {
-        abortedTransactions.add(ctxt.txc);
+        TransactionSet.add(abortedTransactions, ctxt.txc);
         for (String secondary : ctxt.secondaryWrittenKeys.keySet()) {
             Map<String, List<String>> updatedKeys = ctxt.secondaryWrittenKeys.get(secondary);
             ctxt.workerContext.getSecondaryConnection(secondary).rollback(updatedKeys, ctxt.txc);
         }
         ctxt.conn.rollback();
-        abortedTransactions.remove(ctxt.txc);
-        activeTransactions.remove(ctxt.txc);
+        TransactionSet.remove(abortedTransactions, ctxt.txc);
+        TransactionSet.remove(activeTransactions, ctxt.txc);
     }
 
     @Override
     public Connection createNewConnection() {
+        return createNewConnection(ApiaryConfig.isolationLevel);
+    }
+
+    private Connection createNewConnection(int isolationLevel) {
         try {
             Connection conn = ds.getConnection();
             conn.setAutoCommit(false);
-            if (ApiaryConfig.isolationLevel == ApiaryConfig.REPEATABLE_READ) {
+            if (isolationLevel == ApiaryConfig.REPEATABLE_READ) {
                 conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
-            } else if (ApiaryConfig.isolationLevel == ApiaryConfig.SERIALIZABLE) {
+            } else if (isolationLevel == ApiaryConfig.SERIALIZABLE) {
                 conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
             } else {
-                logger.info("Invalid isolation level: {}", ApiaryConfig.isolationLevel);
+                logger.info("Invalid isolation level: {}", isolationLevel);
             }
             return conn;
         } catch (SQLException e) {
@@ -210,25 +340,244 @@ public class PostgresConnection implements ApiaryConnection {
         return null;
     }
 
+    /**
+     * Set the maximum number of pooled connections for an isolation level. Must be called before the pool is first used.
+     * @param isolationLevel    the isolation level (e.g., {@link ApiaryConfig#SERIALIZABLE}).
+     * @param maxSize           the maximum number of connections.
+     */
+    public void setPoolSize(int isolationLevel, int maxSize) {
+        poolSizes.put(isolationLevel, maxSize);
+    }
+
+    /**
+     * Add a hot-standby replica of the database. Read-only functions run on replicas when one is eligible,
+     * see {@link ApiaryConfig#replicaMaxLagBytes} and {@link ApiaryConfig#readYourWrites}.
+     * @param hostname  the replica hostname.
+     * @param port      the replica port.
+     */
+    public void addReadReplica(String hostname, Integer port) {
+        PGSimpleDataSource replicaDs = new PGSimpleDataSource();
+        replicaDs.setServerNames(new String[] {hostname});
+        replicaDs.setPortNumbers(new int[] {port});
+        replicaDs.setDatabaseName(ApiaryConfig.dbosDBName);
+        replicaDs.setUser(ds.getUser());
+        replicaDs.setPassword(ds.getPassword());
+        replicaDs.setSsl(false);
+        replicaDs.setPrepareThreshold(ApiaryConfig.prepareThreshold);
+        String name = hostname + ":" + port;
+        PostgresConnectionPool replicaPool = new PostgresConnectionPool("postgres-replica-" + name, () -> {
+            try {
+                Connection conn = replicaDs.getConnection();
+                conn.setAutoCommit(false);
+                // Standbys only run REPEATABLE READ or weaker.
+                conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+                return conn;
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            return null;
+        }, poolSizes.getOrDefault(ApiaryConfig.isolationLevel, ApiaryConfig.postgresPoolSize), ApiaryConfig.postgresPoolTimeoutMs);
+        replicaRouter.addReplica(new ReadReplicaRouter.ReadReplica(name, replicaDs, replicaPool));
+        logger.info("Added Postgres read replica {}", name);
+    }
+
+    /**
+     * Set how functions are retried after serialization failures.
+     * @param retryPolicy   the retry policy.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Get the connection pool for an isolation level.
+     * @param isolationLevel the isolation level (e.g., {@link ApiaryConfig#SERIALIZABLE}).
+     * @return the connection pool.
+     */
+    public PostgresConnectionPool getPool(int isolationLevel) {
+        return pools.computeIfAbsent(isolationLevel, level -> new PostgresConnectionPool(
+                "postgres-isolation-" + level, () -> createNewConnection(level),
+                poolSizes.getOrDefault(level, ApiaryConfig.postgresPoolSize), ApiaryConfig.postgresPoolTimeoutMs));
+    }
+
+    @Override
+    public Connection acquireConnection() throws SQLException {
+        return getPool(ApiaryConfig.isolationLevel).acquire();
+    }
+
+    @Override
+    public void releaseConnection(Connection conn) {
+        getPool(ApiaryConfig.isolationLevel).release(conn);
+    }
+
+    /**
+     * Open a few pooled connections and describe the statements of the registered functions on each, in the form
+     * they will be executed, so the first requests do not pay for connection setup, parsing, catalog lookups,
+     * and provenance capture plans. Query plans are still built on first execution. Connections already open
+     * in the pool are warmed too; others are opened and prepared on demand.
+     */
+    @Override
+    public void warmup(WorkerContext workerContext, Collection<String> statements) {
+        PostgresConnectionPool pool = getPool(ApiaryConfig.isolationLevel);
+        ProvenanceBuffer provBuff = workerContext.provBuff;
+        boolean captureUpdates = ApiaryConfig.captureUpdates && (provBuff != null);
+        List<String> warmStatements = new ArrayList<>(PostgresContext.getBeginStatements());
+        for (String procedure : statements) {
+            if (PostgresContext.getQueryType(procedure) != ProvenanceBuffer.ExportOperation.READ.getValue() && captureUpdates) {
+                warmStatements.add(captureUpdatesFromWal ?
+                        WalProvenanceCapture.updateMarker + procedure : PostgresContext.interceptUpdate(procedure));
+            } else {
+                warmStatements.add(procedure);
+            }
+        }
+        Set<String> tables = new HashSet<>();
+        List<Connection> conns = new ArrayList<>();
+        int numWarm = Math.min(pool.getMaxSize(), Math.max(ApiaryConfig.postgresWarmConnections, pool.getNumIdle()));
+        try {
+            for (int i = 0; i < numWarm; i++) {
+                Connection c = pool.acquire();
+                if (c == null) {
+                    break;
+                }
+                conns.add(c);
+                warmupConnection(c, warmStatements, (i == 0) ? statements : null, tables, provBuff);
+            }
+        } catch (SQLException e) {
+            logger.info("Failed to open pooled connections: {}", e.getMessage());
+        } finally {
+            for (Connection c : conns) {
+                pool.release(c);
+            }
+        }
+        if (provBuff != null) {
+            provBuff.warmup(ApiaryConfig.tableFuncInvocations);
+            provBuff.warmup(ProvenanceBuffer.PROV_QueryMetadata);
+            for (String table : tables) {
+                provBuff.warmup(table + "Events");
+            }
+        }
+        logger.info("Warmed up {} statements on {} connections", statements.size(), conns.size());
+    }
+
+    // Describe each statement on a connection. If functionStatements is not null, also compute the capture plans
+    // of these statements and collect the tables they record provenance for.
+    private static void warmupConnection(Connection c, List<String> warmStatements, Collection<String> functionStatements,
+                                         Set<String> tables, ProvenanceBuffer provBuff) throws SQLException {
+        PreparedStatementCache statementCache = PreparedStatementCache.get(c);
+        for (String sql : warmStatements) {
+            PreparedStatement pstmt = statementCache.acquire(sql);
+            try {
+                if (PostgresContext.getQueryType(sql) == ProvenanceBuffer.ExportOperation.READ.getValue()) {
+                    ResultSetMetaData rsmd = pstmt.getMetaData();
+                    if ((functionStatements != null) && functionStatements.contains(sql) && (provBuff != null)
+                            && ApiaryConfig.captureReads && (rsmd != null)) {
+                        CapturePlan plan = CapturePlan.prepare(c, sql, rsmd);
+                        for (String eventTable : plan.eventTables) {
+                            tables.add(eventTable.substring(0, eventTable.length() - "Events".length()));
+                        }
+                    }
+                } else {
+                    pstmt.getParameterMetaData();
+                    String table = PostgresContext.getUpdatedTable(sql);
+                    if ((functionStatements != null) && (table != null)) {
+                        tables.add(table);
+                    }
+                }
+            } catch (SQLException e) {
+                // E.g., a statement on a table that does not exist yet. It is prepared on first use.
+                logger.debug("Cannot describe statement {}: {}", sql, e.getMessage());
+                c.rollback();
+            } finally {
+                statementCache.release(pstmt);
+            }
+        }
+        c.rollback();
+    }
+
     @Override
     public FunctionOutput callFunction(String functionName, WorkerContext workerContext, String service, long execID,
                                        long functionID, int replayMode, Object... inputs) {
-        Connection c = connection.get();
+        lastCommitDurable.remove();
+        if (captureUpdatesFromWal && (workerContext.provBuff != null) && (walProvenanceCapture == null)) {
+            startWalProvenanceCapture(workerContext.provBuff);
+        }
+        // Run read-only functions on a replica if one is eligible.
+        ReadReplicaRouter.ReadReplica replica = null;
+        if (replicaRouter.hasReplicas() && workerContext.isReadOnly(functionName)
+                && (replayMode == ApiaryConfig.ReplayMode.NOT_REPLAY.getValue())) {
+            replica = replicaRouter.choose(execID);
+        }
+        PostgresConnectionPool pool = (replica != null) ? replica.pool : getPool(ApiaryConfig.isolationLevel);
+        Connection c;
+        try {
+            c = pool.acquire();
+        } catch (SQLException e) {
+            logger.error("Cannot get a Postgres connection: {}", e.getMessage());
+            return FunctionOutput.failed(e.getMessage());
+        }
+        // Bind the connection to this thread, so secondary contexts can use the same transaction.
+        connection.set(c);
+        try {
+            return callFunctionWithConnection(c, replica != null, functionName, workerContext, service, execID, functionID, replayMode, inputs);
+        } finally {
+            connection.remove();
+            pool.release(c);
+        }
+    }
+
+    private FunctionOutput callFunctionWithConnection(Connection c, boolean onReplica, String functionName, WorkerContext workerContext,
+                                                      String service, long execID, long functionID, int replayMode,
+                                                      Object... inputs) {
         FunctionOutput f = null;
-        while (true) {
+        // Run read-only functions as READ ONLY transactions without assigning a transaction ID.
+        boolean readOnly = workerContext.isReadOnly(functionName) && (replayMode == ApiaryConfig.ReplayMode.NOT_REPLAY.getValue());
+        try {
+            if (c.isReadOnly() != readOnly) {
+                c.setReadOnly(readOnly);
+            }
+        } catch (SQLException e) {
+            logger.info("Failed to set read-only mode: {}", e.getMessage());
+            readOnly = false;
+        }
+        // Loss-tolerant functions commit without waiting for the WAL flush. Replays always commit synchronously.
+        ApiaryConfig.CommitMode commitMode = (replayMode == ApiaryConfig.ReplayMode.NOT_REPLAY.getValue()) ?
+                workerContext.getCommitMode(functionName) : ApiaryConfig.CommitMode.SYNCHRONOUS;
+        boolean asyncCommit = !readOnly && (commitMode != ApiaryConfig.CommitMode.SYNCHRONOUS);
+        for (int attempt = 0; ; attempt++) {
+            Object retryHandle = null;
+            boolean committed = false;
+            TransactionContext placeholder = null;
+            PostgresContext ctxt = null;
             // Record invocation for each try, if we have provenance buffer.
             long startTime = Utilities.getMicroTimestamp();
-            activeTransactionsLock.readLock().lock();
-            PostgresContext ctxt = new PostgresContext(c, workerContext, service, execID, functionID, replayMode,
-                    new HashSet<>(activeTransactions), new HashSet<>(abortedTransactions));
-            activeTransactions.add(ctxt.txc);
-            latestTransactionContext = ctxt.txc;
-            if (ctxt.txc.xmin > biggestxmin) {
-                biggestxmin = ctxt.txc.xmin;
-            }
-            activeTransactionsLock.readLock().unlock();
             try {
-                f = workerContext.getFunction(functionName).apiaryRunFunction(ctxt, inputs);
+                // Back off, or wait for other retries of a hot key, before taking a new snapshot.
+                retryHandle = retryPolicy.beginAttempt(functionName, inputs, attempt);
+                // Register a placeholder before taking the snapshot, so GC never misses this transaction.
+                // Snapshot xmins never decrease, so the biggest xmin so far is a lower bound of ours.
+                // Replicas lag behind the primary, so their snapshots have no known lower bound.
+                long placeholderxmin = onReplica ? Long.MIN_VALUE : biggestxmin.get();
+                placeholder = new TransactionContext(-1, TransactionSnapshot.of(placeholderxmin));
+                TransactionSet.add(activeTransactions, placeholder);
+                PostgresContext newCtxt = new PostgresContext(c, workerContext, service, execID, functionID, replayMode,
+                        activeTransactions.get(), abortedTransactions.get(), readOnly, asyncCommit);
+                if (newCtxt.txc == null) {
+                    newCtxt.releaseStatements();
+                    throw new SQLException("Failed to begin a transaction.");
+                }
+                newCtxt.captureUpdatesFromWal = (walProvenanceCapture != null);
+                ctxt = newCtxt;
+                TransactionSet.replace(activeTransactions, placeholder, ctxt.txc);
+                placeholder = null;
+                if (!onReplica) {
+                    latestTransactionContext = ctxt.txc;
+                    biggestxmin.accumulateAndGet(ctxt.txc.xmin, Math::max);
+                }
+                FunctionOutput output = workerContext.getFunction(functionName).apiaryRunFunction(ctxt, inputs);
                 boolean valid = true;
                 for (String secondary : ctxt.secondaryWrittenKeys.keySet()) {
                     Map<String, List<String>> writtenKeys = ctxt.secondaryWrittenKeys.get(secondary);
@@ -238,19 +587,35 @@ public class PostgresConnection implements ApiaryConnection {
                 }
                 if (valid) {
                     ctxt.conn.commit();
+                    if (asyncCommit && (commitMode == ApiaryConfig.CommitMode.GROUP_COMMIT)) {
+                        lastCommitDurable.set(getGroupCommitCoordinator().register());
+                    }
                     for (String secondary : ctxt.secondaryWrittenKeys.keySet()) {
                         Map<String, List<String>> writtenKeys = ctxt.secondaryWrittenKeys.get(secondary);
                         ctxt.workerContext.getSecondaryConnection(secondary).commit(writtenKeys, ctxt.txc);
                     }
-                    activeTransactions.remove(ctxt.txc);
+                    TransactionSet.remove(activeTransactions, ctxt.txc);
+                    if (!workerContext.isReadOnly(functionName)) {
+                        commitEpoch.incrementAndGet();
+                        replicaRouter.recordCommit(execID);
+                    }
+                    committed = true;
+                    f = output;
                     // Record invocation information.
                     recordTransactionInfo(workerContext, ctxt, startTime, functionName, ProvenanceBuffer.PROV_STATUS_COMMIT);
                     break;
                 } else {
                     rollback(ctxt);
                     recordTransactionInfo(workerContext, ctxt, startTime, functionName, ProvenanceBuffer.PROV_STATUS_ROLLBACK);
+                    if (!retryPolicy.shouldRetry(functionName, inputs, attempt)) {
+                        break;
+                    }
                 }
             } catch (Exception e) {
+                if (ctxt == null) {
+                    logger.info("Failed to start function {}: {}", functionName, e.getMessage());
+                    break;
+                }
                 if (e instanceof InvocationTargetException) {
                     Throwable innerException = e;
                     while (innerException instanceof InvocationTargetException) {
@@ -263,7 +628,10 @@ public class PostgresConnection implements ApiaryConnection {
                             try {
                                 rollback(ctxt);
                                 recordTransactionInfo(workerContext, ctxt, startTime, functionName, ProvenanceBuffer.PROV_STATUS_ROLLBACK);
-                                continue;
+                                if (retryPolicy.shouldRetry(functionName, inputs, attempt)) {
+                                    continue;
+                                }
+                                break;
                             } catch (SQLException ex) {
                                 ex.printStackTrace();
                             }
@@ -277,7 +645,10 @@ public class PostgresConnection implements ApiaryConnection {
                         try {
                             rollback(ctxt);
                             recordTransactionInfo(workerContext, ctxt, startTime, functionName, ProvenanceBuffer.PROV_STATUS_ROLLBACK);
-                            continue;
+                            if (retryPolicy.shouldRetry(functionName, inputs, attempt)) {
+                                continue;
+                            }
+                            break;
                         } catch (SQLException ex) {
                             ex.printStackTrace();
                         }
@@ -289,9 +660,21 @@ public class PostgresConnection implements ApiaryConnection {
                 e.printStackTrace();
                 recordTransactionInfo(workerContext, ctxt, startTime, functionName, ProvenanceBuffer.PROV_STATUS_ABORT);
                 break;
+            } finally {
+                if (placeholder != null) {
+                    TransactionSet.remove(activeTransactions, placeholder);
+                }
+                if (ctxt != null) {
+                    ctxt.releaseStatements();
+                }
+                retryPolicy.endAttempt(retryHandle, functionName, committed);
             }
         }
 
+        if (f == null) {
+            // Gave up retrying, or an unrecoverable error. Never return the output of an aborted attempt.
+            return FunctionOutput.failed(String.format("Function %s did not commit.", functionName));
+        }
         return f;
     }
 
@@ -304,6 +687,7 @@ public class PostgresConnection implements ApiaryConnection {
         long startTime = Utilities.getMicroTimestamp();
         PostgresContext ctxt = new PostgresContext(conn, workerContext, service, execID, functionID, replayMode,
                 new HashSet<>(), new HashSet<>());
+        ctxt.captureUpdatesFromWal = (walProvenanceCapture != null);
         try {
             f = workerContext.getFunction(functionName).apiaryRunFunction(ctxt, inputs);
         } catch (Exception e) {
@@ -311,6 +695,8 @@ public class PostgresConnection implements ApiaryConnection {
             logger.warn("Failed execution during replay.");
             recordTransactionInfo(workerContext, ctxt, startTime, functionName, ProvenanceBuffer.PROV_STATUS_ABORT);
             return null;
+        } finally {
+            ctxt.releaseStatements();
         }
 
         recordTransactionInfo(workerContext, ctxt, startTime, functionName, ProvenanceBuffer.PROV_STATUS_REPLAY);
@@ -318,17 +704,44 @@ public class PostgresConnection implements ApiaryConnection {
         return f;
     }
 
+    @Override
+    public CompletableFuture<Void> whenDurable() {
+        CompletableFuture<Void> durable = lastCommitDurable.get();
+        if (durable == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        lastCommitDurable.remove();
+        return durable;
+    }
+
+    // The transactions running on this database, without a placeholder if there are none.
+    TransactionSet getRunningTransactions() {
+        return activeTransactions.get();
+    }
+
     @Override
     public Set<TransactionContext> getActiveTransactions() {
-        activeTransactionsLock.writeLock().lock();
-        Set<TransactionContext> txSnapshot = new HashSet<>(activeTransactions);
+        // The published set is immutable, so return it without copying.
+        TransactionSet txSnapshot = activeTransactions.get();
         if (txSnapshot.isEmpty()) {
-            txSnapshot.add(new TransactionContext(0, biggestxmin, biggestxmin, new ArrayList<>()));
+            long xmin = biggestxmin.get();
+            return txSnapshot.with(new TransactionContext(0, TransactionSnapshot.of(xmin)));
         }
-        activeTransactionsLock.writeLock().unlock();
         return txSnapshot;
     }
 
+    /**
+     * @return the number of read provenance capture plans computed so far. Repeated queries reuse their plan.
+     */
+    public static long getNumCapturePlans() {
+        return CapturePlan.getNumPrepared();
+    }
+
+    @Override
+    public long getCommitEpoch() {
+        return commitEpoch.get();
+    }
+
     @Override
     public TransactionContext getLatestTransactionContext() {
         return latestTransactionContext;
@@ -359,24 +772,69 @@ public class PostgresConnection implements ApiaryConnection {
         if ((workerContext.provBuff == null) || (ctxt.execID == 0)) {
             return;
         }
-        // Get actual commit timestamp if track_commit_timestamp is available. Otherwise, get the timestamp from Java.
+        // Use the timestamp from Java, unless we can get the actual commit timestamp later.
         long commitTime = Utilities.getMicroTimestamp();
-        if (ApiaryConfig.trackCommitTimestamp && status.equals(ProvenanceBuffer.PROV_STATUS_COMMIT)) {
+        byte[] txnSnapshot = ctxt.txc.snapshot.encode();
+        Object[] entry = new Object[]{ctxt.txc.txID, startTime, ctxt.execID, ctxt.functionID, (short)ctxt.replayMode, ctxt.service, functionName, commitTime, status, txnSnapshot};
+        // Read-only transactions have synthetic IDs (negative) without commit timestamps.
+        if (ApiaryConfig.trackCommitTimestamp && status.equals(ProvenanceBuffer.PROV_STATUS_COMMIT) && (ctxt.txc.txID >= 0)) {
+            // Resolve the actual commit timestamp in the background, the entry is added to the buffer after that.
+            getCommitTimestampResolver().submit(workerContext.provBuff, ApiaryConfig.tableFuncInvocations, ctxt.txc.txID, entry, 7);  // Index of the commit timestamp.
+        } else {
+            workerContext.provBuff.addEntry(ApiaryConfig.tableFuncInvocations, entry);
+        }
+    }
+
+    @Override
+    public synchronized void stopBackgroundTasks() {
+        if (groupCommitCoordinator != null) {
+            groupCommitCoordinator.close();
+            groupCommitCoordinator = null;
+        }
+        if (commitTimestampResolver != null) {
+            commitTimestampResolver.close();
+            commitTimestampResolver = null;
+        }
+        if (walProvenanceCapture != null) {
+            walProvenanceCapture.close();
+            walProvenanceCapture = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        stopBackgroundTasks();
+        replicaRouter.close();
+        for (PostgresConnectionPool pool : pools.values()) {
+            pool.close();
+        }
+        bgPool.close();
+    }
+
+    private synchronized CommitTimestampResolver getCommitTimestampResolver() {
+        if (commitTimestampResolver == null) {
+            commitTimestampResolver = new CommitTimestampResolver(bgPool);
+        }
+        return commitTimestampResolver;
+    }
+
+    private synchronized void startWalProvenanceCapture(ProvenanceBuffer provBuff) {
+        if (captureUpdatesFromWal && (walProvenanceCapture == null)) {
             try {
-                // TODO: future optimization may put this step off the critical path.
-                Connection conn = bgConnection.get();
-                Statement stmt = conn.createStatement();
-                ResultSet rs = stmt.executeQuery(String.format("SELECT CAST(extract(epoch from pg_xact_commit_timestamp(\'%s\'::xid)) * 1000000 AS BIGINT);", ctxt.txc.txID));
-                if (rs.next()) {
-                    commitTime = rs.getLong(1);
-                }
-                rs.close();
-                stmt.close();
+                walProvenanceCapture = new WalProvenanceCapture(bgPool, provBuff);
+                logger.info("Capture update provenance from the WAL, slot {}", ApiaryConfig.walCaptureSlot);
             } catch (SQLException e) {
-                logger.error("Failed to get commit timestamp.");
+                // Only this connection falls back, other databases may still decode their WAL.
+                captureUpdatesFromWal = false;
+                logger.info("Cannot decode the WAL, capture update provenance with RETURNING: {}", e.getMessage());
             }
         }
-        String txnSnapshot = PostgresUtilities.constuctSnapshotStr(ctxt.txc.xmin, ctxt.txc.xmax, ctxt.txc.activeTransactions);
-        workerContext.provBuff.addEntry(ApiaryConfig.tableFuncInvocations, ctxt.txc.txID, startTime, ctxt.execID, ctxt.functionID, (short)ctxt.replayMode, ctxt.service, functionName, commitTime, status, txnSnapshot);
+    }
+
+    private synchronized GroupCommitCoordinator getGroupCommitCoordinator() {
+        if (groupCommitCoordinator == null) {
+            groupCommitCoordinator = new GroupCommitCoordinator(bgPool);
+        }
+        return groupCommitCoordinator;
     }
 }
@@ -0,0 +1,211 @@
+package org.dbos.apiary.postgres;
+
+import org.postgresql.core.BaseConnection;
+import org.postgresql.core.TransactionState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * A bounded pool of Postgres connections, independent of the number of threads using it.
+ * Idle connections are health-checked before reuse, and connections are reset when returned.
+ */
+public class PostgresConnectionPool {
+    private static final Logger logger = LoggerFactory.getLogger(PostgresConnectionPool.class);
+
+    private static final long validationIntervalMs = 30000;  // Check idle connections older than this before reuse.
+    private static final int validationTimeoutSec = 1;
+
+    private static class PooledConnection {
+        final Connection conn;
+        long lastUsedMs;
+
+        PooledConnection(Connection conn) {
+            this.conn = conn;
+            this.lastUsedMs = System.currentTimeMillis();
+        }
+    }
+
+    private final String name;
+    private final Supplier<Connection> factory;
+    private final int maxSize;
+    private final long acquireTimeoutMs;
+    private final Semaphore permits;
+    private final Deque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+    private volatile boolean closed = false;
+
+    // Metrics.
+    private final AtomicLong numAcquires = new AtomicLong(0);
+    private final AtomicLong totalWaitNs = new AtomicLong(0);
+    private final AtomicLong numTimeouts = new AtomicLong(0);
+    private final AtomicLong numCreated = new AtomicLong(0);
+    private final AtomicLong numDiscarded = new AtomicLong(0);
+
+    /**
+     * @param name              the pool name, for logging.
+     * @param factory           creates a new connection, or returns null on failure.
+     * @param maxSize           the maximum number of connections in use or idle.
+     * @param acquireTimeoutMs  how long to wait for a connection before failing.
+     */
+    public PostgresConnectionPool(String name, Supplier<Connection> factory, int maxSize, long acquireTimeoutMs) {
+        assert (maxSize > 0);
+        this.name = name;
+        this.factory = factory;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMs = acquireTimeoutMs;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Get a connection from the pool, waiting if all connections are in use.
+     * @return a connection. Must be returned with {@link #release(Connection)}.
+     * @throws SQLException if no connection is available before the timeout, or if we cannot connect.
+     */
+    public Connection acquire() throws SQLException {
+        if (closed) {
+            throw new SQLException(String.format("Pool %s is closed.", name));
+        }
+        long tStart = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+                numTimeouts.incrementAndGet();
+                throw new SQLException(String.format("Timed out waiting for a connection from pool %s.", name));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection.");
+        }
+        numAcquires.incrementAndGet();
+        totalWaitNs.addAndGet(System.nanoTime() - tStart);
+        try {
+            PooledConnection pc;
+            while ((pc = idle.pollFirst()) != null) {
+                if (isHealthy(pc)) {
+                    return pc.conn;
+                }
+                discard(pc.conn);
+            }
+            Connection conn = factory.get();
+            if (conn == null) {
+                throw new SQLException(String.format("Failed to create a connection for pool %s.", name));
+            }
+            numCreated.incrementAndGet();
+            return conn;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Return a connection to the pool. Any open transaction is rolled back. Connections returned after close are closed.
+     */
+    public void release(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        try {
+            if (closed) {
+                discard(conn);
+            } else if (conn.isClosed()) {
+                numDiscarded.incrementAndGet();
+                PreparedStatementCache.remove(conn);
+            } else {
+                reset(conn);
+                // Most recently used first, so rarely used connections age out.
+                idle.addFirst(new PooledConnection(conn));
+                if (closed) {
+                    close();  // Raced with close, do not leave the connection idle.
+                }
+            }
+        } catch (SQLException e) {
+            logger.info("Discard connection from pool {}: {}", name, e.getMessage());
+            discard(conn);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void reset(Connection conn) throws SQLException {
+        if (conn instanceof BaseConnection) {
+            TransactionState state = ((BaseConnection) conn).getTransactionState();
+            if (state != TransactionState.IDLE) {
+                conn.rollback();
+            }
+        }
+        if (conn.isReadOnly()) {
+            conn.setReadOnly(false);
+        }
+    }
+
+    private boolean isHealthy(PooledConnection pc) {
+        try {
+            if (pc.conn.isClosed()) {
+                return false;
+            }
+            if (System.currentTimeMillis() - pc.lastUsedMs > validationIntervalMs) {
+                return pc.conn.isValid(validationTimeoutSec);
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void discard(Connection conn) {
+        numDiscarded.incrementAndGet();
+        PreparedStatementCache.remove(conn);
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            // Ignore, already broken.
+        }
+    }
+
+    /**
+     * Close all idle connections, and connections in use once they are returned. Later acquires fail.
+     */
+    public void close() {
+        closed = true;
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null) {
+            discard(pc.conn);
+        }
+    }
+
+    /* Metrics. */
+
+    public int getMaxSize() { return maxSize; }
+
+    public int getNumActive() { return maxSize - permits.availablePermits(); }
+
+    public int getNumIdle() { return idle.size(); }
+
+    public long getNumAcquires() { return numAcquires.get(); }
+
+    public long getNumTimeouts() { return numTimeouts.get(); }
+
+    public long getNumCreated() { return numCreated.get(); }
+
+    public long getNumDiscarded() { return numDiscarded.get(); }
+
+    public long getAverageWaitNs() {
+        long n = numAcquires.get();
+        return (n == 0) ? 0 : totalWaitNs.get() / n;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: active=%d idle=%d max=%d acquires=%d avgWaitUs=%d timeouts=%d created=%d discarded=%d",
+                name, getNumActive(), getNumIdle(), maxSize, getNumAcquires(), getAverageWaitNs() / 1000,
+                getNumTimeouts(), getNumCreated(), getNumDiscarded());
+    }
+}
@@ -1,9 +1,11 @@
 package org.dbos.apiary.postgres;
 
+import org.dbos.apiary.connection.ApiaryConnection;
 import org.dbos.apiary.connection.ApiarySecondaryConnection;
 import org.dbos.apiary.function.*;
 import org.dbos.apiary.utilities.ApiaryConfig;
 import org.dbos.apiary.utilities.Utilities;
+import org.postgresql.core.BaseConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -11,7 +13,8 @@ import java.sql.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.stream.Collectors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * PostgresContext is a context for Apiary-Postgres functions.
@@ -21,6 +24,7 @@ public class PostgresContext extends ApiaryContext {
     private static final Logger logger = LoggerFactory.getLogger(PostgresContext.class);
     // This connection ties to all prepared statements in one transaction.
     final Connection conn;
+    final PreparedStatementCache statementCache;
     private AtomicLong functionIDCounter = new AtomicLong(0);
     private long currentID = functionID;
 
@@ -31,42 +35,95 @@ public class PostgresContext extends ApiaryContext {
 
     private static final String checkMetadata = String.format("SELECT * FROM %s WHERE %s=? AND %s=?", ProvenanceBuffer.PROV_QueryMetadata, ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID, ProvenanceBuffer.PROV_QUERY_SEQNUM);
 
+    // Get the transaction ID, the snapshot, and which of the given transactions aborted, in one round trip.
+    private static final String beginTransaction = "SELECT txid_current(), pg_current_snapshot(), " +
+            "ARRAY(SELECT t FROM unnest(?::bigint[]) AS t WHERE txid_status(t) = 'aborted');";
+    // Commit without waiting for the WAL flush, the setting is local to the transaction.
+    private static final String beginAsyncCommitTransaction = "SELECT txid_current(), pg_current_snapshot(), " +
+            "ARRAY(SELECT t FROM unnest(?::bigint[]) AS t WHERE txid_status(t) = 'aborted'), " +
+            "set_config('synchronous_commit', 'off', true);";
+    // Read-only transactions do not assign a transaction ID.
+    private static final String beginReadOnlyTransaction = "SELECT txid_current_if_assigned(), pg_current_snapshot(), " +
+            "ARRAY(SELECT t FROM unnest(?::bigint[]) AS t WHERE txid_status(t) = 'aborted');";
+
+    // Read-only transactions without provenance still need distinct IDs, e.g., in the active transaction set.
+    private static final ReadOnlyTxIDGenerator localReadOnlyTxIDs = new ReadOnlyTxIDGenerator(0);
+
+    static List<String> getBeginStatements() {
+        return List.of(beginTransaction, beginAsyncCommitTransaction, beginReadOnlyTransaction);
+    }
+
+    // Read-only transactions get negative synthetic IDs as provenance keys, so they never collide with Postgres txids.
+    private long nextReadOnlyTxID() {
+        return (workerContext.provBuff != null) ? workerContext.provBuff.nextReadOnlyTxID() : localReadOnlyTxIDs.next();
+    }
+
     public TransactionContext txc;
 
     Map<String, Map<String, List<String>>> secondaryWrittenKeys = new HashMap<>();
 
+    // Set by the connection if its WAL decoder is running, otherwise updates are captured with RETURNING.
+    boolean captureUpdatesFromWal = false;
+
+    // Shared by nested function calls, which run in this transaction. Null if disabled.
+    final TransactionReadCache readCache = ApiaryConfig.transactionReadCache ? new TransactionReadCache() : null;
+
     public PostgresContext(Connection c, WorkerContext workerContext, String service, long execID, long functionID,
                            int replayMode,
-                           Set<TransactionContext> activeTransactions, Set<TransactionContext> abortedTransactions) {
+                           Collection<TransactionContext> activeTransactions, Collection<TransactionContext> abortedTransactions) {
+        this(c, workerContext, service, execID, functionID, replayMode, activeTransactions, abortedTransactions, false);
+    }
+
+    public PostgresContext(Connection c, WorkerContext workerContext, String service, long execID, long functionID,
+                           int replayMode,
+                           Collection<TransactionContext> activeTransactions, Collection<TransactionContext> abortedTransactions,
+                           boolean readOnly) {
+        this(c, workerContext, service, execID, functionID, replayMode, activeTransactions, abortedTransactions, readOnly, false);
+    }
+
+    public PostgresContext(Connection c, WorkerContext workerContext, String service, long execID, long functionID,
+                           int replayMode,
+                           Collection<TransactionContext> activeTransactions, Collection<TransactionContext> abortedTransactions,
+                           boolean readOnly, boolean asyncCommit) {
         super(workerContext, service, execID, functionID, replayMode);
         this.conn = c;
+        this.statementCache = PreparedStatementCache.get(c);
         long tmpReplayTxID = -1;
         try {
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery("select txid_current();");
+            // For epoxy transactions only, check which active transactions have aborted.
+            // Skip read-only transactions, they have synthetic IDs and cannot abort writes.
+            Long[] checkTxIDs = ApiaryConfig.XDBTransactions ?
+                    activeTransactions.stream().map(t -> t.txID).filter(t -> t >= 0).toArray(Long[]::new) : new Long[0];
+            PreparedStatement beginStmt = statementCache.acquire(readOnly ? beginReadOnlyTransaction :
+                    (asyncCommit ? beginAsyncCommitTransaction : beginTransaction));
+            beginStmt.setArray(1, conn.createArrayOf("bigint", checkTxIDs));
+            ResultSet rs = beginStmt.executeQuery();
             rs.next();
             long txID = rs.getLong(1);
-            rs = stmt.executeQuery("select pg_current_snapshot();");
-            rs.next();
-            String snapshotString = rs.getString(1);
-            long xmin = PostgresUtilities.parseXmin(snapshotString);
-            long xmax = PostgresUtilities.parseXmax(snapshotString);
-            List<Long> activeTxIDs = PostgresUtilities.parseActiveTransactions(snapshotString);
+            if (rs.wasNull()) {
+                txID = nextReadOnlyTxID();
+            }
+            String snapshotString = rs.getString(2);
+            Long[] abortedTxIDs = (Long[]) rs.getArray(3).getArray();
+            rs.close();
+            statementCache.release(beginStmt);
+            TransactionSnapshot snapshot = TransactionSnapshot.parse(snapshotString);
 
-            // For epoxy transactions only.
             if (ApiaryConfig.XDBTransactions) {
-                activeTxIDs.addAll(abortedTransactions.stream().map(t -> t.txID).filter(t -> t < xmax).collect(Collectors.toList()));
-                for (TransactionContext t : activeTransactions) {
-                    if (t.txID < xmax && !activeTxIDs.contains(t.txID)) {
-                        rs = stmt.executeQuery("select txid_status(" + t.txID + ");");
-                        rs.next();
-                        if (rs.getString("txid_status").equals("aborted")) {
-                            activeTxIDs.add(t.txID);
-                        }
+                // Aborted transactions are never visible, treat them as active.
+                long[] invisibleTxIDs = new long[abortedTransactions.size() + abortedTxIDs.length];
+                int n = 0;
+                for (TransactionContext t : abortedTransactions) {
+                    if (t.txID >= 0) {
+                        invisibleTxIDs[n++] = t.txID;
                     }
                 }
+                for (Long t : abortedTxIDs) {
+                    invisibleTxIDs[n++] = t;
+                }
+                snapshot = snapshot.withActiveTransactions(invisibleTxIDs, n);
             }
-            this.txc = new TransactionContext(txID, xmin, xmax, activeTxIDs);
+            this.txc = new TransactionContext(txID, snapshot);
 
             // Look up the original transaction ID if it's a single replay.
             if (replayMode == ApiaryConfig.ReplayMode.SINGLE.getValue()) {
@@ -91,6 +148,9 @@ public class PostgresContext extends ApiaryContext {
     public FunctionOutput apiaryCallFunction(String name, Object... inputs) throws Exception {
         ApiaryFunction f = workerContext.getFunction(name);
         String functionType = workerContext.getFunctionType(name);
+        if (functionType.equals(ApiaryConfig.postgres) && isOnRemoteShard(inputs)) {
+            return callRemoteShard(name, inputs);
+        }
         if (functionType.equals(ApiaryConfig.postgres) || functionType.equals(ApiaryConfig.stateless)) {
             // Record invocation.
             long startTime = Utilities.getMicroTimestamp();
@@ -123,21 +183,83 @@ public class PostgresContext extends ApiaryContext {
         }
     }
 
-    private void prepareStatement(PreparedStatement ps, Object[] input) throws SQLException {
+    @Override
+    public List<FunctionOutput> apiaryCallFunctionBatch(String name, List<Object[]> inputs) throws Exception {
+        String functionType = workerContext.getFunctionType(name);
+        if (!functionType.equals(ApiaryConfig.postgres) && !functionType.equals(ApiaryConfig.stateless)) {
+            return super.apiaryCallFunctionBatch(name, inputs);
+        }
+        if (functionType.equals(ApiaryConfig.postgres)) {
+            for (Object[] input : inputs) {
+                if (isOnRemoteShard(input)) {
+                    // Some tuples live on other shards, call each function on its own shard.
+                    return super.apiaryCallFunctionBatch(name, inputs);
+                }
+            }
+        }
+        long startTime = Utilities.getMicroTimestamp();
+        List<FunctionOutput> outputs = workerContext.getFunction(name).apiaryRunBatchFunction(this, inputs);
+        if (outputs == null) {
+            // No vectorized form.
+            return super.apiaryCallFunctionBatch(name, inputs);
+        }
+        // Record each logical invocation, as if the function was called once per tuple.
+        if ((workerContext.provBuff != null) && (execID != 0l)) {
+            long endTime = Utilities.getMicroTimestamp();
+            for (int i = 0; i < inputs.size(); i++) {
+                workerContext.provBuff.addEntry(ApiaryConfig.tableFuncInvocations, txc.txID, startTime, execID, functionID, (short) replayMode, service, name, endTime, ProvenanceBuffer.PROV_STATUS_EMBEDDED);
+            }
+        }
+        return outputs;
+    }
+
+    // True if the database is sharded and a function with these inputs belongs to another shard.
+    private boolean isOnRemoteShard(Object[] inputs) {
+        ApiaryConnection primary = workerContext.getPrimaryConnection();
+        return (primary instanceof ShardedPostgresConnection) && !((ShardedPostgresConnection) primary).isLocal(inputs);
+    }
+
+    // A function on another shard cannot join this transaction. Run read-only functions as their own
+    // transaction on that shard, but reject writes, which could not commit atomically with this transaction.
+    private FunctionOutput callRemoteShard(String name, Object[] inputs) throws Exception {
+        if (!workerContext.isReadOnly(name)) {
+            throw new RuntimeException(String.format("Cannot call function %s, it writes to another shard.", name));
+        }
+        FunctionOutput fo = workerContext.getPrimaryConnection().callFunction(name, workerContext, service, execID, functionID, replayMode, inputs);
+        if (fo.isFailed()) {
+            throw new RuntimeException(fo.getErrorMessage());
+        }
+        return fo;
+    }
+
+    void prepareStatement(PreparedStatement ps, Object[] input) throws SQLException {
+        prepareStatement(ps, input, 0);
+    }
+
+    // Set the inputs as parameters starting after the given offset.
+    void prepareStatement(PreparedStatement ps, Object[] input, int offset) throws SQLException {
         for (int i = 0; i < input.length; i++) {
             Object o = input[i];
+            int index = offset + i + 1;
             if (o instanceof Integer) {
-                ps.setInt(i + 1, (Integer) o);
+                ps.setInt(index, (Integer) o);
             } else if (o instanceof String) {
-                ps.setString(i + 1, (String) o);
+                ps.setString(index, (String) o);
             } else if (o instanceof Long)  {
-                ps.setLong(i + 1, (Long) o);
+                ps.setLong(index, (Long) o);
             } else if (o instanceof Float) {
-                ps.setFloat(i + 1, (Float) o);
+                ps.setFloat(index, (Float) o);
             } else if (o instanceof Double) {
-                ps.setDouble(i + 1, (Double) o);
+                ps.setDouble(index, (Double) o);
             } else if (o instanceof Timestamp) {
-                ps.setTimestamp(i + 1, (Timestamp) o);
+                ps.setTimestamp(index, (Timestamp) o);
+            } else if (o instanceof int[]) {
+                // Arrays bind to array parameters, e.g., col = ANY(?).
+                ps.setArray(index, conn.createArrayOf("integer", Arrays.stream((int[]) o).boxed().toArray()));
+            } else if (o instanceof long[]) {
+                ps.setArray(index, conn.createArrayOf("bigint", Arrays.stream((long[]) o).boxed().toArray()));
+            } else if (o instanceof String[]) {
+                ps.setArray(index, conn.createArrayOf("varchar", (String[]) o));
             } else {
                 logger.info("type {} for input {} not recognized ", o.toString(), i);
                 assert (false); // TODO: More types.
@@ -156,69 +278,168 @@ public class PostgresContext extends ApiaryContext {
             replayUpdate(procedure, input);
             return;
         }
+        if (readCache != null) {
+            readCache.invalidate(procedure);
+        }
 
-        if (ApiaryConfig.captureUpdates && (this.workerContext.provBuff != null)) {
+        if (ApiaryConfig.captureUpdates && captureUpdatesFromWal && (this.workerContext.provBuff != null)) {
+            // Mark the update in the WAL in the same round trip, the decoder attributes the following changes to it.
+            int querySeqNum = txc.querySeqNum.getAndIncrement();
+            PreparedStatement pstmt = statementCache.acquire(WalProvenanceCapture.updateMarker + procedure);
+            pstmt.setString(1, Integer.toString(querySeqNum));
+            prepareStatement(pstmt, input, 1);
+            pstmt.execute();
+            pstmt.getMoreResults();
+            statementCache.release(pstmt);
+            recordUpdateMetadata(querySeqNum, getQueryString(procedure, input), procedure);
+        } else if (ApiaryConfig.captureUpdates && (this.workerContext.provBuff != null)) {
             // Append the "RETURNING *" clause to the SQL query, so we can capture data updates.
             int querySeqNum = txc.querySeqNum.getAndIncrement();
             String interceptedQuery = interceptUpdate((String) procedure);
-            ResultSet rs;
-            ResultSetMetaData rsmd;
-            String tableName;
-            int exportOperation = Utilities.getQueryType(interceptedQuery);
             // First, prepare statement. Then, execute.
-            PreparedStatement pstmt = conn.prepareStatement(interceptedQuery);
+            PreparedStatement pstmt = statementCache.acquire(interceptedQuery);
             prepareStatement(pstmt, input);
-            rs = pstmt.executeQuery();
-            rsmd = rs.getMetaData();
-            tableName = rsmd.getTableName(1);
-            long timestamp = Utilities.getMicroTimestamp();
-            int numCol = rsmd.getColumnCount();
-            // Record query metadata.
-            // TODO: maybe we should record metaata before query execution. So we know what happened even if the query failed.
-            Object[] metaData = new Object[5];
-            metaData[0] = txc.txID;
-            metaData[1] = querySeqNum;
-            metaData[2] = pstmt.toString();
-            metaData[3] = tableName;
-            metaData[4] = "*";
-            workerContext.provBuff.addEntry(ProvenanceBuffer.PROV_QueryMetadata, metaData);
-
-            // Record provenance data.
-            while (rs.next()) {
-                Object[] rowData = new Object[numCol + 4];
-                rowData[0] = txc.txID;
-                rowData[1] = timestamp;
-                rowData[2] = exportOperation;
-                rowData[3] = querySeqNum;
-                for (int i = 1; i <= numCol; i++) {
-                    rowData[i + 3] = rs.getObject(i);
-                }
-                workerContext.provBuff.addEntry(tableName + "Events", rowData);
-            }
+            ResultSet rs = pstmt.executeQuery();
+            captureUpdate(querySeqNum, pstmt.toString(), getQueryType(interceptedQuery), rs);
+            rs.close();
+            statementCache.release(pstmt);
         } else {
             // First, prepare statement. Then, execute.
-            PreparedStatement pstmt = conn.prepareStatement(procedure);
+            PreparedStatement pstmt = statementCache.acquire(procedure);
             prepareStatement(pstmt, input);
             pstmt.executeUpdate();
+            statementCache.release(pstmt);
         }
     }
 
     /**
-     * Execute bulk inserts into a table in a batch. Do not have provenance capture for this type of operation.
+     * Execute bulk inserts into a table in a batch.
+     * Large inserts of the form INSERT INTO table [(columns)] VALUES (?, ...) are streamed with a binary COPY.
+     * Provenance is captured only if {@link ApiaryConfig#captureBulkInserts} is set.
      * @param procedure a SQL DML statement (INSERT).
      * @param inputs     an array of input parameters for the SQL statement.
      */
     public void insertMany(String procedure, List<Object[]> inputs) throws SQLException {
-        PreparedStatement pstmt = conn.prepareStatement(procedure);
+        if (readCache != null) {
+            readCache.invalidate(procedure);
+        }
+        if ((ApiaryConfig.bulkCopyThreshold >= 0) && (inputs.size() >= ApiaryConfig.bulkCopyThreshold)
+                && (this.replayMode != ApiaryConfig.ReplayMode.SINGLE.getValue())
+                && PostgresBulkCopy.copy(this, procedure, inputs)) {
+            return;
+        }
+        PreparedStatement pstmt = statementCache.acquire(procedure);
         for (Object[] input : inputs) {
             prepareStatement(pstmt, input);
             pstmt.addBatch();
         }
         pstmt.executeBatch();
-        pstmt.close();
+        statementCache.release(pstmt);
         return;
     }
 
+    /**
+     * Execute a database update once per set of input parameters, in one round trip.
+     * Unlike {@link #insertMany(String, List)}, provenance is captured as if each execution were a separate
+     * {@link #executeUpdate(String, Object...)}, with its own query sequence number.
+     * @param procedure a SQL DML statement (e.g., INSERT, UPDATE, DELETE).
+     * @param inputs    the input parameters of each execution.
+     * @return the number of rows changed by each execution, or {@link Statement#SUCCESS_NO_INFO} in replay.
+     */
+    public int[] executeUpdateBatch(String procedure, List<Object[]> inputs) throws SQLException {
+        int[] updateCounts = new int[inputs.size()];
+        if (inputs.isEmpty()) {
+            return updateCounts;
+        }
+        if (this.replayMode == ApiaryConfig.ReplayMode.SINGLE.getValue()) {
+            for (Object[] input : inputs) {
+                executeUpdate(procedure, input);
+            }
+            Arrays.fill(updateCounts, Statement.SUCCESS_NO_INFO);
+            return updateCounts;
+        }
+        boolean captureUpdates = ApiaryConfig.captureUpdates && (this.workerContext.provBuff != null);
+        if (captureUpdates && captureUpdatesFromWal) {
+            // Each execution needs its own marker before it in the WAL.
+            PostgresStatementBatch batch = newBatch();
+            for (Object[] input : inputs) {
+                batch.addUpdate(procedure, input);
+            }
+            batch.execute();
+            for (int i = 0; i < updateCounts.length; i++) {
+                updateCounts[i] = batch.getUpdateCount(i);
+            }
+            return updateCounts;
+        }
+        if (readCache != null) {
+            readCache.invalidate(procedure);
+        }
+        if (!captureUpdates) {
+            PreparedStatement pstmt = statementCache.acquire(procedure);
+            for (Object[] input : inputs) {
+                prepareStatement(pstmt, input);
+                pstmt.addBatch();
+            }
+            updateCounts = pstmt.executeBatch();
+            statementCache.release(pstmt);
+            return updateCounts;
+        }
+        String interceptedQuery = interceptUpdate(procedure);
+        int exportOperation = getQueryType(interceptedQuery);
+        if (conn.unwrap(BaseConnection.class).getQueryExecutor().isReWriteBatchedInsertsEnabled()) {
+            // Rewritten batches report no update count per execution, so their rows cannot be attributed.
+            return captureUpdatesSeparately(interceptedQuery, exportOperation, inputs);
+        }
+        // The same statement as executeUpdate, so the query strings match. The driver collects the returned
+        // rows of all executions, in order.
+        PreparedStatement pstmt = statementCache.acquireReturning(interceptedQuery);
+        int firstSeqNum = txc.querySeqNum.getAndAdd(inputs.size());
+        String[] queryStrings = new String[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            prepareStatement(pstmt, inputs.get(i));
+            queryStrings[i] = pstmt.toString();
+            pstmt.addBatch();
+        }
+        updateCounts = pstmt.executeBatch();
+        ResultSet rs = pstmt.getGeneratedKeys();
+        // The update counts tell which returned rows belong to which execution.
+        for (int i = 0; i < updateCounts.length; i++) {
+            if (updateCounts[i] < 0) {
+                rs.close();
+                statementCache.release(pstmt);
+                throw new SQLException(String.format("No update count for execution %d of a batch, cannot capture its provenance.", i));
+            }
+            captureUpdate(firstSeqNum + i, queryStrings[i], exportOperation, rs, updateCounts[i]);
+        }
+        rs.close();
+        statementCache.release(pstmt);
+        return updateCounts;
+    }
+
+    // Run each execution as its own update, capturing its rows like executeUpdate.
+    private int[] captureUpdatesSeparately(String interceptedQuery, int exportOperation, List<Object[]> inputs) throws SQLException {
+        int[] updateCounts = new int[inputs.size()];
+        PreparedStatement pstmt = statementCache.acquire(interceptedQuery);
+        for (int i = 0; i < inputs.size(); i++) {
+            int querySeqNum = txc.querySeqNum.getAndIncrement();
+            prepareStatement(pstmt, inputs.get(i));
+            ResultSet rs = pstmt.executeQuery();
+            updateCounts[i] = captureUpdate(querySeqNum, pstmt.toString(), exportOperation, rs);
+            rs.close();
+        }
+        statementCache.release(pstmt);
+        return updateCounts;
+    }
+
+    /**
+     * Create a batch of statements that are sent to the database in one round trip.
+     * Use it for independent statements, e.g., one update per item.
+     * @return an empty statement batch.
+     */
+    public PostgresStatementBatch newBatch() {
+        return new PostgresStatementBatch(this);
+    }
+
     /**
      * Execute a database query.
      * @param procedure a SQL query.
@@ -229,95 +450,166 @@ public class PostgresContext extends ApiaryContext {
         if (this.replayMode == ApiaryConfig.ReplayMode.SINGLE.getValue()) {
             return replayQuery(procedure, input);
         }
-        PreparedStatement pstmt = conn.prepareStatement(procedure, ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+        if ((readCache != null) && TransactionReadCache.isCacheable(procedure)) {
+            return executeCachedQuery(procedure, input);
+        }
+        // The caller owns the result set, so the statement stays leased until the transaction ends.
+        // Forward-only with a fetch size, so the driver streams rows through a cursor instead of materializing them.
+        PreparedStatement pstmt = statementCache.acquire(procedure);
+        pstmt.setFetchSize(ApiaryConfig.queryFetchSize);
         if (input != null) {
             prepareStatement(pstmt, input);
         }
         ResultSet rs = pstmt.executeQuery();
         if (workerContext.provBuff != null) {
-            int querySeqNum = txc.querySeqNum.getAndIncrement();
-            Object[] metaData = new Object[5];
-            metaData[0] = txc.txID;
-            metaData[1] = querySeqNum;
-            metaData[2] = pstmt.toString();
-            if (!ApiaryConfig.captureReads) {
-                metaData[3] = "N/A";
-                metaData[4] = "N/A";
-                // Only capture metadata.
-                workerContext.provBuff.addEntry(ProvenanceBuffer.PROV_QueryMetadata, metaData);
-            } else {
-                long timestamp = Utilities.getMicroTimestamp();
-                int exportOperation = Utilities.getQueryType(procedure);
-                // Record provenance data.
-                Map<String, Object[]> tableToRowData = new HashMap<>();
-                List<String> tableNames = new ArrayList<>();
-                List<String> projection = new ArrayList<>();
-                if (!rs.next()) {
-                    // Still need to record the table name and projection.
-                    for (int colNum = 1; colNum <= rs.getMetaData().getColumnCount(); colNum++) {
-                        String tableName = rs.getMetaData().getTableName(colNum);
-                        if (!tableToRowData.containsKey(tableName)) {
-                            tableToRowData.put(tableName, null);
-                        }
-                        projection.add(rs.getMetaData().getColumnName(colNum));
-                    }
-                    tableNames.addAll(tableToRowData.keySet());
-                    tableToRowData.clear();
-                } else {
-                    do {
-                        for (int colNum = 1; colNum <= rs.getMetaData().getColumnCount(); colNum++) {
-                            String tableName = rs.getMetaData().getTableName(colNum);
-                            Map<String, Integer> schemaMap = getSchemaMap(tableName);
-                            if (!tableToRowData.containsKey(tableName)) {
-                                Object[] rowData = new Object[4 + schemaMap.size()];
-                                rowData[0] = txc.txID;
-                                rowData[1] = timestamp;
-                                rowData[2] = exportOperation;
-                                rowData[3] = querySeqNum;
-                                tableToRowData.put(tableName, rowData);
-                            }
-                            Object[] rowData = tableToRowData.get(tableName);
-                            String columnName = rs.getMetaData().getColumnName(colNum);
-                            if (schemaMap.containsKey(columnName)) {
-                                int index = schemaMap.get(rs.getMetaData().getColumnName(colNum));
-                                rowData[4 + index] = rs.getObject(colNum);
-                            }
-                            if (tableNames.isEmpty()) {
-                                // Only add it once.
-                                projection.add(columnName);
-                            }
-                        }
-                        for (String tableName : tableToRowData.keySet()) {
-                            workerContext.provBuff.addEntry(tableName + "Events", tableToRowData.get(tableName));
-                        }
-                        if (tableNames.isEmpty()) {
-                            tableNames.addAll(tableToRowData.keySet());
-                        }
-                        tableToRowData.clear();
-                    } while (rs.next());
-                }
-                // Record query metadata.
-                // TODO: maybe find ways to parse SQL qeury and record metadata before execution.
-                metaData[3] = String.join(",", tableNames);
-                metaData[4] = String.join(",", projection);
-                workerContext.provBuff.addEntry(ProvenanceBuffer.PROV_QueryMetadata, metaData);
-                rs.beforeFirst();
-            }
+            return captureQuery(txc.querySeqNum.getAndIncrement(), pstmt.toString(), procedure, rs);
         }
         return rs;
     }
 
     /* --------------- For internal use ----------------- */
 
-    private String interceptUpdate(String query) {
-        // Remove the semicolon.
-        String res = query.replace(';', ' ').toUpperCase(Locale.ROOT);
-        res += " RETURNING *;";
+    // Serve a query from the transaction's read cache. A cached read is still recorded as a read in provenance.
+    private ResultSet executeCachedQuery(String procedure, Object... input) throws SQLException {
+        TransactionReadCache.CachedQuery cached = readCache.get(procedure, input);
+        if (cached == null) {
+            PreparedStatement pstmt = statementCache.acquire(procedure);
+            if (input != null) {
+                prepareStatement(pstmt, input);
+            }
+            // The rows are copied into the cache, so the statement can be reused right away.
+            cached = readCache.put(procedure, input, pstmt.toString(), pstmt.executeQuery());
+            statementCache.release(pstmt);
+        }
+        ResultSet rs = cached.newCursor();
+        if (workerContext.provBuff != null) {
+            return captureQuery(txc.querySeqNum.getAndIncrement(), cached.queryString, procedure, rs);
+        }
+        return rs;
+    }
+
+    // The statement with its parameters, as recorded in provenance. Preparing a statement does not contact the database.
+    String getQueryString(String sql, Object[] input) throws SQLException {
+        PreparedStatement pstmt = statementCache.acquire(sql);
+        prepareStatement(pstmt, input);
+        String queryString = pstmt.toString();
+        statementCache.release(pstmt);
+        return queryString;
+    }
+
+    // Record the metadata of an update whose rows are captured from the WAL.
+    void recordUpdateMetadata(int querySeqNum, String queryString, String procedure) {
+        String tableName = getUpdatedTable(procedure);
+        Object[] metaData = new Object[]{txc.txID, querySeqNum, queryString, (tableName == null) ? "N/A" : tableName, "*"};
+        workerContext.provBuff.addEntry(ProvenanceBuffer.PROV_QueryMetadata, metaData);
+    }
+
+    private static final Pattern updateTablePattern = Pattern.compile(
+            "^\\s*(?:INSERT\\s+INTO|UPDATE|DELETE\\s+FROM)\\s+(?:ONLY\\s+)?([\\w.\"]+)", Pattern.CASE_INSENSITIVE);
+
+    // The table written by a DML statement, without the schema, or null if unknown.
+    static String getUpdatedTable(String procedure) {
+        Matcher m = updateTablePattern.matcher(procedure);
+        if (!m.find()) {
+            return null;
+        }
+        String table = m.group(1);
+        table = table.substring(table.lastIndexOf('.') + 1);
+        // Unquoted identifiers are folded to lower case.
+        return table.startsWith("\"") ? table.replace("\"", "") : table.toLowerCase(Locale.ROOT);
+    }
+
+    // Record the provenance of an update from its RETURNING * rows. Return the number of updated rows.
+    int captureUpdate(int querySeqNum, String queryString, int exportOperation, ResultSet rs) throws SQLException {
+        return captureUpdate(querySeqNum, queryString, exportOperation, rs, Integer.MAX_VALUE);
+    }
+
+    // Record the provenance of an update from the next maxRows rows of a result, e.g., the rows returned by a batch.
+    int captureUpdate(int querySeqNum, String queryString, int exportOperation, ResultSet rs, int maxRows) throws SQLException {
+        ResultSetMetaData rsmd = rs.getMetaData();
+        String tableName = rsmd.getTableName(1);
+        long timestamp = Utilities.getMicroTimestamp();
+        int numCol = rsmd.getColumnCount();
+        // Record query metadata.
+        // TODO: maybe we should record metaata before query execution. So we know what happened even if the query failed.
+        Object[] metaData = new Object[5];
+        metaData[0] = txc.txID;
+        metaData[1] = querySeqNum;
+        metaData[2] = queryString;
+        metaData[3] = tableName;
+        metaData[4] = "*";
+        workerContext.provBuff.addEntry(ProvenanceBuffer.PROV_QueryMetadata, metaData);
+
+        // Record provenance data.
+        int numRows = 0;
+        while ((numRows < maxRows) && rs.next()) {
+            Object[] rowData = new Object[numCol + 4];
+            rowData[0] = txc.txID;
+            rowData[1] = timestamp;
+            rowData[2] = exportOperation;
+            rowData[3] = querySeqNum;
+            for (int i = 1; i <= numCol; i++) {
+                rowData[i + 3] = rs.getObject(i);
+            }
+            workerContext.provBuff.addEntry(tableName + "Events", rowData);
+            numRows++;
+        }
+        return numRows;
+    }
+
+    // Record the provenance of a query. Rows are recorded as the function reads them.
+    ResultSet captureQuery(int querySeqNum, String queryString, String procedure, ResultSet rs) throws SQLException {
+        if (!ApiaryConfig.captureReads) {
+            // Only capture metadata.
+            Object[] metaData = new Object[]{txc.txID, querySeqNum, queryString, "N/A", "N/A"};
+            workerContext.provBuff.addEntry(ProvenanceBuffer.PROV_QueryMetadata, metaData);
+            return rs;
+        }
+        return CapturingResultSet.capture(this, rs, querySeqNum, queryString, procedure);
+    }
+
+    // Called when the transaction ends.
+    void releaseStatements() {
+        statementCache.releaseAll();
+    }
+
+    // Rewritten statements and query types, by SQL text. Function statements are constants, so these stay small.
+    private static final int maxCachedStatements = 4096;
+    private static final Map<String, String> interceptedUpdates = new ConcurrentHashMap<>();
+    private static final Map<String, Integer> queryTypes = new ConcurrentHashMap<>();
+
+    static String interceptUpdate(String query) {
+        String res = interceptedUpdates.get(query);
+        if (res == null) {
+            // Remove the semicolon.
+            res = query.replace(';', ' ').toUpperCase(Locale.ROOT);
+            res += " RETURNING *;";
+            if (interceptedUpdates.size() >= maxCachedStatements) {
+                interceptedUpdates.clear();
+            }
+            interceptedUpdates.put(query, res);
+        }
+        return res;
+    }
+
+    static int getQueryType(String query) {
+        Integer res = queryTypes.get(query);
+        if (res == null) {
+            res = Utilities.getQueryType(query.toUpperCase(Locale.ROOT));
+            if (queryTypes.size() >= maxCachedStatements) {
+                queryTypes.clear();
+            }
+            queryTypes.put(query, res);
+        }
         return res;
     }
 
     private static final Map<String, Map<String, Integer>> schemaMapCache = new ConcurrentHashMap<>();
-    private Map<String, Integer> getSchemaMap(String tableName) throws SQLException {
+    Map<String, Integer> getSchemaMap(String tableName) throws SQLException {
+        return getSchemaMap(conn, tableName);
+    }
+
+    static Map<String, Integer> getSchemaMap(Connection conn, String tableName) throws SQLException {
         if (!schemaMapCache.containsKey(tableName)) {
             Map<String, Integer> schemaMap = new HashMap<>();
             ResultSet columns = conn.getMetaData().getColumns(null, null, tableName, null);
@@ -331,6 +623,10 @@ public class PostgresContext extends ApiaryContext {
         return schemaMapCache.get(tableName);
     }
 
+    static void invalidateSchemaMap(String tableName) {
+        schemaMapCache.keySet().removeIf(t -> t.equalsIgnoreCase(tableName));
+    }
+
     private void replayUpdate(String procedure, Object... input) throws SQLException {
         // TODO: support multiple replay modes. The current mode skips the insert during replay.
         int seqNum = this.txc.querySeqNum.getAndIncrement();
@@ -352,6 +648,10 @@ public class PostgresContext extends ApiaryContext {
         ResultSet rs = pstmt.executeQuery();
         if (rs.next()) {
             originalQuery = rs.getString(ProvenanceBuffer.PROV_QUERY_STRING);
+            if (!originalQuery.toUpperCase(Locale.ROOT).contains(" RETURNING")) {
+                // Captured from the WAL, recorded as written.
+                currentQuery = getQueryString(procedure, input);
+            }
             assert (currentQuery.equalsIgnoreCase(originalQuery));
             logger.info("Replay original update: {}", originalQuery.split(" RETURNING")[0]);
         } else {
@@ -0,0 +1,201 @@
+package org.dbos.apiary.postgres;
+
+import org.dbos.apiary.utilities.ApiaryConfig;
+import org.dbos.apiary.utilities.Utilities;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch of SQL statements executed in one network round trip.
+ * The statements are joined into one multi-statement prepared statement, so the driver sends them together
+ * and the database runs them in order within the current transaction.
+ * Provenance is captured per statement, as if they were executed one by one.
+ */
+public class PostgresStatementBatch {
+
+    private static class BatchStatement {
+        final String procedure;
+        final Object[] input;
+        final boolean isQuery;
+        final int querySeqNum;
+        String sql;  // The statement sent to the database.
+        ResultSet rs = null;
+        int updateCount = -1;
+
+        BatchStatement(String procedure, Object[] input, boolean isQuery, int querySeqNum) {
+            this.procedure = procedure;
+            this.input = (input == null) ? new Object[0] : input;
+            this.isQuery = isQuery;
+            this.querySeqNum = querySeqNum;
+        }
+    }
+
+    private final PostgresContext ctxt;
+    private final List<BatchStatement> statements = new ArrayList<>();
+    private boolean executed = false;
+
+    PostgresStatementBatch(PostgresContext ctxt) {
+        this.ctxt = ctxt;
+    }
+
+    /**
+     * Add a database update to the batch.
+     * @param procedure a SQL DML statement (e.g., INSERT, UPDATE, DELETE).
+     * @param input     input parameters for the SQL statement.
+     * @return the index of the statement in the batch.
+     */
+    public int addUpdate(String procedure, Object... input) {
+        return add(procedure, input, false);
+    }
+
+    /**
+     * Add a database query to the batch.
+     * @param procedure a SQL query.
+     * @param input     input parameters for the SQL statement.
+     * @return the index of the statement in the batch.
+     */
+    public int addQuery(String procedure, Object... input) {
+        return add(procedure, input, true);
+    }
+
+    private int add(String procedure, Object[] input, boolean isQuery) {
+        assert (!executed);
+        // Assign sequence numbers in program order, the same as executing the statements one by one.
+        // Replay assigns them when it executes each statement.
+        boolean captured = (ctxt.workerContext.provBuff != null) && (isQuery || ApiaryConfig.captureUpdates)
+                && (ctxt.replayMode != ApiaryConfig.ReplayMode.SINGLE.getValue());
+        int querySeqNum = captured ? ctxt.txc.querySeqNum.getAndIncrement() : -1;
+        statements.add(new BatchStatement(procedure, input, isQuery, querySeqNum));
+        return statements.size() - 1;
+    }
+
+    public int size() {
+        return statements.size();
+    }
+
+    /**
+     * Execute all statements in the batch in one round trip.
+     */
+    public void execute() throws SQLException {
+        assert (!executed);
+        executed = true;
+        if (statements.isEmpty()) {
+            return;
+        }
+        if (ctxt.readCache != null) {
+            for (BatchStatement s : statements) {
+                if (!s.isQuery) {
+                    ctxt.readCache.invalidate(s.procedure);
+                }
+            }
+        }
+        if (ctxt.replayMode == ApiaryConfig.ReplayMode.SINGLE.getValue()) {
+            // Replay reads the original provenance one statement at a time.
+            for (BatchStatement s : statements) {
+                if (s.isQuery) {
+                    s.rs = ctxt.executeQuery(s.procedure, s.input);
+                } else {
+                    ctxt.executeUpdate(s.procedure, s.input);
+                }
+            }
+            return;
+        }
+        boolean captureUpdates = ApiaryConfig.captureUpdates && (ctxt.workerContext.provBuff != null);
+        // From the WAL, updates are preceded by a marker statement instead of intercepted.
+        boolean walMarkers = captureUpdates && ctxt.captureUpdatesFromWal;
+        StringBuilder sql = new StringBuilder();
+        int numParams = 0;
+        for (BatchStatement s : statements) {
+            s.sql = (!s.isQuery && captureUpdates && !walMarkers) ? PostgresContext.interceptUpdate(s.procedure) : s.procedure;
+            if (sql.length() > 0) {
+                sql.append(' ');
+            }
+            if (!s.isQuery && walMarkers) {
+                sql.append(WalProvenanceCapture.updateMarker);
+                numParams++;
+            }
+            sql.append(stripSemicolon(s.sql)).append(';');
+            numParams += s.input.length;
+        }
+        Object[] params = new Object[numParams];
+        int offset = 0;
+        for (BatchStatement s : statements) {
+            if (!s.isQuery && walMarkers) {
+                params[offset++] = Integer.toString(s.querySeqNum);
+            }
+            System.arraycopy(s.input, 0, params, offset, s.input.length);
+            offset += s.input.length;
+        }
+
+        // The joined SQL depends on which statements are batched and in what order, so it rarely repeats.
+        // Do not cache it, or it would evict the single statements the cache is for.
+        PreparedStatement pstmt = ctxt.statementCache.acquireTransient(sql.toString());
+        ctxt.prepareStatement(pstmt, params);
+        boolean isResultSet = pstmt.execute();
+        boolean ownsResults = false;
+        for (int i = 0; i < statements.size(); i++) {
+            BatchStatement s = statements.get(i);
+            if (i > 0) {
+                // Keep earlier result sets open, the caller reads them after the batch.
+                isResultSet = pstmt.getMoreResults(Statement.KEEP_CURRENT_RESULT);
+            }
+            if (!s.isQuery && walMarkers) {
+                // Skip the result of the marker.
+                isResultSet = pstmt.getMoreResults(Statement.KEEP_CURRENT_RESULT);
+                ctxt.recordUpdateMetadata(s.querySeqNum, getQueryString(s), s.procedure);
+            }
+            if (isResultSet) {
+                ResultSet rs = pstmt.getResultSet();
+                if (s.isQuery) {
+                    ownsResults = true;
+                    s.rs = (ctxt.workerContext.provBuff != null) ? ctxt.captureQuery(s.querySeqNum, getQueryString(s), s.procedure, rs) : rs;
+                } else {
+                    // An intercepted update, its RETURNING rows are the provenance.
+                    s.updateCount = ctxt.captureUpdate(s.querySeqNum, getQueryString(s), PostgresContext.getQueryType(s.sql), rs);
+                    rs.close();
+                }
+            } else {
+                s.updateCount = pstmt.getUpdateCount();
+            }
+        }
+        if (!ownsResults) {
+            ctxt.statementCache.release(pstmt);
+        }
+    }
+
+    // The statement with its parameters, as recorded by single statement execution.
+    private String getQueryString(BatchStatement s) throws SQLException {
+        return ctxt.getQueryString(s.sql, s.input);
+    }
+
+    private static String stripSemicolon(String sql) {
+        int end = sql.length();
+        while (end > 0 && (sql.charAt(end - 1) == ';' || Character.isWhitespace(sql.charAt(end - 1)))) {
+            end--;
+        }
+        return sql.substring(0, end);
+    }
+
+    /**
+     * @param index the index returned by {@link #addQuery(String, Object...)}.
+     * @return the result of a query in the batch.
+     */
+    public ResultSet getResultSet(int index) {
+        assert (executed);
+        return statements.get(index).rs;
+    }
+
+    /**
+     * @param index the index returned by {@link #addUpdate(String, Object...)}.
+     * @return the number of rows changed by an update in the batch.
+     */
+    public int getUpdateCount(int index) {
+        assert (executed);
+        return statements.get(index).updateCount;
+    }
+}
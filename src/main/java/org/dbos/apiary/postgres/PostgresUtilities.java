@@ -1,12 +1,10 @@
 package org.dbos.apiary.postgres;
 
+import org.dbos.apiary.function.TransactionSnapshot;
+
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.stream.Collectors;
 
 public class PostgresUtilities {
 
@@ -24,26 +22,18 @@ public class PostgresUtilities {
     }
 
     public static long parseXmin(String snapshotString) {
-        return Long.parseLong(snapshotString.split(":")[0]);
+        return TransactionSnapshot.parse(snapshotString).xmin;
     }
 
     public static long parseXmax(String snapshotString) {
-        return Long.parseLong(snapshotString.split(":")[1]);
+        return TransactionSnapshot.parse(snapshotString).xmax;
     }
 
-    public static List<Long> parseActiveTransactions(String snapshotString) {
-        String[] splitString = snapshotString.split(":");
-        if (splitString.length == 3 ) {
-            return Arrays.stream(snapshotString.split(":")[2].split(",")).map(Long::parseLong).collect(Collectors.toList());
-        } else {
-            return new ArrayList<>();
-        }
+    public static long[] parseActiveTransactions(String snapshotString) {
+        return TransactionSnapshot.parse(snapshotString).getActiveTransactions();
     }
 
-    public static String constuctSnapshotStr(long xmin, long xmax, List<Long> activeTxns) {
-        List<String> activeStr = activeTxns.stream()
-                .map(String::valueOf)
-                .collect(Collectors.toList());
-        return String.format("%d:%d:%s", xmin, xmax, String.join(",", activeStr));
+    public static String constuctSnapshotStr(long xmin, long xmax, long[] activeTxns) {
+        return TransactionSnapshot.of(xmin, xmax, activeTxns).toString();
     }
 }
@@ -0,0 +1,169 @@
+package org.dbos.apiary.postgres;
+
+import org.dbos.apiary.utilities.ApiaryConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A per-connection LRU cache of prepared statements, keyed by SQL text and result set type.
+ * A cached statement is leased until released, so a statement whose result set may still be read
+ * is never re-executed. If the cached statement is leased, acquire returns a transient statement instead.
+ * Transient statements are closed by {@link #releaseAll()} at the end of each transaction.
+ * The cache and its statements strongly reference the connection, so whoever closes a connection
+ * must drop its cache with {@link #remove(Connection)}.
+ */
+public class PreparedStatementCache {
+    private static final Logger logger = LoggerFactory.getLogger(PreparedStatementCache.class);
+
+    private static final Map<Connection, PreparedStatementCache> caches = new ConcurrentHashMap<>();
+
+    private static class CachedStatement {
+        final PreparedStatement pstmt;
+        boolean leased = false;
+
+        CachedStatement(PreparedStatement pstmt) {
+            this.pstmt = pstmt;
+        }
+    }
+
+    private final Connection conn;
+    private final Map<String, CachedStatement> statements;
+    private final Map<PreparedStatement, CachedStatement> leased = new IdentityHashMap<>();
+    private final List<PreparedStatement> transients = new ArrayList<>();
+
+    private PreparedStatementCache(Connection conn, int capacity) {
+        this.conn = conn;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() <= capacity) {
+                    return false;
+                }
+                CachedStatement s = eldest.getValue();
+                if (s.leased) {
+                    // Close it when released.
+                    leased.remove(s.pstmt);
+                    transients.add(s.pstmt);
+                } else {
+                    closeQuietly(s.pstmt);
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return the statement cache of a connection.
+     */
+    public static PreparedStatementCache get(Connection conn) {
+        return caches.computeIfAbsent(conn, c -> new PreparedStatementCache(c, ApiaryConfig.statementCacheSize));
+    }
+
+    /**
+     * Drop the statement cache of a connection that is being closed, and close its statements.
+     */
+    public static void remove(Connection conn) {
+        PreparedStatementCache cache = caches.remove(conn);
+        if (cache != null) {
+            cache.closeAll();
+        }
+    }
+
+    private synchronized void closeAll() {
+        releaseAll();
+        for (CachedStatement s : statements.values()) {
+            closeQuietly(s.pstmt);
+        }
+        statements.clear();
+    }
+
+    public PreparedStatement acquire(String sql) throws SQLException {
+        return acquire(sql, ResultSet.TYPE_FORWARD_ONLY);
+    }
+
+    public synchronized PreparedStatement acquire(String sql, int resultSetType) throws SQLException {
+        return acquire(resultSetType + ":" + sql, () -> conn.prepareStatement(sql, resultSetType, ResultSet.CONCUR_READ_ONLY));
+    }
+
+    /**
+     * Acquire a DML statement whose updated rows are returned by {@link PreparedStatement#getGeneratedKeys()},
+     * also when it is executed as a batch.
+     */
+    public synchronized PreparedStatement acquireReturning(String sql) throws SQLException {
+        return acquire("returning:" + sql, () -> conn.prepareStatement(sql, new String[]{"*"}));
+    }
+
+    /**
+     * Prepare a statement that is not cached, for SQL that rarely repeats, so it does not evict hot statements.
+     * It is closed when released, or at the end of the transaction.
+     */
+    public synchronized PreparedStatement acquireTransient(String sql) throws SQLException {
+        PreparedStatement pstmt = conn.prepareStatement(sql);
+        transients.add(pstmt);
+        return pstmt;
+    }
+
+    private interface StatementFactory {
+        PreparedStatement prepare() throws SQLException;
+    }
+
+    private PreparedStatement acquire(String key, StatementFactory factory) throws SQLException {
+        CachedStatement s = statements.get(key);
+        if ((s != null) && s.pstmt.isClosed()) {
+            statements.remove(key);
+            s = null;
+        }
+        if (s == null) {
+            s = new CachedStatement(factory.prepare());
+            statements.put(key, s);
+        } else if (s.leased) {
+            PreparedStatement pstmt = factory.prepare();
+            transients.add(pstmt);
+            return pstmt;
+        }
+        s.leased = true;
+        leased.put(s.pstmt, s);
+        return s.pstmt;
+    }
+
+    /**
+     * Return a statement whose results are fully consumed, so it can be reused in the same transaction.
+     */
+    public synchronized void release(PreparedStatement pstmt) {
+        CachedStatement s = leased.remove(pstmt);
+        if (s != null) {
+            s.leased = false;
+        } else if (transients.remove(pstmt)) {
+            closeQuietly(pstmt);
+        }
+    }
+
+    /**
+     * Release all statements leased in this transaction and close transient ones.
+     */
+    public synchronized void releaseAll() {
+        for (CachedStatement s : leased.values()) {
+            s.leased = false;
+        }
+        leased.clear();
+        for (PreparedStatement pstmt : transients) {
+            closeQuietly(pstmt);
+        }
+        transients.clear();
+    }
+
+    private static void closeQuietly(PreparedStatement pstmt) {
+        try {
+            pstmt.close();
+        } catch (SQLException e) {
+            logger.info("Failed to close statement: {}", e.getMessage());
+        }
+    }
+}
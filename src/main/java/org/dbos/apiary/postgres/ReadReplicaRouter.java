@@ -0,0 +1,222 @@
+package org.dbos.apiary.postgres;
+
+import org.dbos.apiary.utilities.ApiaryConfig;
+import org.postgresql.ds.PGSimpleDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Route read-only functions to hot-standby replicas.
+ * A background thread polls the WAL position of the primary and the replay position of each replica.
+ * A replica is eligible if its replay lags the primary by at most {@link ApiaryConfig#replicaMaxLagBytes},
+ * and, in read-your-writes mode, if it has replayed the last commit of the calling client.
+ * Among eligible replicas, the less lagging of two random choices is picked.
+ */
+public class ReadReplicaRouter {
+    private static final Logger logger = LoggerFactory.getLogger(ReadReplicaRouter.class);
+
+    // WAL positions as byte offsets. A standby has no current WAL position, only a replay position.
+    private static final String getPrimaryLsn = "SELECT pg_current_wal_lsn() - '0/0'::pg_lsn;";
+    private static final String getReplayLsn = "SELECT COALESCE(pg_last_wal_replay_lsn(), pg_current_wal_lsn()) - '0/0'::pg_lsn;";
+    // The end of the WAL inserted so far, past the commit record of every transaction committed before.
+    private static final String getCommitLsn = "SELECT pg_current_wal_insert_lsn() - '0/0'::pg_lsn;";
+
+    public static class ReadReplica {
+        final String name;
+        final PGSimpleDataSource ds;
+        final PostgresConnectionPool pool;
+        private Connection monitorConn = null;  // Autocommit, only used by the poller thread.
+        volatile long replayLsn = -1;
+        volatile long lagBytes = Long.MAX_VALUE;
+
+        public ReadReplica(String name, PGSimpleDataSource ds, PostgresConnectionPool pool) {
+            this.name = name;
+            this.ds = ds;
+            this.pool = pool;
+        }
+
+        boolean isEligible(long minLsn) {
+            return (replayLsn >= minLsn) && (lagBytes <= ApiaryConfig.replicaMaxLagBytes);
+        }
+
+        /**
+         * Record the WAL positions last polled from the primary and this replica.
+         */
+        public void updatePosition(long primaryLsn, long replayLsn) {
+            this.replayLsn = replayLsn;
+            this.lagBytes = Math.max(0, primaryLsn - replayLsn);
+        }
+    }
+
+    private final PostgresConnectionPool primaryPool;
+    private final List<ReadReplica> replicas = new CopyOnWriteArrayList<>();
+    private final Map<Integer, Long> clientCommitLsns = new ConcurrentHashMap<>();
+    private Thread pollerThread = null;
+
+    /**
+     * @param primaryPool an autocommit connection pool to the primary, used to poll its WAL position.
+     */
+    public ReadReplicaRouter(PostgresConnectionPool primaryPool) {
+        this.primaryPool = primaryPool;
+    }
+
+    public synchronized void addReplica(ReadReplica replica) {
+        replicas.add(replica);
+        if (pollerThread == null) {
+            pollerThread = new Thread(this::pollerThread);
+            pollerThread.setDaemon(true);
+            pollerThread.start();
+        }
+    }
+
+    boolean hasReplicas() {
+        return !replicas.isEmpty();
+    }
+
+    /**
+     * Choose a replica to run a read-only function.
+     * @param execID the execution ID of the function, its high bits identify the client.
+     * @return a replica, or null if none is eligible and the function should run on the primary.
+     */
+    public ReadReplica choose(long execID) {
+        long minLsn = ApiaryConfig.readYourWrites ? clientCommitLsns.getOrDefault(getClientID(execID), 0L) : 0L;
+        List<ReadReplica> eligible = new ArrayList<>(replicas.size());
+        for (ReadReplica r : replicas) {
+            if (r.isEligible(minLsn)) {
+                eligible.add(r);
+            }
+        }
+        if (eligible.isEmpty()) {
+            return null;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        ReadReplica a = eligible.get(random.nextInt(eligible.size()));
+        ReadReplica b = eligible.get(random.nextInt(eligible.size()));
+        return (a.lagBytes <= b.lagBytes) ? a : b;
+    }
+
+    /**
+     * In read-your-writes mode, record the WAL position after a committed write of a client.
+     * The position is read on the autocommit pool, so the function's connection stays untouched.
+     * @param execID the execution ID of the function, called after its commit returned.
+     */
+    void recordCommit(long execID) {
+        if (!ApiaryConfig.readYourWrites || (execID == 0) || replicas.isEmpty()) {
+            return;
+        }
+        Connection c = null;
+        try {
+            c = primaryPool.acquire();
+            recordCommitLsn(execID, queryLsn(c, getCommitLsn));
+        } catch (SQLException e) {
+            // The write is committed, but we cannot tell when replicas have it. Read from the primary from now on.
+            logger.info("Failed to get the commit WAL position: {}", e.getMessage());
+            recordCommitLsn(execID, Long.MAX_VALUE);
+        } finally {
+            primaryPool.release(c);
+        }
+    }
+
+    /**
+     * Require later read-only functions of the client to run on replicas that replayed the WAL up to a position.
+     * @param execID    the execution ID of a function of the client.
+     * @param lsn       the WAL position of the client's last write.
+     */
+    public void recordCommitLsn(long execID, long lsn) {
+        clientCommitLsns.merge(getClientID(execID), lsn, Math::max);
+    }
+
+    /**
+     * Stop polling and close the connections to every replica.
+     */
+    public synchronized void close() {
+        if (pollerThread != null) {
+            pollerThread.interrupt();
+            try {
+                pollerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            pollerThread = null;
+        }
+        for (ReadReplica r : replicas) {
+            r.lagBytes = Long.MAX_VALUE;
+            closeQuietly(r.monitorConn);
+            r.monitorConn = null;
+            r.pool.close();
+        }
+    }
+
+    // Matches the execution IDs generated by ApiaryWorkerClient.
+    private static int getClientID(long execID) {
+        return (int) (execID >>> 48);
+    }
+
+    private void pollerThread() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(ApiaryConfig.replicaLagPollMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long primaryLsn;
+            Connection conn = null;
+            try {
+                conn = primaryPool.acquire();
+                primaryLsn = queryLsn(conn, getPrimaryLsn);
+            } catch (SQLException e) {
+                logger.info("Failed to get the primary WAL position: {}", e.getMessage());
+                continue;
+            } finally {
+                primaryPool.release(conn);
+            }
+            for (ReadReplica r : replicas) {
+                try {
+                    if (r.monitorConn == null || r.monitorConn.isClosed()) {
+                        r.monitorConn = r.ds.getConnection();
+                        r.monitorConn.setAutoCommit(true);
+                    }
+                    r.updatePosition(primaryLsn, queryLsn(r.monitorConn, getReplayLsn));
+                } catch (SQLException e) {
+                    // Stop routing to an unreachable replica until it answers again.
+                    logger.info("Failed to get the replay position of replica {}: {}", r.name, e.getMessage());
+                    r.lagBytes = Long.MAX_VALUE;
+                    closeQuietly(r.monitorConn);
+                    r.monitorConn = null;
+                }
+            }
+        }
+    }
+
+    private static long queryLsn(Connection conn, String query) throws SQLException {
+        Statement s = conn.createStatement();
+        ResultSet rs = s.executeQuery(query);
+        rs.next();
+        long lsn = rs.getLong(1);
+        rs.close();
+        s.close();
+        return lsn;
+    }
+
+    private static void closeQuietly(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            // Ignore, already broken.
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.dbos.apiary.postgres;
+
+/**
+ * Decide how a function is retried after its transaction fails because of a concurrent conflict.
+ */
+public interface RetryPolicy {
+
+    /**
+     * Called before each attempt of a function. May block, to back off or to queue behind other retries.
+     * @param functionName  the function name.
+     * @param inputs        the function inputs.
+     * @param attempt       the attempt number, starting from 0.
+     * @return a handle passed to {@link #endAttempt(Object, String, boolean)}.
+     */
+    Object beginAttempt(String functionName, Object[] inputs, int attempt);
+
+    /**
+     * Called after each attempt, whether it committed or not.
+     * @param handle        the handle returned by {@link #beginAttempt(String, Object[], int)}.
+     * @param functionName  the function name.
+     * @param committed     true if the attempt committed.
+     */
+    void endAttempt(Object handle, String functionName, boolean committed);
+
+    /**
+     * Called after an attempt aborts because of a conflict.
+     * @return true to retry the function, false to give up.
+     */
+    boolean shouldRetry(String functionName, Object[] inputs, int attempt);
+}
@@ -0,0 +1,180 @@
+package org.dbos.apiary.postgres;
+
+import org.dbos.apiary.function.FunctionOutput;
+import org.dbos.apiary.function.TransactionContext;
+import org.dbos.apiary.function.WorkerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A Postgres database hash-partitioned across several instances, one per worker.
+ * Rows are partitioned by the first argument of the functions that access them, so each function runs
+ * as a single-shard transaction. Each worker is co-located with its shard and connects to it;
+ * the partition map routes function calls to the worker owning their shard, like VoltDB partitions.
+ */
+public class ShardedPostgresConnection extends PostgresConnection {
+    private static final Logger logger = LoggerFactory.getLogger(ShardedPostgresConnection.class);
+
+    private final List<String> shardHostnames;
+    private final int localShard;
+    private final Integer port;
+    private final String databaseUsername;
+    private final String databasePassword;
+    private final Map<Integer, String> partitionHostMap = new HashMap<>();
+    // Connections to other shards, only used for calls routed to the wrong worker.
+    private final Map<Integer, PostgresConnection> remoteShards = new ConcurrentHashMap<>();
+
+    /**
+     * Connect to the local shard of a sharded Postgres database.
+     *
+     * @param shardHostnames   the hostnames of all shards, in partition order. Each runs a worker and a Postgres instance.
+     * @param localShard       the partition of the shard this worker is co-located with.
+     * @param port             the Postgres database port.
+     * @param databaseUsername the Postgres database username.
+     * @param databasePassword the Postgres database password.
+     * @throws SQLException
+     */
+    public ShardedPostgresConnection(List<String> shardHostnames, int localShard, Integer port,
+                                     String databaseUsername, String databasePassword) throws SQLException {
+        super(shardHostnames.get(localShard), port, databaseUsername, databasePassword);
+        this.shardHostnames = List.copyOf(shardHostnames);
+        this.localShard = localShard;
+        this.port = port;
+        this.databaseUsername = databaseUsername;
+        this.databasePassword = databasePassword;
+        for (int i = 0; i < shardHostnames.size(); i++) {
+            partitionHostMap.put(i, shardHostnames.get(i));
+        }
+        logger.info("Sharded Postgres: local shard {} of {}", localShard, shardHostnames.size());
+    }
+
+    /**
+     * @param key               the partition key, the first argument of a function.
+     * @param numPartitions     the number of shards.
+     * @return the shard of the key. Equal keys map to the same shard on every worker.
+     */
+    public static int getPartition(Object key, int numPartitions) {
+        long h;
+        if (key instanceof String) {
+            h = key.hashCode();  // Specified by String, stable across JVMs.
+        } else if ((key instanceof Long) || (key instanceof Integer) || (key instanceof Short) || (key instanceof Byte)) {
+            h = ((Number) key).longValue();
+        } else if (key instanceof String[]) {
+            h = Arrays.hashCode((String[]) key);
+        } else if (key instanceof int[]) {
+            h = Arrays.hashCode((int[]) key);
+        } else if (key instanceof long[]) {
+            h = Arrays.hashCode((long[]) key);
+        } else {
+            h = Objects.hashCode(key);
+        }
+        // Mix the bits (the MurmurHash3 finalizer), so sequential keys spread over shards.
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) Math.floorMod(h, (long) numPartitions);
+    }
+
+    private int getPartition(Object[] inputs) {
+        if ((inputs == null) || (inputs.length == 0)) {
+            // No partition key, so the function reads no partitioned rows and can run on any shard.
+            return localShard;
+        }
+        return getPartition(inputs[0], shardHostnames.size());
+    }
+
+    /**
+     * @param inputs    the arguments of a function.
+     * @return true if the function belongs to the shard this worker is co-located with.
+     */
+    public boolean isLocal(Object... inputs) {
+        return getPartition(inputs) == localShard;
+    }
+
+    @Override
+    public FunctionOutput callFunction(String functionName, WorkerContext workerContext, String service, long execID,
+                                       long functionID, int replayMode, Object... inputs) {
+        int partition = getPartition(inputs);
+        if (partition == localShard) {
+            return super.callFunction(functionName, workerContext, service, execID, functionID, replayMode, inputs);
+        }
+        // The caller sent this function to the wrong worker, run it on its shard remotely.
+        logger.debug("Function {} routed to shard {} but belongs to shard {}", functionName, localShard, partition);
+        PostgresConnection remote = getRemoteShard(partition);
+        return remote.callFunction(functionName, workerContext, service, execID, functionID, replayMode, inputs);
+    }
+
+    private PostgresConnection getRemoteShard(int partition) {
+        // The worker owning the shard set up its database, so only open connection pools to it.
+        return remoteShards.computeIfAbsent(partition, p ->
+                PostgresConnection.connectRemote(shardHostnames.get(p), port, databaseUsername, databasePassword));
+    }
+
+    // Writes to remote shards also change the data read by this worker's functions.
+    @Override
+    public long getCommitEpoch() {
+        long epoch = super.getCommitEpoch();
+        for (PostgresConnection remote : remoteShards.values()) {
+            epoch += remote.getCommitEpoch();
+        }
+        return epoch;
+    }
+
+    @Override
+    public Set<TransactionContext> getActiveTransactions() {
+        Set<TransactionContext> active = super.getActiveTransactions();
+        if (remoteShards.isEmpty()) {
+            return active;
+        }
+        Set<TransactionContext> all = new HashSet<>(active);
+        for (PostgresConnection remote : remoteShards.values()) {
+            all.addAll(remote.getRunningTransactions());
+        }
+        return all;
+    }
+
+    @Override
+    public synchronized void stopBackgroundTasks() {
+        super.stopBackgroundTasks();
+        for (PostgresConnection remote : remoteShards.values()) {
+            remote.stopBackgroundTasks();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        for (PostgresConnection remote : remoteShards.values()) {
+            remote.close();
+        }
+        remoteShards.clear();
+    }
+
+    /**
+     * @return the partition of the shard this worker is co-located with.
+     */
+    public int getLocalShard() {
+        return localShard;
+    }
+
+    @Override
+    public int getNumPartitions() {
+        return shardHostnames.size();
+    }
+
+    @Override
+    public String getHostname(Object... input) {
+        return shardHostnames.get(getPartition(input));
+    }
+
+    @Override
+    public Map<Integer, String> getPartitionHostMap() {
+        return partitionHostMap;
+    }
+}
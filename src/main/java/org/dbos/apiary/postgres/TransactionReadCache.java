@@ -0,0 +1,102 @@
+package org.dbos.apiary.postgres;
+
+import org.dbos.apiary.function.ProvenanceBuffer;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetFactory;
+import javax.sql.rowset.RowSetProvider;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Query results cached for the duration of one transaction.
+ * All reads of a transaction, including those of nested function calls, see the same snapshot, so a query
+ * returns the same rows until the transaction itself writes to a table the query reads.
+ * An update evicts every cached query whose text mentions the updated table. Writes to other tables through
+ * views, triggers, or foreign key cascades are not detected, and queries reading those tables stay cached.
+ */
+class TransactionReadCache {
+    private static RowSetFactory rowSetFactory = null;
+
+    static class CachedQuery {
+        final String queryString;  // The statement with its parameters, as recorded in provenance.
+        final CachedRowSet rows;
+
+        CachedQuery(String queryString, CachedRowSet rows) {
+            this.queryString = queryString;
+            this.rows = rows;
+        }
+
+        /**
+         * @return a new cursor over the cached rows, positioned before the first row.
+         */
+        ResultSet newCursor() throws SQLException {
+            return rows.createShared();
+        }
+    }
+
+    private final Map<List<Object>, CachedQuery> results = new HashMap<>();
+
+    private static List<Object> getKey(String procedure, Object[] input) {
+        List<Object> key = new ArrayList<>(1 + ((input == null) ? 0 : input.length));
+        key.add(procedure);
+        if (input != null) {
+            Collections.addAll(key, input);
+        }
+        return key;
+    }
+
+    /**
+     * @return true if the results of a query can be cached: a plain read without locking clauses.
+     */
+    static boolean isCacheable(String procedure) {
+        return PostgresContext.getQueryType(procedure) == ProvenanceBuffer.ExportOperation.READ.getValue();
+    }
+
+    CachedQuery get(String procedure, Object[] input) {
+        return results.get(getKey(procedure, input));
+    }
+
+    /**
+     * Read all rows of a query result and cache them. The result set is consumed and closed.
+     */
+    CachedQuery put(String procedure, Object[] input, String queryString, ResultSet rs) throws SQLException {
+        CachedRowSet rows = getRowSetFactory().createCachedRowSet();
+        rows.populate(rs);
+        rs.close();
+        CachedQuery cached = new CachedQuery(queryString, rows);
+        results.put(getKey(procedure, input), cached);
+        return cached;
+    }
+
+    /**
+     * Evict the queries that may read the table written by an update.
+     * @param procedure a SQL DML statement.
+     */
+    void invalidate(String procedure) {
+        if (results.isEmpty()) {
+            return;
+        }
+        String table = PostgresContext.getUpdatedTable(procedure);
+        if (table == null) {
+            // Cannot tell which table is written.
+            results.clear();
+            return;
+        }
+        Pattern mentions = Pattern.compile("\\b" + Pattern.quote(table) + "\\b", Pattern.CASE_INSENSITIVE);
+        results.keySet().removeIf(key -> mentions.matcher((String) key.get(0)).find());
+    }
+
+    void clear() {
+        results.clear();
+    }
+
+    private static synchronized RowSetFactory getRowSetFactory() throws SQLException {
+        if (rowSetFactory == null) {
+            rowSetFactory = RowSetProvider.newFactory();
+        }
+        return rowSetFactory;
+    }
+}
@@ -0,0 +1,96 @@
+package org.dbos.apiary.postgres;
+
+import org.dbos.apiary.function.TransactionContext;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An immutable set of transactions, published through an atomic reference.
+ * Readers get a consistent snapshot in O(1) without locks; writers copy the (small) array and publish it with a CAS.
+ * Transactions are compared by identity, and each transaction is added at most once.
+ */
+public final class TransactionSet extends AbstractSet<TransactionContext> {
+    private static final TransactionSet empty = new TransactionSet(new TransactionContext[0]);
+
+    private final TransactionContext[] transactions;
+
+    private TransactionSet(TransactionContext[] transactions) {
+        this.transactions = transactions;
+    }
+
+    public static TransactionSet empty() {
+        return empty;
+    }
+
+    public TransactionSet with(TransactionContext txc) {
+        TransactionContext[] next = Arrays.copyOf(transactions, transactions.length + 1);
+        next[transactions.length] = txc;
+        return new TransactionSet(next);
+    }
+
+    public TransactionSet without(TransactionContext txc) {
+        for (int i = 0; i < transactions.length; i++) {
+            if (transactions[i] == txc) {
+                TransactionContext[] next = new TransactionContext[transactions.length - 1];
+                System.arraycopy(transactions, 0, next, 0, i);
+                System.arraycopy(transactions, i + 1, next, i, transactions.length - i - 1);
+                return new TransactionSet(next);
+            }
+        }
+        return this;
+    }
+
+    public TransactionSet replace(TransactionContext oldTxc, TransactionContext newTxc) {
+        for (int i = 0; i < transactions.length; i++) {
+            if (transactions[i] == oldTxc) {
+                TransactionContext[] next = transactions.clone();
+                next[i] = newTxc;
+                return new TransactionSet(next);
+            }
+        }
+        return with(newTxc);
+    }
+
+    @Override
+    public Iterator<TransactionContext> iterator() {
+        return new Iterator<>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < transactions.length;
+            }
+
+            @Override
+            public TransactionContext next() {
+                if (index >= transactions.length) {
+                    throw new NoSuchElementException();
+                }
+                return transactions[index++];
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return transactions.length;
+    }
+
+    /* Lock-free updates of a published set. */
+
+    public static void add(AtomicReference<TransactionSet> ref, TransactionContext txc) {
+        ref.updateAndGet(s -> s.with(txc));
+    }
+
+    public static void remove(AtomicReference<TransactionSet> ref, TransactionContext txc) {
+        ref.updateAndGet(s -> s.without(txc));
+    }
+
+    public static void replace(AtomicReference<TransactionSet> ref, TransactionContext oldTxc, TransactionContext newTxc) {
+        ref.updateAndGet(s -> s.replace(oldTxc, newTxc));
+    }
+}
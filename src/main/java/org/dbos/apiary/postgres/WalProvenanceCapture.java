@@ -0,0 +1,419 @@
+package org.dbos.apiary.postgres;
+
+import org.dbos.apiary.function.ProvenanceBuffer;
+import org.dbos.apiary.utilities.ApiaryConfig;
+import org.dbos.apiary.utilities.Utilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.*;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Capture update provenance from the WAL instead of RETURNING * clauses.
+ * Before each update, a function writes a transactional logical decoding message holding the query sequence
+ * number of the update. A background thread reads the changes of committed transactions from a logical
+ * replication slot with the test_decoding plugin. It attributes each row change to the Apiary transaction ID
+ * and the sequence number of the last message before it, and adds the rows to the Events tables.
+ * Changes of transactions without messages, e.g., provenance exports, are ignored.
+ * The slot only advances past transactions that were fully decoded, and it is dropped when the capture stops,
+ * so it does not retain WAL while no worker reads it.
+ */
+public class WalProvenanceCapture {
+    private static final Logger logger = LoggerFactory.getLogger(WalProvenanceCapture.class);
+
+    static final String messagePrefix = "apiary";
+    // Prepended to an update; the first parameter is the query sequence number.
+    static final String updateMarker = "SELECT pg_logical_emit_message(true, '" + messagePrefix + "', ?); ";
+
+    private static final int maxChangesPerPoll = 10000;
+
+    private static final String createSlot = "SELECT pg_create_logical_replication_slot(?, 'test_decoding') " +
+            "WHERE NOT EXISTS (SELECT 1 FROM pg_replication_slots WHERE slot_name = ?);";
+    private static final String dropSlot = "SELECT pg_drop_replication_slot(slot_name) FROM pg_replication_slots " +
+            "WHERE slot_name = ? AND NOT active;";
+    private static final String peekChanges = "SELECT lsn, data FROM pg_logical_slot_peek_changes(?, NULL, ?, " +
+            "'include-xids', '1', 'include-timestamp', '1', 'skip-empty-xacts', '1');";
+    private static final String advanceSlot = "SELECT pg_replication_slot_advance(?, ?::pg_lsn);";
+    // Workers sharing a slot take turns, so no two peek the same changes.
+    private static final String tryLockSlot = "SELECT pg_try_advisory_lock(hashtext(?));";
+    private static final String unlockSlot = "SELECT pg_advisory_unlock(hashtext(?));";
+    // The next 64-bit transaction ID, to extend decoded 32-bit xids with their epoch.
+    private static final String getNextTxID = "SELECT pg_snapshot_xmax(pg_current_snapshot())::text::bigint;";
+
+    private static final Pattern beginPattern = Pattern.compile("^BEGIN (\\d+)");
+    private static final Pattern commitPattern = Pattern.compile("^COMMIT \\d+(?: \\(at (.+)\\))?");
+    private static final Pattern messagePattern = Pattern.compile(
+            "^message: transactional: 1 prefix: " + messagePrefix + ", sz: \\d+ content:(\\d+)$");
+    private static final Pattern changePattern = Pattern.compile("^table ([^:]+): (INSERT|UPDATE|DELETE): (.*)$");
+
+    private static final DateTimeFormatter commitTimeFormat = new DateTimeFormatterBuilder()
+            .appendPattern("yyyy-MM-dd HH:mm:ss")
+            .optionalStart().appendFraction(ChronoField.NANO_OF_SECOND, 0, 9, true).optionalEnd()
+            .appendPattern("[XXX][X]")
+            .toFormatter();
+
+    private final PostgresConnectionPool pool;
+    private final ProvenanceBuffer provBuff;
+    private final Map<String, Map<String, Integer>> schemaMaps = new HashMap<>();
+    private final Thread decoderThread;
+    private volatile boolean running = true;
+    private boolean hasSlot = true;  // False after a failure, e.g., another worker dropped the slot.
+
+    // State of the transaction being decoded.
+    private long txID = -1;
+    private int querySeqNum = -1;
+    private final List<Object[]> rows = new ArrayList<>();
+    private final List<String> rowTables = new ArrayList<>();
+
+    /**
+     * Create the replication slot if it does not exist.
+     * @throws SQLException if the database does not support logical decoding (wal_level is not logical).
+     */
+    static void createSlot(Connection conn) throws SQLException {
+        PreparedStatement pstmt = conn.prepareStatement(createSlot);
+        pstmt.setString(1, ApiaryConfig.walCaptureSlot);
+        pstmt.setString(2, ApiaryConfig.walCaptureSlot);
+        pstmt.execute();
+        pstmt.close();
+    }
+
+    /**
+     * Create the replication slot and start decoding it.
+     * @param pool      an autocommit connection pool to the database.
+     * @param provBuff  the buffer to add captured rows to.
+     * @throws SQLException if the slot cannot be created.
+     */
+    public WalProvenanceCapture(PostgresConnectionPool pool, ProvenanceBuffer provBuff) throws SQLException {
+        this.pool = pool;
+        this.provBuff = provBuff;
+        Connection conn = pool.acquire();
+        try {
+            createSlot(conn);
+        } finally {
+            pool.release(conn);
+        }
+        this.decoderThread = new Thread(this::decoderThread);
+        this.decoderThread.setDaemon(true);
+        this.decoderThread.start();
+    }
+
+    /**
+     * Stop decoding, capture the changes committed so far, and drop the replication slot.
+     */
+    public void close() {
+        running = false;
+        decoderThread.interrupt();
+        try {
+            decoderThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            while (decodeChanges() >= maxChangesPerPoll) {
+                // Drain the slot.
+            }
+        } catch (SQLException e) {
+            logger.info("Failed to decode WAL changes: {}", e.getMessage());
+        }
+        try {
+            Connection conn = pool.acquire();
+            try {
+                PreparedStatement pstmt = conn.prepareStatement(dropSlot);
+                pstmt.setString(1, ApiaryConfig.walCaptureSlot);
+                pstmt.execute();
+                pstmt.close();
+            } finally {
+                pool.release(conn);
+            }
+        } catch (SQLException e) {
+            // Another worker may be reading the slot, it keeps it.
+            logger.info("Failed to drop replication slot {}: {}", ApiaryConfig.walCaptureSlot, e.getMessage());
+        }
+    }
+
+    private void decoderThread() {
+        while (running) {
+            int numChanges;
+            try {
+                numChanges = decodeChanges();
+            } catch (SQLException e) {
+                logger.info("Failed to decode WAL changes: {}", e.getMessage());
+                hasSlot = false;
+                numChanges = 0;
+            }
+            if (numChanges < maxChangesPerPoll) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(ApiaryConfig.walCapturePollMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized int decodeChanges() throws SQLException {
+        Connection conn = pool.acquire();
+        try {
+            if (!hasSlot) {
+                createSlot(conn);
+                hasSlot = true;
+            }
+            if (!lockSlot(conn, tryLockSlot)) {
+                // Another worker is reading the slot, retry later.
+                return 0;
+            }
+            try {
+                return decodeChanges(conn);
+            } finally {
+                lockSlot(conn, unlockSlot);
+            }
+        } finally {
+            pool.release(conn);
+        }
+    }
+
+    private static boolean lockSlot(Connection conn, String query) throws SQLException {
+        PreparedStatement pstmt = conn.prepareStatement(query);
+        pstmt.setString(1, ApiaryConfig.walCaptureSlot);
+        ResultSet rs = pstmt.executeQuery();
+        rs.next();
+        boolean res = rs.getBoolean(1);
+        rs.close();
+        pstmt.close();
+        return res;
+    }
+
+    private int decodeChanges(Connection conn) throws SQLException {
+        Statement s = conn.createStatement();
+        ResultSet r = s.executeQuery(getNextTxID);
+        r.next();
+        long nextTxID = r.getLong(1);
+        r.close();
+        s.close();
+
+        // Peek, so changes stay in the slot until their transaction is decoded.
+        PreparedStatement pstmt = conn.prepareStatement(peekChanges);
+        pstmt.setString(1, ApiaryConfig.walCaptureSlot);
+        pstmt.setInt(2, maxChangesPerPoll);
+        ResultSet rs = pstmt.executeQuery();
+        resetTransaction();
+        int numChanges = 0;
+        String decodedLsn = null;
+        while (rs.next()) {
+            if (decode(conn, rs.getString(2), nextTxID)) {
+                decodedLsn = rs.getString(1);
+            }
+            numChanges++;
+        }
+        rs.close();
+        pstmt.close();
+        resetTransaction();
+
+        if (decodedLsn != null) {
+            // The LSN of a commit is the end of its record, so the slot skips the transaction from now on.
+            pstmt = conn.prepareStatement(advanceSlot);
+            pstmt.setString(1, ApiaryConfig.walCaptureSlot);
+            pstmt.setString(2, decodedLsn);
+            pstmt.execute();
+            pstmt.close();
+        }
+        return numChanges;
+    }
+
+    private void resetTransaction() {
+        txID = -1;
+        querySeqNum = -1;
+        rows.clear();
+        rowTables.clear();
+    }
+
+    // Returns true at the commit of a transaction, once all its rows are added to the buffer.
+    private boolean decode(Connection conn, String data, long nextTxID) throws SQLException {
+        Matcher m = changePattern.matcher(data);
+        if (m.matches()) {
+            if (querySeqNum >= 0) {
+                decodeChange(conn, m.group(1), m.group(2), m.group(3));
+            }
+            return false;
+        }
+        m = messagePattern.matcher(data);
+        if (m.matches()) {
+            querySeqNum = Integer.parseInt(m.group(1));
+            return false;
+        }
+        m = beginPattern.matcher(data);
+        if (m.find()) {
+            resetTransaction();
+            txID = toTxID(Long.parseLong(m.group(1)), nextTxID);
+            return false;
+        }
+        m = commitPattern.matcher(data);
+        if (m.find()) {
+            long timestamp = parseCommitTime(m.group(1));
+            for (int i = 0; i < rows.size(); i++) {
+                rows.get(i)[1] = timestamp;
+                provBuff.addEntry(rowTables.get(i), rows.get(i));
+            }
+            resetTransaction();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Extend a 32-bit xid with the epoch, it is a committed transaction older than the next transaction ID.
+     * @param xid       a decoded 32-bit transaction ID.
+     * @param nextTxID  the next 64-bit transaction ID.
+     * @return the 64-bit transaction ID.
+     */
+    public static long toTxID(long xid, long nextTxID) {
+        long epoch = nextTxID >>> 32;
+        if (xid > (nextTxID & 0xFFFFFFFFL)) {
+            epoch--;
+        }
+        return (epoch << 32) | xid;
+    }
+
+    private static long parseCommitTime(String commitTime) {
+        if (commitTime != null) {
+            try {
+                OffsetDateTime t = OffsetDateTime.parse(commitTime, commitTimeFormat);
+                return t.toEpochSecond() * 1000000L + t.getNano() / 1000;
+            } catch (RuntimeException e) {
+                // Fall through, e.g., a non-ISO DateStyle.
+            }
+        }
+        return Utilities.getMicroTimestamp();
+    }
+
+    private void decodeChange(Connection conn, String qualifiedTable, String operation, String tuple) throws SQLException {
+        String table = qualifiedTable.substring(qualifiedTable.lastIndexOf('.') + 1).replace("\"", "");
+        // An update that changes the key has "old-key: ... new-tuple: ...".
+        int newTuple = tuple.indexOf("new-tuple: ");
+        if (newTuple >= 0) {
+            tuple = tuple.substring(newTuple + "new-tuple: ".length());
+        }
+        if (tuple.startsWith("(no-tuple-data)")) {
+            return;
+        }
+        Map<String, Integer> schemaMap = getSchemaMap(conn, table);
+        Object[] rowData = new Object[4 + schemaMap.size()];
+        rowData[0] = txID;
+        rowData[2] = ProvenanceBuffer.ExportOperation.valueOf(operation).getValue();
+        rowData[3] = querySeqNum;
+        parseTuple(tuple, schemaMap, rowData);
+        rows.add(rowData);
+        rowTables.add(table + "Events");
+    }
+
+    /**
+     * Parse a test_decoding tuple, "name[type]:value ...", into an Events row. Strings are quoted with single quotes, doubled inside.
+     * @param schemaMap the index of each column in the table.
+     * @param rowData   the Events row, column values start at offset 4.
+     */
+    public static void parseTuple(String tuple, Map<String, Integer> schemaMap, Object[] rowData) {
+        int pos = 0;
+        int n = tuple.length();
+        while (pos < n) {
+            int typeStart = tuple.indexOf('[', pos);
+            int typeEnd = tuple.indexOf("]:", typeStart);
+            if ((typeStart < 0) || (typeEnd < 0)) {
+                return;
+            }
+            String name = tuple.substring(pos, typeStart).replace("\"", "");
+            String type = tuple.substring(typeStart + 1, typeEnd);
+            pos = typeEnd + 2;
+            String value;
+            boolean quoted = (pos < n) && (tuple.charAt(pos) == '\'');
+            if (quoted) {
+                StringBuilder sb = new StringBuilder();
+                pos++;
+                while (pos < n) {
+                    char c = tuple.charAt(pos);
+                    if (c == '\'') {
+                        if ((pos + 1 < n) && (tuple.charAt(pos + 1) == '\'')) {
+                            sb.append('\'');
+                            pos += 2;
+                            continue;
+                        }
+                        pos++;
+                        break;
+                    }
+                    sb.append(c);
+                    pos++;
+                }
+                value = sb.toString();
+            } else {
+                int end = tuple.indexOf(' ', pos);
+                end = (end < 0) ? n : end;
+                value = tuple.substring(pos, end);
+                pos = end;
+            }
+            // Skip the separator.
+            while ((pos < n) && (tuple.charAt(pos) == ' ')) {
+                pos++;
+            }
+            Integer index = schemaMap.get(name);
+            if (index != null) {
+                rowData[4 + index] = toObject(type, value, quoted);
+            }
+        }
+    }
+
+    /**
+     * @param type      the Postgres type name of a decoded value.
+     * @param value     the decoded value, without quotes.
+     * @param quoted    true if the value was quoted, so it is never null.
+     * @return the value as the JDBC type of the column.
+     */
+    public static Object toObject(String type, String value, boolean quoted) {
+        if (!quoted && (value.equals("null") || value.equals("unchanged-toast-datum"))) {
+            return null;
+        }
+        switch (type) {
+            case "integer":
+                return Integer.parseInt(value);
+            case "bigint":
+                return Long.parseLong(value);
+            case "smallint":
+                return Short.parseShort(value);
+            case "bytea":
+                return decodeHex(value);
+            default:
+                return value;
+        }
+    }
+
+    private static byte[] decodeHex(String value) {
+        // Hex format: \x followed by two digits per byte.
+        int start = value.startsWith("\\x") ? 2 : 0;
+        byte[] bytes = new byte[(value.length() - start) / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(value.substring(start + 2 * i, start + 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private Map<String, Integer> getSchemaMap(Connection conn, String table) throws SQLException {
+        Map<String, Integer> schemaMap = schemaMaps.get(table);
+        if (schemaMap == null) {
+            schemaMap = new HashMap<>();
+            ResultSet columns = conn.getMetaData().getColumns(null, null, table, null);
+            int index = 0;
+            while (columns.next()) {
+                schemaMap.put(columns.getString("COLUMN_NAME"), index++);
+            }
+            columns.close();
+            schemaMaps.put(table, schemaMap);
+        }
+        return schemaMap;
+    }
+}
@@ -22,7 +22,7 @@ public class PostgresSearchPerson extends PostgresFunction {
             return pgCount;
         } else {
             logger.info("{} {} {} {} {} {} {}", searchText, pgCount, esCount,
-                    context.txc.txID, context.txc.xmin, context.txc.xmax, context.txc.activeTransactions);
+                    context.txc.txID, context.txc.xmin, context.txc.xmax, context.txc.snapshot);
             return -1;
         }
     }
@@ -25,7 +25,7 @@ public class PostgresReadString extends PostgresFunction {
             return 0;
         } else {
             logger.info("{} {} {} {} {} {} {}", name, pgStuff, gcsStuff,
-                    context.txc.txID, context.txc.xmin, context.txc.xmax, context.txc.activeTransactions);
+                    context.txc.txID, context.txc.xmin, context.txc.xmax, context.txc.snapshot);
             return -1;
         }
     }
@@ -22,7 +22,7 @@ public class PostgresFindPerson extends PostgresFunction {
             return pgCount;
         } else {
             logger.info("{} {} {} {} {} {} {}", search, pgCount, esCount,
-                    ctxt.txc.txID, ctxt.txc.xmin, ctxt.txc.xmax, ctxt.txc.activeTransactions);
+                    ctxt.txc.txID, ctxt.txc.xmin, ctxt.txc.xmax, ctxt.txc.snapshot);
             return -1;
         }
     }
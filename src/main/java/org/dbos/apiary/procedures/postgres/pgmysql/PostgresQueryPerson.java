@@ -23,7 +23,7 @@ public class PostgresQueryPerson extends PostgresFunction {
             return pgCount;
         } else {
             logger.info("Inconsistency: {} postgres: {} mysql: {} txID: {} xmin: {} xmax: {} activeTxns: {}", search, pgCount, mysqlCount,
-                    ctxt.txc.txID, ctxt.txc.xmin, ctxt.txc.xmax, ctxt.txc.activeTransactions);
+                    ctxt.txc.txID, ctxt.txc.xmin, ctxt.txc.xmax, ctxt.txc.snapshot);
             return -1;
         }
     }
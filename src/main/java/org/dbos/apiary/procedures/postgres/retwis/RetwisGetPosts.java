@@ -6,10 +6,16 @@ import org.dbos.apiary.postgres.PostgresFunction;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class RetwisGetPosts extends PostgresFunction {
     private static final String getPosts = "SELECT Post FROM RetwisPosts WHERE UserID=? ORDER BY Timestamp LIMIT 10;";
+    // The first ten posts of each user, for all users in one query.
+    private static final String getPostsBatch = "SELECT UserID, Post FROM (SELECT UserID, Post, Timestamp, " +
+            "ROW_NUMBER() OVER (PARTITION BY UserID ORDER BY Timestamp) AS PostRank FROM RetwisPosts WHERE UserID = ANY(?)) AS P " +
+            "WHERE PostRank <= 10 ORDER BY UserID, Timestamp;";
 
     public static String[] runFunction(PostgresContext ctxt, int userID) throws SQLException {
         ResultSet result = (ResultSet) ctxt.executeQuery(getPosts, userID);
@@ -19,4 +25,21 @@ public class RetwisGetPosts extends PostgresFunction {
         }
         return posts.toArray(new String[0]);
     }
+
+    public static String[][] runBatchFunction(PostgresContext ctxt, List<Object[]> inputs) throws SQLException {
+        int[] userIDs = new int[inputs.size()];
+        for (int i = 0; i < userIDs.length; i++) {
+            userIDs[i] = (int) inputs.get(i)[0];
+        }
+        ResultSet result = ctxt.executeQuery(getPostsBatch, (Object) userIDs);
+        Map<Integer, List<String>> userPosts = new HashMap<>();
+        while (result.next()) {
+            userPosts.computeIfAbsent(result.getInt(1), k -> new ArrayList<>()).add(result.getString(2));
+        }
+        String[][] posts = new String[userIDs.length][];
+        for (int i = 0; i < userIDs.length; i++) {
+            posts[i] = userPosts.getOrDefault(userIDs[i], List.of()).toArray(new String[0]);
+        }
+        return posts;
+    }
 }
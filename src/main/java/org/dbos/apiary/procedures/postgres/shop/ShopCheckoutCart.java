@@ -2,6 +2,7 @@ package org.dbos.apiary.procedures.postgres.shop;
 
 import org.dbos.apiary.postgres.PostgresContext;
 import org.dbos.apiary.postgres.PostgresFunction;
+import org.dbos.apiary.postgres.PostgresStatementBatch;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -16,14 +17,17 @@ public class ShopCheckoutCart extends PostgresFunction {
         int orderID = (int) ctxt.txc.txID;
         ResultSet rs = ctxt.executeQuery(getCart, personID);
         int totalCost = 0;
+        // Send all updates in one round trip.
+        PostgresStatementBatch batch = ctxt.newBatch();
         while (rs.next()) {
             int itemID = rs.getInt(1);
             int cost = rs.getInt(2);
-            ctxt.executeUpdate(addOrder, personID, orderID, itemID);
+            batch.addUpdate(addOrder, personID, orderID, itemID);
             totalCost += cost;
         }
-        ctxt.executeUpdate(addTransaction, orderID, personID, totalCost);
-        ctxt.executeUpdate(emptyCart, personID);
+        batch.addUpdate(addTransaction, orderID, personID, totalCost);
+        batch.addUpdate(emptyCart, personID);
+        batch.execute();
         return totalCost;
     }
 }
@@ -0,0 +1,27 @@
+package org.dbos.apiary.procedures.postgres.tests;
+
+import org.dbos.apiary.postgres.PostgresContext;
+import org.dbos.apiary.postgres.PostgresFunction;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PostgresInsertTypedRows extends PostgresFunction {
+    private static final String insert = "INSERT INTO TypedTable(Id, Small, Big, Ratio, Name, Created, CreatedTz) VALUES (?, ?, ?, ?, ?, ?, ?);";
+
+    // A fixed base time with sub-second digits, so rows inserted by different calls are comparable.
+    private static final long baseTimeMs = 1650000000123L;
+
+    public static int runFunction(PostgresContext ctxt, int offset, int numRows) throws SQLException {
+        List<Object[]> rows = new ArrayList<>();
+        for (int i = 0; i < numRows; i++) {
+            Timestamp t = new Timestamp(baseTimeMs + i * 1000L);
+            t.setNanos(t.getNanos() + i * 1000);  // Microsecond precision.
+            rows.add(new Object[]{offset + i, i - numRows / 2, (long) i * 10000000000L, i / 3.0, "name" + i, t, t});
+        }
+        ctxt.insertMany(insert, rows);
+        return numRows;
+    }
+}
@@ -0,0 +1,34 @@
+package org.dbos.apiary.procedures.postgres.tests;
+
+import org.dbos.apiary.postgres.PostgresContext;
+import org.dbos.apiary.postgres.PostgresFunction;
+import org.dbos.apiary.postgres.PostgresStatementBatch;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public class PostgresProvenanceBatch extends PostgresFunction {
+    private static final String addEntry = "INSERT INTO KVTable(KVKey, KVValue) VALUES (?, ?) ON CONFLICT (KVKey) DO NOTHING;";
+    private static final String getValue = "SELECT KVValue, KVKEY FROM KVTable WHERE KVKey=?;";
+    private static final String updateEntry = "UPDATE KVTABLE SET KVvalue=? WHERE KVKEY=?";
+
+    public static int runFunction(PostgresContext ctxt, int key, int baseValue) throws SQLException {
+        // The same statements as executing them one by one, in one round trip.
+        PostgresStatementBatch batch = ctxt.newBatch();
+        int firstGet = batch.addQuery(getValue, key);
+        batch.addUpdate(addEntry, key, baseValue);
+        int secondGet = batch.addQuery(getValue, key);
+        batch.addUpdate(updateEntry, baseValue + 1, key);
+        int thirdGet = batch.addQuery(getValue, key);
+        batch.execute();
+
+        ResultSet r = batch.getResultSet(firstGet);
+        assert (!r.next());
+        r = batch.getResultSet(secondGet);
+        r.next();
+        assert (r.getInt(1) == baseValue);
+        r = batch.getResultSet(thirdGet);
+        r.next();
+        return r.getInt(1);
+    }
+}
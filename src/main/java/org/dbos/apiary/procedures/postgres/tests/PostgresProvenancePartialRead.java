@@ -0,0 +1,26 @@
+package org.dbos.apiary.procedures.postgres.tests;
+
+import org.dbos.apiary.postgres.PostgresContext;
+import org.dbos.apiary.postgres.PostgresFunction;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public class PostgresProvenancePartialRead extends PostgresFunction {
+    private static final String addEntry = "INSERT INTO KVTable(KVKey, KVValue) VALUES (?, ?) ON CONFLICT (KVKey) DO NOTHING;";
+    private static final String getValues = "SELECT KVKey, KVValue FROM KVTable WHERE KVKey >= ? ORDER BY KVKey;";
+
+    public static int runFunction(PostgresContext ctxt, int numRows, int numRead) throws SQLException {
+        // Add numRows entries, then only read the first numRead of them.
+        for (int i = 0; i < numRows; i++) {
+            ctxt.executeUpdate(addEntry, i, i * 10);
+        }
+        ResultSet r = ctxt.executeQuery(getValues, 0);
+        int sum = 0;
+        for (int i = 0; (i < numRead) && r.next(); i++) {
+            sum += r.getInt(2);
+        }
+        r.close();
+        return sum;
+    }
+}
@@ -0,0 +1,20 @@
+package org.dbos.apiary.procedures.postgres.tests;
+
+import org.dbos.apiary.postgres.PostgresContext;
+import org.dbos.apiary.postgres.PostgresFunction;
+
+import java.sql.SQLException;
+import java.util.List;
+
+public class PostgresProvenanceUpdateBatch extends PostgresFunction {
+    private static final String addEntry = "INSERT INTO KVTable(KVKey, KVValue) VALUES (?, ?) ON CONFLICT (KVKey) DO NOTHING;";
+    private static final String updateEntry = "UPDATE KVTable SET KVValue=? WHERE KVKey=?;";
+
+    public static int runFunction(PostgresContext ctxt, int key, int baseValue) throws SQLException {
+        int[] inserted = ctxt.executeUpdateBatch(addEntry, List.of(new Object[]{key, baseValue}, new Object[]{key + 1, baseValue}));
+        // The second update changes no rows.
+        int[] updated = ctxt.executeUpdateBatch(updateEntry, List.of(new Object[]{baseValue + 1, key}, new Object[]{baseValue + 1, key + 1000}));
+        ctxt.executeUpdate(updateEntry, baseValue + 2, key + 1);
+        return inserted[0] + inserted[1] + updated[0] + updated[1];
+    }
+}
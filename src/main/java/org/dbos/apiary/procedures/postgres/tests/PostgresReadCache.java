@@ -0,0 +1,48 @@
+package org.dbos.apiary.procedures.postgres.tests;
+
+import org.dbos.apiary.postgres.PostgresContext;
+import org.dbos.apiary.postgres.PostgresFunction;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+public class PostgresReadCache extends PostgresFunction {
+    private static final String addEntry = "INSERT INTO KVTable(KVKey, KVValue) VALUES (?, ?) ON CONFLICT (KVKey) DO NOTHING;";
+    private static final String updateEntry = "UPDATE KVTable SET KVValue = KVValue + 1 WHERE KVKey = ?;";
+    // clock_timestamp() changes on every execution, so equal results mean the second read was served from the cache.
+    private static final String getValue = "SELECT KVValue, clock_timestamp()::text FROM KVTable WHERE KVKey = ?;";
+
+    // Return whether a repeated read hit the cache, then the value read after each kind of write.
+    public static int[] runFunction(PostgresContext ctxt, int key, int value) throws SQLException {
+        int[] res = new int[4];
+        ctxt.executeUpdate(addEntry, key, value);
+        String first = getTimestamp(ctxt, key);
+        String second = getTimestamp(ctxt, key);
+        res[0] = first.equals(second) ? 1 : 0;
+
+        ctxt.executeUpdate(updateEntry, key);
+        res[1] = getValue(ctxt, key);
+
+        ctxt.executeUpdateBatch(updateEntry, List.<Object[]>of(new Object[]{key}));
+        res[2] = getValue(ctxt, key);
+
+        // An empty result is cached too, until the insert.
+        int missing = getValue(ctxt, key + 1);
+        assert (missing == -1);
+        ctxt.insertMany(addEntry, List.<Object[]>of(new Object[]{key + 1, value}));
+        res[3] = getValue(ctxt, key + 1);
+        return res;
+    }
+
+    private static String getTimestamp(PostgresContext ctxt, int key) throws SQLException {
+        ResultSet r = ctxt.executeQuery(getValue, key);
+        r.next();
+        return r.getString(2);
+    }
+
+    private static int getValue(PostgresContext ctxt, int key) throws SQLException {
+        ResultSet r = ctxt.executeQuery(getValue, key);
+        return r.next() ? r.getInt(1) : -1;
+    }
+}
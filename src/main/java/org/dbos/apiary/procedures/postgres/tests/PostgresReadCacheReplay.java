@@ -0,0 +1,24 @@
+package org.dbos.apiary.procedures.postgres.tests;
+
+import org.dbos.apiary.postgres.PostgresContext;
+import org.dbos.apiary.postgres.PostgresFunction;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public class PostgresReadCacheReplay extends PostgresFunction {
+    private static final String addEntry = "INSERT INTO KVTable(KVKey, KVValue) VALUES (?, ?) ON CONFLICT (KVKey) DO NOTHING;";
+    private static final String getValue = "SELECT KVValue FROM KVTable WHERE KVKey = ?;";
+
+    public static int runFunction(PostgresContext ctxt, int key, int value) throws SQLException {
+        ctxt.executeUpdate(addEntry, key, value);
+        // The second read is served from the transaction's read cache, but recorded in provenance like the first.
+        int sum = 0;
+        for (int i = 0; i < 2; i++) {
+            ResultSet r = ctxt.executeQuery(getValue, key);
+            r.next();
+            sum += r.getInt(1);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,21 @@
+package org.dbos.apiary.procedures.postgres.tests;
+
+import org.dbos.apiary.postgres.PostgresContext;
+import org.dbos.apiary.postgres.PostgresFunction;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public class PostgresSlowGetValue extends PostgresFunction {
+
+    // Sleep in the query, so concurrent invocations overlap.
+    private static final String get = "SELECT KVValue, pg_sleep(0.1) FROM KVTable WHERE KVKey=?;";
+
+    public static int runFunction(PostgresContext ctxt, int key) throws SQLException {
+        ResultSet r = ctxt.executeQuery(get, key);
+        if (r.next()) {
+            return r.getInt(1);
+        }
+        return -1;
+    }
+}
@@ -2,6 +2,7 @@ package org.dbos.apiary.procedures.postgres.wordpress;
 
 import org.dbos.apiary.postgres.PostgresContext;
 import org.dbos.apiary.postgres.PostgresFunction;
+import org.dbos.apiary.postgres.PostgresStatementBatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,11 +39,12 @@ public class WPTrashPost extends PostgresFunction {
             logger.info("Post {} has been trashed. Skipped.", postId);
             return 0;
         }
-        // Trash the post.
-        ctxt.executeUpdate(trashPost, WPUtil.WP_STATUS_TRASHED, postId);
-
-        // Get comment IDs.
-        r = ctxt.executeQuery(getComments, postId, WPUtil.WP_STATUS_VISIBLE);
+        // Trash the post and get comment IDs in one round trip.
+        PostgresStatementBatch batch = ctxt.newBatch();
+        batch.addUpdate(trashPost, WPUtil.WP_STATUS_TRASHED, postId);
+        int commentQuery = batch.addQuery(getComments, postId, WPUtil.WP_STATUS_VISIBLE);
+        batch.execute();
+        r = batch.getResultSet(commentQuery);
         List<String> commentIds = new ArrayList<>();
         while (r.next()) {
             commentIds.add(String.valueOf(r.getLong(WPUtil.WP_COMMENT_ID)));
@@ -19,6 +19,96 @@ public class ApiaryConfig {
     public static int isolationLevel = REPEATABLE_READ;
 
     public static boolean XDBTransactions = true;
+
+    // If true and the JVM supports them, run each request and reply on its own virtual thread.
+    public static boolean virtualThreads = false;
+    // Maximum number of requests admitted to run concurrently in virtual-thread mode. Zero to use postgresPoolSize,
+    // so admitted requests never wait for a pooled connection outside the priority order.
+    public static int virtualThreadConcurrency = 0;
+
+    // If true, concurrent identical invocations of read-only functions share one execution.
+    public static boolean coalesceReadOnly = false;
+
+    // If true, resend a stateless function call to another worker if it does not reply within the hedging delay.
+    public static boolean hedgeStateless = false;
+    // Hedge calls slower than this latency percentile.
+    public static int hedgePercentile = 95;
+    // Maximum ratio of hedged calls to stateless calls.
+    public static double hedgeBudget = 0.05;
+
+    // How to place stateless function calls across workers.
+    public enum StatelessPlacementPolicy {
+        FIRST_HOST,
+        LEAST_LOADED,
+        POWER_OF_TWO_CHOICES
+    }
+    public static StatelessPlacementPolicy statelessPlacement = StatelessPlacementPolicy.POWER_OF_TWO_CHOICES;
+    // Run stateless calls locally if the local queue is at most this long. Negative to disable.
+    public static int statelessLocalQueueThreshold = -1;
+
+    // Maximum number of cached prepared statements per Postgres connection.
+    public static int statementCacheSize = 256;
+    // Number of executions of a Postgres prepared statement before the driver prepares it on the server.
+    public static int prepareThreshold = 1;
+
+    // Maximum number of pooled Postgres connections per isolation level, independent of the number of threads.
+    public static int postgresPoolSize = 64;
+    // Maximum number of pooled Postgres connections for background tasks.
+    public static int postgresBackgroundPoolSize = 4;
+    // How long to wait for a pooled Postgres connection.
+    public static long postgresPoolTimeoutMs = 10000;
+    // Number of pooled Postgres connections opened and warmed up when a worker starts, the rest open on demand.
+    public static int postgresWarmConnections = 4;
+    // Maximum number of idle thread-bound connections (MySQL, provenance) kept for reuse by short-lived threads.
+    public static int threadLocalMaxIdle = 16;
+
+    // Rows fetched per round trip by Postgres queries, streamed through a cursor. Zero to fetch all rows at once.
+    public static int queryFetchSize = 1000;
+
+    // Bulk inserts of at least this many rows use a binary COPY. Negative to disable.
+    public static int bulkCopyThreshold = 1000;
+    // If true, record bulk inserted rows as provenance Events.
+    public static boolean captureBulkInserts = false;
+
+    // How a Postgres function commits.
+    public enum CommitMode {
+        SYNCHRONOUS,    // Wait for the WAL flush at commit, the server default.
+        GROUP_COMMIT,   // Commit without waiting, but reply only after a later WAL flush barrier.
+        ASYNCHRONOUS    // Commit without waiting and reply immediately. A crash may lose acknowledged commits.
+    }
+    // Interval between WAL flush barriers for GROUP_COMMIT functions.
+    public static long groupCommitIntervalUs = 2000;
+    // Fail a GROUP_COMMIT reply if its WAL flush barrier does not succeed within this time.
+    public static long groupCommitTimeoutMs = 5000;
+
+    // Read-only Postgres functions run on a read replica only if its replay lags the primary by at most this many WAL bytes.
+    public static long replicaMaxLagBytes = 16L * 1024 * 1024;
+    // How often to poll the replay position of read replicas.
+    public static long replicaLagPollMs = 100;
+    // If true, read-only functions of a client only run on replicas that replayed the client's last write.
+    public static boolean readYourWrites = false;
+
+    // If true, cache query results within a Postgres transaction until it writes to a table they read.
+    // Nested function calls share the cache. Results are fully read into memory, so keep it off for large scans.
+    // Only writes to a table named in a query evict it: rows changed through views, triggers, or foreign key
+    // cascades are not seen, so keep it off for functions that rely on them.
+    public static boolean transactionReadCache = false;
+
+    // If true, capture Postgres update provenance by logical decoding of the WAL, off the critical path,
+    // instead of RETURNING * clauses. Requires wal_level=logical; falls back to RETURNING * otherwise.
+    public static boolean captureUpdatesFromWal = false;
+    // The logical replication slot read by the WAL capture.
+    public static String walCaptureSlot = "apiary_provenance";
+    // How often to read the slot when it has no backlog.
+    public static long walCapturePollMs = 100;
+
+    // Backoff before retrying a function after a serialization failure, doubled for each retry and randomized.
+    public static long retryBaseBackoffUs = 100;
+    public static long retryMaxBackoffUs = 50000;
+    // Give up after this many attempts. Zero to retry until the function commits.
+    public static int retryMaxAttempts = 0;
+    // Retries of a key with at least this many aborts per second run one at a time.
+    public static int retryHotKeyAborts = 10;
     public static final Boolean profile = Boolean.FALSE;
 
     // For system functions.
@@ -0,0 +1,164 @@
+package org.dbos.apiary.utilities;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * A ThreadLocal whose values are taken from (and can be returned to) a shared idle pool.
+ * Long-lived platform threads keep their value forever, exactly like a plain ThreadLocal.
+ * Short-lived threads (e.g., one virtual thread per task) call {@link #releaseAll()} when the task finishes,
+ * so the next task reuses the value instead of creating a new one (e.g., a new database connection).
+ * Idle values are checked before reuse, at most maxIdle of them are kept, and {@link #close()} closes every value.
+ * The number of values in use is the number of threads using the local, so callers bound it by bounding the threads.
+ */
+public class PooledThreadLocal<T> extends ThreadLocal<T> {
+    // The values bound to the current thread by each pooled local, so they can be released together.
+    private static final ThreadLocal<Map<PooledThreadLocal<?>, Object>> boundValues = ThreadLocal.withInitial(IdentityHashMap::new);
+
+    private static final int validationTimeoutSec = 1;
+
+    private final Supplier<T> factory;
+    private final Predicate<T> isValid;
+    private final Consumer<T> closer;
+    private final int maxIdle;
+    private final Queue<T> idleValues = new ConcurrentLinkedQueue<>();
+    // Every value created and not yet closed, bound to a thread or idle.
+    private final Set<T> allValues = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed = false;
+
+    public PooledThreadLocal(Supplier<T> factory) {
+        this(factory, v -> true, v -> {}, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param factory   creates a new value, or returns null on failure.
+     * @param isValid   checks an idle value before it is reused.
+     * @param closer    closes a value that is invalid, beyond maxIdle, or left after {@link #close()}.
+     * @param maxIdle   the maximum number of released values kept for reuse.
+     */
+    public PooledThreadLocal(Supplier<T> factory, Predicate<T> isValid, Consumer<T> closer, int maxIdle) {
+        this.factory = factory;
+        this.isValid = isValid;
+        this.closer = closer;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * A pooled local of JDBC connections, checked with {@link Connection#isValid(int)} before reuse.
+     */
+    public static PooledThreadLocal<Connection> ofConnections(Supplier<Connection> factory, int maxIdle) {
+        return new PooledThreadLocal<>(factory, c -> {
+            try {
+                return c.isValid(validationTimeoutSec);
+            } catch (SQLException e) {
+                return false;
+            }
+        }, c -> {
+            try {
+                c.close();
+            } catch (SQLException e) {
+                // Ignore, already broken.
+            }
+        }, maxIdle);
+    }
+
+    @Override
+    protected T initialValue() {
+        T value;
+        while ((value = idleValues.poll()) != null) {
+            if (isValid.test(value)) {
+                break;
+            }
+            discard(value);
+        }
+        if (value == null) {
+            value = factory.get();
+            if (value != null) {
+                allValues.add(value);
+            }
+        }
+        if (value != null) {
+            boundValues.get().put(this, value);
+        }
+        return value;
+    }
+
+    @Override
+    public void set(T value) {
+        super.set(value);
+        if (value != null) {
+            boundValues.get().put(this, value);
+        } else {
+            boundValues.get().remove(this);
+        }
+    }
+
+    @Override
+    public void remove() {
+        super.remove();
+        boundValues.get().remove(this);
+    }
+
+    /**
+     * Return every pooled value bound to the current thread back to its pool.
+     * Locals that were removed or never used are skipped, no value is created to be released.
+     */
+    public static void releaseAll() {
+        Map<PooledThreadLocal<?>, Object> values = boundValues.get();
+        List<Map.Entry<PooledThreadLocal<?>, Object>> entries = new ArrayList<>(values.entrySet());
+        values.clear();
+        for (Map.Entry<PooledThreadLocal<?>, Object> e : entries) {
+            e.getKey().release(e.getValue());
+        }
+    }
+
+    /**
+     * Return the value bound to the current thread by this local back to its pool.
+     */
+    public void release() {
+        Object value = boundValues.get().remove(this);
+        if (value != null) {
+            release(value);
+        }
+    }
+
+    /**
+     * Close every value, idle or bound to a thread. Values released afterwards are closed instead of pooled.
+     * Only call this once no thread uses the local anymore.
+     */
+    public void close() {
+        closed = true;
+        idleValues.clear();
+        for (T value : allValues) {
+            discard(value);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void release(Object value) {
+        super.remove();
+        T v = (T) value;
+        if (closed || idleValues.size() >= maxIdle) {
+            discard(v);
+        } else {
+            idleValues.add(v);
+        }
+    }
+
+    private void discard(T value) {
+        if (allValues.remove(value)) {
+            closer.accept(value);
+        }
+    }
+}
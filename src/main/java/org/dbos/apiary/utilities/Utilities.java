@@ -3,6 +3,7 @@ package org.dbos.apiary.utilities;
 import com.google.protobuf.ByteString;
 import org.dbos.apiary.ExecuteFunctionReply;
 import org.dbos.apiary.ExecuteFunctionRequest;
+import org.dbos.apiary.function.FunctionOutput;
 import org.dbos.apiary.function.ProvenanceBuffer;
 import org.dbos.apiary.worker.ApiaryWorker;
 import org.slf4j.Logger;
@@ -15,12 +16,15 @@ import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Utilities {
     public static int stringType = 1;
     public static int stringArrayType = 2;
     public static int intType = 3;
     public static int intArrayType = 4;
+    public static int errorType = 5;  // Only in replies, the function failed.
     private static final Logger logger = LoggerFactory.getLogger(Utilities.class);
 
     public static byte[] objectToByteArray(Serializable obj) {
@@ -170,6 +174,16 @@ public class Utilities {
         return null;
     }
 
+    // Return an executor that starts a new virtual thread for each task, or null if the JVM does not support virtual threads.
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
     public static long getMicroTimestamp() {
         return ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now());
     }
@@ -206,6 +220,9 @@ public class Utilities {
         } else if (output instanceof int[]) {
             b.setReplyType(intArrayType);
             b.setReplyArray(ByteString.copyFrom(intArrayToByteArray((int[]) output)));
+        } else if (output instanceof FunctionOutput.Failure) {
+            b.setReplyType(errorType);
+            b.setReplyString(((FunctionOutput.Failure) output).message);
         }
         return b;
     }
@@ -220,6 +237,8 @@ public class Utilities {
             output = Utilities.byteArrayToStringArray(rep.getReplyArray().toByteArray());
         } else if (rep.getReplyType() == intArrayType) {
             output = Utilities.byteArrayToIntArray(rep.getReplyArray().toByteArray());
+        } else if (rep.getReplyType() == errorType) {
+            output = new FunctionOutput.Failure(rep.getReplyString());
         }
         return output;
     }
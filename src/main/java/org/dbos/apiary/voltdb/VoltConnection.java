@@ -18,6 +18,7 @@ import org.voltdb.iv2.MpInitiator;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.dbos.apiary.utilities.ApiaryConfig.getApiaryClientID;
 
@@ -31,6 +32,7 @@ public class VoltConnection implements ApiaryConnection {
     private final Map<Integer, String> partitionHostMap = new HashMap<>();
     private final Map<Integer, String> hostIdNameMap = new HashMap<>();
     private int numPartitions;
+    private final AtomicLong commitEpoch = new AtomicLong(0);
 
     public VoltConnection(String hostname, Integer port) throws IOException {
         ClientConfig config = new ClientConfig();
@@ -121,6 +123,9 @@ public class VoltConnection implements ApiaryConnection {
         assert (inputs[0] instanceof String || inputs[0] instanceof Integer);
         Integer keyInput = inputs[0] instanceof String ? Integer.parseInt((String) inputs[0]) : (int) inputs[0];
         VoltTable[] res = client.callProcedure(functionName, keyInput, voltInput).getResults();
+        if (!context.isReadOnly(functionName)) {
+            commitEpoch.incrementAndGet();
+        }
         VoltTable retVal = res[0];
         assert (retVal.getColumnCount() == 1 && retVal.getRowCount() == 1);
         Object output = null;
@@ -150,6 +155,11 @@ public class VoltConnection implements ApiaryConnection {
         return null;
     }
 
+    @Override
+    public long getCommitEpoch() {
+        return commitEpoch.get();
+    }
+
     @Override
     public TransactionContext getLatestTransactionContext() {
         return null;
@@ -6,6 +6,7 @@ import org.zeromq.ZFrame;
 
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -18,6 +19,7 @@ public class ApiaryTaskStash {
     public final Map<Long, Object> functionIDToValue;
     public final Queue<Task> queuedTasks;
     public final AtomicInteger numFinishedTasks = new AtomicInteger(0);
+    public final Map<Long, Long> statelessSendTimeNs;  // Send time of outstanding stateless calls, for hedging.
     public final long senderTimestampNano;
     public final String service;
     public final long execId;
@@ -25,6 +27,7 @@ public class ApiaryTaskStash {
 
     public int totalQueuedTasks;
     public Object output;
+    public CompletableFuture<Void> durable = CompletableFuture.completedFuture(null);  // Completes once the function's commit is durable.
 
     public ApiaryTaskStash(String service, long execId, long callerId, long functionID, int replayMode, ZFrame replyAddr, long senderTimestampNano) {
         this.service = service;
@@ -36,6 +39,7 @@ public class ApiaryTaskStash {
         this.senderTimestampNano = senderTimestampNano;
         functionIDToValue = new ConcurrentHashMap<>();
         queuedTasks = new ConcurrentLinkedQueue<>();
+        statelessSendTimeNs = new ConcurrentHashMap<>();
         totalQueuedTasks = 0;
     }
 
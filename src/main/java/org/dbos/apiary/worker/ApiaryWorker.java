@@ -9,8 +9,8 @@ import org.dbos.apiary.connection.ApiaryConnection;
 import org.dbos.apiary.connection.ApiarySecondaryConnection;
 import org.dbos.apiary.function.*;
 import org.dbos.apiary.mysql.MysqlContext;
-import org.dbos.apiary.postgres.PostgresUtilities;
 import org.dbos.apiary.utilities.ApiaryConfig;
+import org.dbos.apiary.utilities.PooledThreadLocal;
 import org.dbos.apiary.utilities.Utilities;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,6 +22,7 @@ import java.sql.ResultSet;
 import java.sql.Statement;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
@@ -39,8 +40,16 @@ public class ApiaryWorker {
     private final ZContext zContext = new ZContext(2);  // TODO: How many IO threads?
     private Thread serverThread;
     private final ExecutorService reqThreadPool;
-    private final ExecutorService repThreadPool;
-    private final BlockingQueue<Runnable> reqQueue = new DispatcherPriorityQueue<>();
+    private final ExecutorService repThreadPool;  // The same pool as reqThreadPool unless using virtual threads.
+    private final boolean useVirtualThreads;
+    // Shared by requests and replies, replies go first.
+    private final BlockingQueue<Runnable> taskQueue = new DispatcherPriorityQueue<>();
+    private final AtomicInteger queuedRequests = new AtomicInteger(0);
+    private final AtomicLong replySeqNums = new AtomicLong(0);
+    private final SingleFlight readOnlyFlights = new SingleFlight();
+    private final HedgingPolicy hedgingPolicy;
+    private final ScheduledExecutorService hedgeTimer;
+    private StatelessPlacement statelessPlacement;
     private final Map<String, Deque<Long>> functionRuntimesNs = new ConcurrentHashMap<>();
     private final Map<String, AtomicDouble> functionAverageRuntimesNs = new ConcurrentHashMap<>();
     private final int runningAverageLength = 100;
@@ -60,8 +69,28 @@ public class ApiaryWorker {
 
     public ApiaryWorker(ApiaryScheduler scheduler, int numWorkerThreads, String provenanceDatabase, String provenanceAddress) {
         this.scheduler = scheduler;
-        reqThreadPool = new ThreadPoolExecutor(numWorkerThreads, numWorkerThreads, 0L, TimeUnit.MILLISECONDS, reqQueue);
-        repThreadPool = new ThreadPoolExecutor(numWorkerThreads, numWorkerThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        ExecutorService virtualThreadPool = ApiaryConfig.virtualThreads ? Utilities.newVirtualThreadExecutor() : null;
+        if (ApiaryConfig.virtualThreads && (virtualThreadPool == null)) {
+            logger.info("Virtual threads are not supported by this JVM, use {} worker threads.", numWorkerThreads);
+        }
+        useVirtualThreads = (virtualThreadPool != null);
+        if (useVirtualThreads) {
+            // Requests still go through scheduler priorities, but only a bounded number run at once.
+            int maxConcurrency = (ApiaryConfig.virtualThreadConcurrency > 0) ? ApiaryConfig.virtualThreadConcurrency : ApiaryConfig.postgresPoolSize;
+            reqThreadPool = new PriorityAdmissionGate(virtualThreadPool, maxConcurrency);
+            repThreadPool = virtualThreadPool;
+        } else {
+            // One pool for both requests and replies, so no thread idles while the other kind of work is queued.
+            reqThreadPool = new ThreadPoolExecutor(numWorkerThreads, numWorkerThreads, 0L, TimeUnit.MILLISECONDS, taskQueue);
+            repThreadPool = reqThreadPool;
+        }
+        if (ApiaryConfig.hedgeStateless) {
+            hedgingPolicy = new HedgingPolicy(ApiaryConfig.hedgePercentile, ApiaryConfig.hedgeBudget);
+            hedgeTimer = Executors.newSingleThreadScheduledExecutor();
+        } else {
+            hedgingPolicy = null;
+            hedgeTimer = null;
+        }
         for (int i = 0; i < runningAverageLength; i++) {
             defaultQueue.add(defaultTimeNs);
         }
@@ -92,7 +121,36 @@ public class ApiaryWorker {
         workerContext.registerFunction(name, type, function);
     }
 
+    // If ApiaryConfig.coalesceReadOnly is set, concurrent identical invocations of a read-only function may share one execution.
+    // A shared result always reflects read-write functions committed through this worker before the invocation arrived.
+    public void registerFunction(String name, String type, Callable<ApiaryFunction> function, boolean isReadOnly) {
+        workerContext.registerFunction(name, type, function, isReadOnly);
+    }
+
+    // Loss-tolerant functions may commit without waiting for the WAL flush, see ApiaryConfig.CommitMode.
+    public void registerFunction(String name, String type, Callable<ApiaryFunction> function, ApiaryConfig.CommitMode commitMode) {
+        workerContext.registerFunction(name, type, function, commitMode);
+    }
+
+    // Declare the SQL statements of a function, so the worker prepares them before serving.
+    public void registerStatements(String functionName, String... statements) {
+        workerContext.registerStatements(functionName, statements);
+    }
+
+    // The number of read-only invocations that shared the output of a concurrent identical invocation.
+    public long getNumCoalescedCalls() {
+        return readOnlyFlights.getNumShared();
+    }
+
     public void startServing() {
+        // Pay the cold start costs before accepting traffic.
+        long tStart = System.currentTimeMillis();
+        ApiaryConnection primary = workerContext.getPrimaryConnection();
+        primary.warmup(workerContext, workerContext.getStatements(workerContext.getPrimaryConnectionType()));
+        logger.info("Warmup took {} ms", System.currentTimeMillis() - tStart);
+        List<String> distinctHosts = workerContext.getPrimaryConnection().getPartitionHostMap()
+                .values().stream().distinct().collect(Collectors.toList());
+        statelessPlacement = new StatelessPlacement(distinctHosts);
         garbageCollectorThread = new Thread(this::garbageCollectorThread);
         garbageCollectorThread.start();
         serverThread = new Thread(this::serverThread);
@@ -109,8 +167,13 @@ public class ApiaryWorker {
             }
             reqThreadPool.shutdown();
             reqThreadPool.awaitTermination(10, TimeUnit.SECONDS);
-            repThreadPool.shutdown();
-            repThreadPool.awaitTermination(10, TimeUnit.SECONDS);
+            if (repThreadPool != reqThreadPool) {
+                repThreadPool.shutdown();
+                repThreadPool.awaitTermination(10, TimeUnit.SECONDS);
+            }
+            if (hedgeTimer != null) {
+                hedgeTimer.shutdownNow();
+            }
             if (serverThread != null) {
                 serverThread.interrupt();
             }
@@ -118,9 +181,19 @@ public class ApiaryWorker {
             if (serverThread != null) {
                 serverThread.join();
             }
+            // Flush pending provenance into the buffer before closing it.
+            if (workerContext.getPrimaryConnection() != null) {
+                workerContext.getPrimaryConnection().stopBackgroundTasks();
+            }
             if (workerContext.provBuff != null) {
                 workerContext.provBuff.close();
             }
+            if (workerContext.getPrimaryConnection() != null) {
+                workerContext.getPrimaryConnection().close();
+            }
+            for (ApiarySecondaryConnection c : workerContext.secondaryConnections.values()) {
+                c.close();
+            }
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
@@ -158,12 +231,24 @@ public class ApiaryWorker {
                     if (!removed) {
                         continue;
                     }
-                    String address = workerContext.getFunctionType(subtask.funcName).equals(ApiaryConfig.stateless) ?
-                            workerContext.getPrimaryConnection().getPartitionHostMap().get(0)
+                    boolean isStateless = workerContext.getFunctionType(subtask.funcName).equals(ApiaryConfig.stateless);
+                    String address = isStateless ?
+                            statelessPlacement.chooseHost(getQueueLength())
                             : workerContext.getPrimaryConnection().getHostname(subtask.input);
                     // Push to the outgoing queue.
                     byte[] reqBytes = InternalApiaryWorkerClient.serializeExecuteRequest(subtask.funcName, currTask.service, currTask.execId, currTask.replayMode, currCallerID, subtask.functionID, subtask.input);
+                    boolean hedged = isStateless && (hedgingPolicy != null) && (currTask.replayMode == ApiaryConfig.ReplayMode.NOT_REPLAY.getValue());
+                    if (hedged) {
+                        // Before sending, so a fast reply always finds its send time.
+                        currTask.statelessSendTimeNs.put(subtask.functionID, System.nanoTime());
+                    }
+                    if (isStateless) {
+                        statelessPlacement.onCall(address, currCallerID, subtask.functionID);
+                    }
                     outgoingReqMsgQueue.add(new OutgoingMsg(address, reqBytes));
+                    if (hedged) {
+                        scheduleHedge(currTask, currCallerID, subtask.functionID, address, reqBytes);
+                    }
                 }
                 numTraversed++;
                 if (numTraversed >= totalTasks) {
@@ -176,11 +261,68 @@ public class ApiaryWorker {
         }
     }
 
+    // Number of requests waiting to run at this worker, piggybacked on replies for load balancing.
+    // Replies share the task queue but are not load, so requests are counted separately.
+    private int getQueueLength() {
+        return Math.max(0, queuedRequests.get());
+    }
+
+    // If a stateless call has not replied within the hedging delay, send the same call to another worker.
+    private void scheduleHedge(ApiaryTaskStash currTask, long currCallerID, long functionID, String address, byte[] reqBytes) {
+        hedgingPolicy.onCall();
+        long delayNs = hedgingPolicy.getHedgeDelayNs();
+        if (delayNs < 0) {
+            return;
+        }
+        List<String> otherHosts = workerContext.getPrimaryConnection().getPartitionHostMap().values().stream()
+                .distinct().filter(h -> !h.equals(address)).collect(Collectors.toList());
+        if (otherHosts.isEmpty()) {
+            return;
+        }
+        String hedgeAddress = otherHosts.get(ThreadLocalRandom.current().nextInt(otherHosts.size()));
+        hedgeTimer.schedule(() -> {
+            // The first reply wins, later replies are ignored in resumeExecution.
+            if (currTask.functionIDToValue.containsKey(functionID) || (callerStashMap.get(currCallerID) != currTask)) {
+                return;
+            }
+            if (hedgingPolicy.tryAcquireHedge()) {
+                statelessPlacement.onCall(hedgeAddress, currCallerID, functionID);
+                outgoingReqMsgQueue.add(new OutgoingMsg(hedgeAddress, reqBytes));
+            }
+        }, delayNs, TimeUnit.NANOSECONDS);
+    }
+
+    // Reply once the commit is durable, or with an error if it cannot be made durable (e.g., a group commit timed out).
+    private void sendReplyWhenDurable(CompletableFuture<Void> durable, ZFrame replyAddr, long callerID, long functionID,
+                                      long senderTimestampNano, Object output) {
+        durable.whenComplete((v, e) -> {
+            Object replyOutput = output;
+            if (e != null) {
+                logger.error("Commit of caller {} function {} is not durable: {}", callerID, functionID, e.toString());
+                replyOutput = new FunctionOutput.Failure("Commit is not durable: " + e);
+            }
+            ExecuteFunctionReply.Builder b = Utilities.constructReply(callerID, functionID, senderTimestampNano, replyOutput)
+                    .setQueueLength(getQueueLength());
+            outgoingReplyMsgQueue.add(new OutgoingMsg(replyAddr, b.build().toByteArray()));
+        });
+    }
+
     // Resume the execution of the caller function, then send back a reply if everything is finished.
     private void resumeExecution(long callerID, long functionID, Object output) throws InterruptedException {
         ApiaryTaskStash callerTask = callerStashMap.get(callerID);
-        assert (callerTask != null);
-        callerTask.functionIDToValue.put(functionID, output);
+        if (callerTask == null) {
+            // Duplicate reply from a hedged call after the caller finished.
+            assert (hedgingPolicy != null);
+            return;
+        }
+        if (callerTask.functionIDToValue.putIfAbsent(functionID, output) != null) {
+            // Duplicate reply from a hedged call, ignore.
+            return;
+        }
+        Long sendTimeNs = callerTask.statelessSendTimeNs.remove(functionID);
+        if (sendTimeNs != null) {
+            hedgingPolicy.recordLatency(System.nanoTime() - sendTimeNs);
+        }
         processQueuedTasks(callerTask, callerID);
 
         int finishedTasks = callerTask.numFinishedTasks.incrementAndGet();
@@ -190,9 +332,8 @@ public class ApiaryWorker {
             Object finalOutput = callerTask.getFinalOutput();
             assert (finalOutput != null);
             // Send back the response only once.
-            ExecuteFunctionReply.Builder b = Utilities.constructReply(callerTask.callerId, callerTask.functionID,
+            sendReplyWhenDurable(callerTask.durable, callerTask.replyAddr, callerTask.callerId, callerTask.functionID,
                     callerTask.senderTimestampNano, finalOutput);
-            outgoingReplyMsgQueue.add(new OutgoingMsg(callerTask.replyAddr, b.build().toByteArray()));
 
             // Clean up the stash map.
             callerStashMap.remove(callerID);
@@ -204,15 +345,25 @@ public class ApiaryWorker {
                                  ZFrame replyAddr, long senderTimestampNano, Object[] arguments) throws InterruptedException {
         FunctionOutput o = null;
         long tStart = System.nanoTime();
+        CompletableFuture<Void> durable = null;
         try {
             o = callFunctionInternal(name, service, execID, functionID, replayMode, arguments);
+            // Replies wait until the function's commit is durable.
+            durable = workerContext.getPrimaryConnection().whenDurable();
         } catch (Exception e) {
             e.printStackTrace();
+            o = FunctionOutput.failed(e.getMessage());
         }
         long runtime = System.nanoTime() - tStart;
-        assert (o != null);
+        if (o == null) {
+            // Reply with an error instead of leaving the caller waiting.
+            o = FunctionOutput.failed(String.format("Function %s failed.", name));
+        }
         ApiaryTaskStash currTask = new ApiaryTaskStash(service, execID, callerID, functionID, replayMode, replyAddr, senderTimestampNano);
         currTask.output = o.output;
+        if (durable != null) {
+            currTask.durable = durable;
+        }
 
         // Store tasks in the list and async invoke all sub-tasks that are ready.
         // Caller ID to be passed to its subtasks;
@@ -229,8 +380,7 @@ public class ApiaryWorker {
         Object output = currTask.getFinalOutput();
         // If the output is not null, meaning everything is done. Directly return.
         if (output != null) {
-            ExecuteFunctionReply.Builder b = Utilities.constructReply(callerID, functionID, senderTimestampNano, output);
-            outgoingReplyMsgQueue.add(new OutgoingMsg(replyAddr, b.build().toByteArray()));
+            sendReplyWhenDurable(currTask.durable, replyAddr, callerID, functionID, senderTimestampNano, output);
         }
         // Record runtime.
         functionRuntimesNs.putIfAbsent(name, new ConcurrentLinkedDeque<>(defaultQueue));
@@ -253,7 +403,15 @@ public class ApiaryWorker {
             o = function.apiaryRunFunction(context, arguments);
         } else if (workerContext.getPrimaryConnectionType().equals(type)) {
             ApiaryConnection c = workerContext.getPrimaryConnection();
-            o = c.callFunction(name, workerContext, service, execID, functionID, replayMode, arguments);
+            long commitEpoch = c.getCommitEpoch();
+            // Do not coalesce if we need per-invocation provenance or replay.
+            if (ApiaryConfig.coalesceReadOnly && workerContext.isReadOnly(name) && (commitEpoch >= 0)
+                    && (workerContext.provBuff == null) && (replayMode == ApiaryConfig.ReplayMode.NOT_REPLAY.getValue())) {
+                o = readOnlyFlights.execute(name, arguments, commitEpoch,
+                        () -> c.callFunction(name, workerContext, service, execID, functionID, replayMode, arguments));
+            } else {
+                o = c.callFunction(name, workerContext, service, execID, functionID, replayMode, arguments);
+            }
         } else { // Execute a read-only secondary function without primary involvement using a cached txc.
             ApiarySecondaryConnection c = workerContext.getSecondaryConnection(type);
             TransactionContext txc = workerContext.getPrimaryConnection().getLatestTransactionContext();
@@ -265,6 +423,44 @@ public class ApiaryWorker {
         return o;
     }
 
+    // An original invocation to re-execute, ordered by the position it started at in the transaction ID space.
+    private static class RetroInvocation implements Comparable<RetroInvocation> {
+        final long txid;
+        final long execId;
+        final long funcId;
+        final String name;
+        final TransactionSnapshot snapshot;
+        final long startTimestamp;
+
+        RetroInvocation(long txid, long execId, long funcId, String name, TransactionSnapshot snapshot, long startTimestamp) {
+            this.txid = txid;
+            this.execId = execId;
+            this.funcId = funcId;
+            this.name = name;
+            this.snapshot = snapshot;
+            this.startTimestamp = startTimestamp;
+        }
+
+        // A read-only transaction sees everything before its xmax and nothing after, so it starts right at its xmax.
+        long getStartPosition() {
+            return txid >= 0 ? txid : snapshot.xmax;
+        }
+
+        @Override
+        public int compareTo(RetroInvocation o) {
+            int res = Long.compare(getStartPosition(), o.getStartPosition());
+            if (res != 0) {
+                return res;
+            }
+            // A writer whose ID equals the xmax of a read-only transaction is invisible to it, so start readers first.
+            res = Boolean.compare(o.txid < 0, txid < 0);
+            if (res != 0) {
+                return res;
+            }
+            return Long.compare(startTimestamp, o.startTimestamp);
+        }
+    }
+
     private void retroExecuteAll(long targetExecID, int replayMode, ZFrame replyAddr, long senderTimestampNano) throws Exception {
         logger.info("Retro execute the entire trace!");
         assert(workerContext.provBuff != null);
@@ -278,8 +474,8 @@ public class ApiaryWorker {
 
         // Find previous execution history, only execute later committed transactions.
         // TODO: should we re-execute aborted transaction (non-recoverable failures), especially for bug reproduction?
-        String provQuery = String.format("SELECT %s, %s FROM %s WHERE %s = %d AND %s=0 AND %s=0 AND %s=\'%s\';",
-                ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID, ProvenanceBuffer.PROV_EXECUTIONID,
+        String provQuery = String.format("SELECT %s, %s, %s FROM %s WHERE %s = %d AND %s=0 AND %s=0 AND %s=\'%s\';",
+                ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID, ProvenanceBuffer.PROV_EXECUTIONID, ProvenanceBuffer.PROV_TXN_SNAPSHOT,
                 ApiaryConfig.tableFuncInvocations,
                 ProvenanceBuffer.PROV_EXECUTIONID, targetExecID, ProvenanceBuffer.PROV_FUNCID,
                 ProvenanceBuffer.PROV_ISREPLAY, ProvenanceBuffer.PROV_FUNC_STATUS, ProvenanceBuffer.PROV_STATUS_COMMIT);
@@ -288,6 +484,10 @@ public class ApiaryWorker {
         long origTxid = -1;
         if (historyRs.next()) {
             origTxid = historyRs.getLong(ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID);
+            if (origTxid < 0) {
+                // A read-only transaction has a synthetic ID, start from the oldest transaction it may not have seen.
+                origTxid = TransactionSnapshot.decode(historyRs.getBytes(ProvenanceBuffer.PROV_TXN_SNAPSHOT)).xmin;
+            }
         } else {
             logger.error("No corresponding original transaction for execution {}", targetExecID);
             throw new RuntimeException("Cannot find original transaction!");
@@ -299,14 +499,35 @@ public class ApiaryWorker {
         // Maintain a pool of connections to the backend database to concurrently execute transactions.
 
         // This query finds the starting order of transactions.
-        String startOrderQuery = String.format("SELECT * FROM %s WHERE %s >= %d AND %s=0 AND %s=\'%s\' ORDER BY %s;",
+        // Read-only transactions have negative synthetic IDs, load them all and keep those positioned after origTxid.
+        String startOrderQuery = String.format("SELECT * FROM %s WHERE (%s >= %d OR %s < 0) AND %s=0 AND %s=\'%s\';",
                 ApiaryConfig.tableFuncInvocations, ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID, origTxid,
-                ProvenanceBuffer.PROV_ISREPLAY,  ProvenanceBuffer.PROV_FUNC_STATUS, ProvenanceBuffer.PROV_STATUS_COMMIT,
-                ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID);
+                ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID,
+                ProvenanceBuffer.PROV_ISREPLAY,  ProvenanceBuffer.PROV_FUNC_STATUS, ProvenanceBuffer.PROV_STATUS_COMMIT);
         ResultSet startOrderRs = stmt.executeQuery(startOrderQuery);
-        assert (startOrderRs.next());  // Should have at least one execution.
+        List<RetroInvocation> startOrder = new ArrayList<>();
+        Set<Long> rootExecIds = new HashSet<>();
+        while (startOrderRs.next()) {
+            String[] resNames = startOrderRs.getString(ProvenanceBuffer.PROV_PROCEDURENAME).split("\\.");
+            RetroInvocation inv = new RetroInvocation(startOrderRs.getLong(ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID),
+                    startOrderRs.getLong(ProvenanceBuffer.PROV_EXECUTIONID),
+                    startOrderRs.getLong(ProvenanceBuffer.PROV_FUNCID),
+                    resNames[resNames.length - 1], // Extract the actual function name.
+                    TransactionSnapshot.decode(startOrderRs.getBytes(ProvenanceBuffer.PROV_TXN_SNAPSHOT)),
+                    startOrderRs.getLong(ProvenanceBuffer.PROV_APIARY_TIMESTAMP));
+            if (inv.getStartPosition() < origTxid) {
+                continue;
+            }
+            startOrder.add(inv);
+            if (inv.funcId == 0L) {
+                rootExecIds.add(inv.execId);
+            }
+        }
+        startOrderRs.close();
+        assert (!startOrder.isEmpty());  // Should have at least one execution.
+        Collections.sort(startOrder);
 
-        // This query finds the commit order of transactions.
+        // This query finds the commit order of transactions. Only writers commit in order.
         String commitOrderQuery = String.format("SELECT %s, %s FROM %s WHERE %s >= %d AND %s=0 AND %s=\'%s\' ORDER BY %s;",
                 ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID, ProvenanceBuffer.PROV_EXECUTIONID,
                 ApiaryConfig.tableFuncInvocations, ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID, origTxid,
@@ -314,26 +535,34 @@ public class ApiaryWorker {
                 ProvenanceBuffer.PROV_END_TIMESTAMP);
         Statement commitOrderStmt = provConn.createStatement();
         ResultSet commitOrderRs = commitOrderStmt.executeQuery(commitOrderQuery);
-        // Next commit transaction ID, the next to be committed.
-        assert (commitOrderRs.next());
-        long nextCommitTxid = commitOrderRs.getLong(ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID);
+        // Next commit transaction ID, the next to be committed. Zero if only read-only transactions remain.
+        long nextCommitTxid = commitOrderRs.next() ? commitOrderRs.getLong(ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID) : 0;
 
-        // This query finds the original input.
-        String inputQuery = String.format("SELECT %s, r.%s, %s FROM %s AS r INNER JOIN %s as f ON r.%s = f.%s " +
-                        "WHERE %s >= %d AND %s = 0 AND %s = 0 AND %s=\'%s\' ORDER BY %s;",
-                ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID, ProvenanceBuffer.PROV_EXECUTIONID,
+        // This query finds the original input of every execution to replay. <execId, input>
+        String inputQuery = String.format("SELECT r.%s, %s FROM %s AS r INNER JOIN %s as f ON r.%s = f.%s " +
+                        "WHERE (%s >= %d OR %s < 0) AND %s = 0 AND %s = 0 AND %s=\'%s\';",
+                ProvenanceBuffer.PROV_EXECUTIONID,
                 ProvenanceBuffer.PROV_REQ_BYTES, ApiaryConfig.tableRecordedInputs,
                 ApiaryConfig.tableFuncInvocations, ProvenanceBuffer.PROV_EXECUTIONID,
                 ProvenanceBuffer.PROV_EXECUTIONID, ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID,
-                origTxid, ProvenanceBuffer.PROV_FUNCID, ProvenanceBuffer.PROV_ISREPLAY,
-                ProvenanceBuffer.PROV_FUNC_STATUS, ProvenanceBuffer.PROV_STATUS_COMMIT,
-                ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID
+                origTxid, ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID, ProvenanceBuffer.PROV_FUNCID,
+                ProvenanceBuffer.PROV_ISREPLAY, ProvenanceBuffer.PROV_FUNC_STATUS, ProvenanceBuffer.PROV_STATUS_COMMIT
         );
         Statement inputStmt = provConn.createStatement();
         ResultSet inputRs = inputStmt.executeQuery(inputQuery);
+        Map<Long, Object[]> execIdToInputs = new HashMap<>();
+        while (inputRs.next()) {
+            long inputExecId = inputRs.getLong(ProvenanceBuffer.PROV_EXECUTIONID);
+            if (rootExecIds.contains(inputExecId)) {
+                ExecuteFunctionRequest req = ExecuteFunctionRequest.parseFrom(inputRs.getBytes(ProvenanceBuffer.PROV_REQ_BYTES));
+                execIdToInputs.put(inputExecId, Utilities.getArgumentsFromRequest(req));
+            }
+        }
+        inputRs.close();
+        inputStmt.close();
 
-        // Cache inputs of the original execution. <execId, input>
-        long currInputExecId = -1;
+        // The last started execution, its output is the reply.
+        long lastExecId = -1;
         Object[] currInputs = null;
 
         // Store currently unresolved tasks. <execId, funcId, task>
@@ -349,64 +578,55 @@ public class ApiaryWorker {
         int connPoolSize = 10;  // Connection pool size. TODO: tune this.
         Queue<Connection> connPool = new ConcurrentLinkedQueue<>();
         for (int i = 0; i < connPoolSize; i++) {
-            connPool.add(workerContext.getPrimaryConnection().createNewConnection());
+            connPool.add(workerContext.getPrimaryConnection().acquireConnection());
         }
 
         // A pending commit map from transaction ID to connection. <txid, connection>
         Map<Long, Connection> pendingCommits = new HashMap<>();
 
-        while (nextCommitTxid > 0) {
+        int nextStart = 0;
+        while ((nextStart < startOrder.size()) || (nextCommitTxid > 0)) {
             // Execute all following functions until nextCommitTxid is in the snapshot of that original transaction.
             // If the nextCommitTxid is in the snapshot, then that function needs to start after it commits.
-            while (true) {
-                long resTxId = startOrderRs.getLong(ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID);
-                long resExecId = startOrderRs.getLong(ProvenanceBuffer.PROV_EXECUTIONID);
-                long resFuncId = startOrderRs.getLong(ProvenanceBuffer.PROV_FUNCID);
-                String[] resNames = startOrderRs.getString(ProvenanceBuffer.PROV_PROCEDURENAME).split("\\.");
-                String resName = resNames[resNames.length - 1]; // Extract the actual function name.
-                String resSnapshotStr = startOrderRs.getString(ProvenanceBuffer.PROV_TXN_SNAPSHOT);
-                long xmax = PostgresUtilities.parseXmax(resSnapshotStr);
-                List<Long> activeTxns = PostgresUtilities.parseActiveTransactions(resSnapshotStr);
-                if ((resTxId == nextCommitTxid) || (nextCommitTxid >= xmax) || (activeTxns.contains(nextCommitTxid))) {
-                    // Not in its snapshot. Start a new transaction.
-                    Connection currConn = connPool.poll();
-                    if (currConn == null) {
-                        throw new RuntimeException("Not enough connections to replay!");
-                    }
+            while (nextStart < startOrder.size()) {
+                RetroInvocation inv = startOrder.get(nextStart);
+                if ((nextCommitTxid > 0) && (inv.txid != nextCommitTxid) && inv.snapshot.isVisible(nextCommitTxid)) {
+                    break;  // Need to wait until nextCommitTxid to commit.
+                }
+                // Not in its snapshot. Start a new transaction.
+                Connection currConn = connPool.poll();
+                if (currConn == null) {
+                    throw new RuntimeException("Not enough connections to replay!");
+                }
 
-                    // Execute the function.
-                    // Get inputs.
-                    if ((resExecId != currInputExecId) && (resFuncId == 0l)) {
-                        // Read the input for this execution ID.
-                        if (inputRs.next()) {
-                            currInputExecId = inputRs.getLong(ProvenanceBuffer.PROV_EXECUTIONID);
-                            byte[] recordInput = inputRs.getBytes(ProvenanceBuffer.PROV_REQ_BYTES);
-                            ExecuteFunctionRequest req = ExecuteFunctionRequest.parseFrom(recordInput);
-                            currInputs = Utilities.getArgumentsFromRequest(req);
-                            if (currInputExecId != resExecId) {
-                                logger.error("Input execID {} does not match the expected ID {}!", currInputExecId, resExecId);
-                                throw new RuntimeException("Retro replay failed due to mismatched IDs.");
-                            }
-                            logger.info("Original arguments execid {}, inputs {}", currInputExecId, currInputs);
-                        } else {
-                            logger.error("Could not find the input for this execution ID {} ", resExecId);
-                            throw new RuntimeException("Retro replay failed due to missing input.");
-                        }
+                // Execute the function.
+                // Get inputs.
+                if (inv.funcId == 0L) {
+                    currInputs = execIdToInputs.get(inv.execId);
+                    if (currInputs == null) {
+                        logger.error("Could not find the input for this execution ID {} ", inv.execId);
+                        throw new RuntimeException("Retro replay failed due to missing input.");
                     }
+                    lastExecId = inv.execId;
+                    logger.info("Original arguments execid {}, inputs {}", inv.execId, currInputs);
+                }
 
-                    // TODO: Can we skip empty transactions?
-                    processReplayFunction(currConn, resExecId, resFuncId, resName, replayMode, currInputs, pendingTasks,
-                            execFuncIdToValue, execIdToFinalOutput);
-                    pendingCommits.put(resTxId, currConn);
-                    if (!startOrderRs.next()) {
-                        // No more to process.
-                        break;
-                    }
+                // TODO: Can we skip empty transactions?
+                processReplayFunction(currConn, inv.execId, inv.funcId, inv.name, replayMode, currInputs, pendingTasks,
+                        execFuncIdToValue, execIdToFinalOutput);
+                if (inv.txid < 0) {
+                    // Read-only transactions do not change the database, finish them right away.
+                    currConn.commit();
+                    connPool.add(currConn);
                 } else {
-                    break;  // Need to wait until nextCommitTxid to commit.
+                    pendingCommits.put(inv.txid, currConn);
                 }
+                nextStart++;
             }
 
+            if (nextCommitTxid <= 0) {
+                continue;
+            }
             // Commit the nextCommitTxid and update the variables.
             // The connection must be not null because it has to have started.
             Connection commitConn = pendingCommits.get(nextCommitTxid);
@@ -435,7 +655,7 @@ public class ApiaryWorker {
             throw new RuntimeException("Still more pending tasks to be solved! Currently do not support adding transactions.");
         }
 
-        Object output = execIdToFinalOutput.get(currInputExecId);  // The last execution ID.
+        Object output = execIdToFinalOutput.get(lastExecId);  // The last execution ID.
         ExecuteFunctionReply.Builder b = Utilities.constructReply(0l, 0l, senderTimestampNano, output);
         outgoingReplyMsgQueue.add(new OutgoingMsg(replyAddr, b.build().toByteArray()));
 
@@ -443,14 +663,11 @@ public class ApiaryWorker {
         while (!connPool.isEmpty()) {
             Connection currConn = connPool.poll();
             if (currConn != null) {
-                currConn.close();
+                workerContext.getPrimaryConnection().releaseConnection(currConn);
             }
         }
 
-        startOrderRs.close();
         stmt.close();
-        inputRs.close();
-        inputStmt.close();
         commitOrderRs.close();
         commitOrderStmt.close();
 
@@ -542,12 +759,12 @@ public class ApiaryWorker {
         return true;
     }
 
-    private class RequestRunnable implements Runnable, Comparable<RequestRunnable> {
+    private class RequestRunnable extends WorkerRunnable {
         private final ExecuteFunctionRequest req;
         private final ZFrame address;
-        public long priority;
 
         public RequestRunnable(ZFrame address, ExecuteFunctionRequest req) {
+            this.priorityClass = requestClass;
             this.address = address;
             this.req = req;
             try {
@@ -560,6 +777,7 @@ public class ApiaryWorker {
 
         @Override
         public void run() {
+            queuedRequests.decrementAndGet();
             // Handle the request.
             try {
                 scheduler.onDequeue(req);
@@ -592,17 +810,17 @@ public class ApiaryWorker {
                 e.printStackTrace();
             }
         }
-
-        @Override
-        public int compareTo(RequestRunnable requestRunnable) {
-            return Long.compare(priority, requestRunnable.priority);
-        }
     }
 
-    private class ReplyRunnable implements Runnable {
+    private class ReplyRunnable extends WorkerRunnable {
+        private final String hostname;
         private final byte[] replyBytes;
 
-        public ReplyRunnable(byte[] reply) {
+        public ReplyRunnable(String hostname, byte[] reply) {
+            // Replies run in arrival order.
+            this.priorityClass = replyClass;
+            this.priority = replySeqNums.getAndIncrement();
+            this.hostname = hostname;
             this.replyBytes = reply;
         }
 
@@ -614,10 +832,15 @@ public class ApiaryWorker {
                 Object output = Utilities.getOutputFromReply(reply);
                 long callerID = reply.getCallerId();
                 long functionID = reply.getFunctionId();
+                statelessPlacement.onReply(hostname, reply.getQueueLength(), callerID, functionID);
                 // Resume execution.
                 resumeExecution(callerID, functionID, output);
             } catch (InvalidProtocolBufferException | InterruptedException e) {
                 e.printStackTrace();
+            } finally {
+                if (useVirtualThreads) {
+                    PooledThreadLocal.releaseAll();
+                }
             }
         }
     }
@@ -664,6 +887,8 @@ public class ApiaryWorker {
                     byte[] reqBytes = content.getData();
                     ExecuteFunctionRequest req = ExecuteFunctionRequest.parseFrom(reqBytes);
                     reqThreadPool.execute(new RequestRunnable(address, req));
+                    // After a successful execute; the count may briefly go negative if the request starts first.
+                    queuedRequests.incrementAndGet();
                 } catch (ZMQException e) {
                     if (e.getErrorCode() == ZMQ.Error.ETERM.getCode() || e.getErrorCode() == ZMQ.Error.EINTR.getCode()) {
                         break;
@@ -687,7 +912,7 @@ public class ApiaryWorker {
                         byte[] replyBytes = content.getData();
                         msg.destroy();
 
-                        repThreadPool.execute(new ReplyRunnable(replyBytes));
+                        repThreadPool.execute(new ReplyRunnable(hostname, replyBytes));
                     } catch (ZMQException e) {
                         if (e.getErrorCode() == ZMQ.Error.ETERM.getCode() || e.getErrorCode() == ZMQ.Error.EINTR.getCode()) {
                             break;
@@ -0,0 +1,67 @@
+package org.dbos.apiary.worker;
+
+import java.util.Arrays;
+
+/**
+ * Decide when to hedge a stateless function call: send a duplicate to another worker if the first one has not
+ * replied within a latency percentile. Hedges are paid for with a token budget refilled by regular calls,
+ * so hedging can add at most a fixed fraction of extra load.
+ */
+public class HedgingPolicy {
+    private static final int windowSize = 1024;  // Number of recent latencies to compute the percentile.
+    private static final int minSamples = 100;  // Do not hedge until we have enough samples.
+    private static final int refreshInterval = 64;  // Recompute the percentile every N samples.
+    private static final double maxTokens = 10.0;  // Allow small bursts of hedges.
+
+    private final int percentile;
+    private final double budget;
+
+    private final long[] latenciesNs = new long[windowSize];
+    private int nextSample = 0;
+    private int numSamples = 0;
+    private volatile long hedgeDelayNs = -1;
+    private double tokens = 0;
+
+    /**
+     * @param percentile    hedge calls slower than this latency percentile (1-100).
+     * @param budget        maximum ratio of hedged calls to regular calls.
+     */
+    public HedgingPolicy(int percentile, double budget) {
+        assert (percentile > 0 && percentile <= 100);
+        this.percentile = percentile;
+        this.budget = budget;
+    }
+
+    public synchronized void recordLatency(long latencyNs) {
+        latenciesNs[nextSample] = latencyNs;
+        nextSample = (nextSample + 1) % windowSize;
+        numSamples++;
+        if ((numSamples >= minSamples) && (numSamples % refreshInterval == 0)) {
+            int sz = Math.min(numSamples, windowSize);
+            long[] sorted = Arrays.copyOf(latenciesNs, sz);
+            Arrays.sort(sorted);
+            int i = (int) (Math.ceil(percentile / 100.0 * sz) - 1.0);
+            hedgeDelayNs = sorted[Math.max(i, 0)];
+        }
+    }
+
+    /**
+     * @return the delay after which a call should be hedged, or -1 if there are not enough samples yet.
+     */
+    public long getHedgeDelayNs() {
+        return hedgeDelayNs;
+    }
+
+    // Each regular call earns a fraction of a hedge.
+    public synchronized void onCall() {
+        tokens = Math.min(maxTokens, tokens + budget);
+    }
+
+    public synchronized boolean tryAcquireHedge() {
+        if (tokens >= 1.0) {
+            tokens -= 1.0;
+            return true;
+        }
+        return false;
+    }
+}
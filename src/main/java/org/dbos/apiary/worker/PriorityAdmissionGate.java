@@ -0,0 +1,115 @@
+package org.dbos.apiary.worker;
+
+import org.dbos.apiary.utilities.PooledThreadLocal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Admit prioritized tasks to an unbounded executor (e.g., one virtual thread per task) with bounded concurrency.
+ * Tasks wait in a priority queue, so when all slots are taken the next free slot goes to the task with
+ * the best scheduler priority. Tasks must implement {@link Comparable}.
+ */
+public class PriorityAdmissionGate extends AbstractExecutorService {
+    private static final Logger logger = LoggerFactory.getLogger(PriorityAdmissionGate.class);
+
+    private final ExecutorService executor;  // Not owned by the gate, the caller shuts it down.
+    private final int maxConcurrency;
+    private final Semaphore permits;
+    private final PriorityBlockingQueue<Runnable> admissionQueue = new PriorityBlockingQueue<>();
+    private final Thread dispatcherThread;
+    private volatile boolean isShutdown = false;
+
+    public PriorityAdmissionGate(ExecutorService executor, int maxConcurrency) {
+        this.executor = executor;
+        this.maxConcurrency = maxConcurrency;
+        this.permits = new Semaphore(maxConcurrency);
+        this.dispatcherThread = new Thread(this::dispatcherThread);
+        // A gate that is never shut down must not keep the JVM alive.
+        this.dispatcherThread.setDaemon(true);
+        this.dispatcherThread.start();
+    }
+
+    private void dispatcherThread() {
+        while (!isShutdown || !admissionQueue.isEmpty()) {
+            try {
+                permits.acquire();
+                Runnable task = admissionQueue.poll(100, TimeUnit.MILLISECONDS);
+                if (task == null) {
+                    permits.release();
+                    continue;
+                }
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        // The thread is gone after this task, so return its pooled resources.
+                        PooledThreadLocal.releaseAll();
+                        permits.release();
+                    }
+                });
+            } catch (InterruptedException e) {
+                return;
+            } catch (RejectedExecutionException e) {
+                logger.info("Executor rejected an admitted task.");
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * @return the number of tasks waiting for admission.
+     */
+    public int queueLength() {
+        return admissionQueue.size();
+    }
+
+    @Override
+    public void execute(Runnable runnable) {
+        if (isShutdown) {
+            throw new RejectedExecutionException("Admission gate is shut down.");
+        }
+        admissionQueue.offer(runnable);
+    }
+
+    @Override
+    public void shutdown() {
+        isShutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        isShutdown = true;
+        List<Runnable> pending = new ArrayList<>();
+        admissionQueue.drainTo(pending);
+        dispatcherThread.interrupt();
+        return pending;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return isShutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return isShutdown && !dispatcherThread.isAlive() && (permits.availablePermits() == maxConcurrency);
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        dispatcherThread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        // Wait for admitted tasks to finish.
+        while (!isTerminated()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+}
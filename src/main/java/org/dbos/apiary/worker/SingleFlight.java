@@ -0,0 +1,104 @@
+package org.dbos.apiary.worker;
+
+import org.dbos.apiary.function.FunctionOutput;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesce concurrent identical invocations (same function name and arguments) of read-only functions.
+ * The first invocation runs the function; invocations arriving while it runs wait and share its output,
+ * as long as no read-write function committed in between (tracked by the connection's commit epoch).
+ */
+public class SingleFlight {
+
+    private static class FlightKey {
+        private final String name;
+        private final Object[] arguments;
+        private final int hash;
+
+        FlightKey(String name, Object[] arguments) {
+            this.name = name;
+            this.arguments = arguments;
+            this.hash = 31 * name.hashCode() + Arrays.deepHashCode(arguments);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof FlightKey)) return false;
+            FlightKey other = (FlightKey) o;
+            return name.equals(other.name) && Arrays.deepEquals(arguments, other.arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static class Flight {
+        final long commitEpoch;
+        final CompletableFuture<FunctionOutput> output = new CompletableFuture<>();
+
+        Flight(long commitEpoch) {
+            this.commitEpoch = commitEpoch;
+        }
+    }
+
+    private final Map<FlightKey, Flight> flights = new ConcurrentHashMap<>();
+    private final AtomicLong numShared = new AtomicLong(0);
+
+    /**
+     * Run a read-only invocation, or share the output of an identical one already in flight.
+     * @param name          the function name.
+     * @param arguments     the function arguments.
+     * @param commitEpoch   the connection's commit epoch observed when this invocation arrived.
+     * @param call          executes the function.
+     * @return the function output.
+     */
+    public FunctionOutput execute(String name, Object[] arguments, long commitEpoch, Callable<FunctionOutput> call) throws Exception {
+        FlightKey key = new FlightKey(name, arguments);
+        Flight flight = new Flight(commitEpoch);
+        Flight existing = flights.putIfAbsent(key, flight);
+        if (existing != null) {
+            // Only share if the leader's snapshot cannot miss a write committed before we arrived.
+            if (existing.commitEpoch == commitEpoch) {
+                FunctionOutput o = null;
+                try {
+                    o = existing.output.get();
+                } catch (ExecutionException e) {
+                    // The leader failed, run on our own.
+                }
+                // Outputs with pending subtasks are tied to the leader's function ID, cannot share them.
+                if ((o != null) && o.queuedTasks.isEmpty()) {
+                    numShared.incrementAndGet();
+                    return o;
+                }
+            }
+            return call.call();
+        }
+        try {
+            FunctionOutput o = call.call();
+            flight.output.complete(o);
+            return o;
+        } catch (Exception e) {
+            flight.output.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * @return the number of invocations that shared the output of another one.
+     */
+    public long getNumShared() {
+        return numShared.get();
+    }
+}
@@ -0,0 +1,123 @@
+package org.dbos.apiary.worker;
+
+import org.dbos.apiary.utilities.ApiaryConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Choose which worker runs a stateless function call.
+ * The load of a worker is the queue length it reported in its last reply plus our calls still outstanding to it.
+ */
+public class StatelessPlacement {
+    private static final Logger logger = LoggerFactory.getLogger(StatelessPlacement.class);
+
+    private final List<String> hosts;
+    private final String localHost;  // Null if this worker is not in the host list.
+    private final Map<String, AtomicInteger> reportedQueueLength = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> outstandingCalls = new ConcurrentHashMap<>();
+    // The outstanding stateless calls, so replies to other calls do not decrease the count.
+    private final Set<String> pendingCalls = ConcurrentHashMap.newKeySet();
+
+    public StatelessPlacement(List<String> hosts) {
+        assert (!hosts.isEmpty());
+        this.hosts = hosts;
+        for (String host : hosts) {
+            reportedQueueLength.put(host, new AtomicInteger(0));
+            outstandingCalls.put(host, new AtomicInteger(0));
+        }
+        this.localHost = findLocalHost(hosts);
+    }
+
+    private static String findLocalHost(List<String> hosts) {
+        if (hosts.contains("localhost")) {
+            return "localhost";
+        }
+        try {
+            InetAddress local = InetAddress.getLocalHost();
+            for (String host : hosts) {
+                if (host.equals(local.getHostName()) || host.equals(local.getCanonicalHostName())
+                        || host.equals(local.getHostAddress())) {
+                    return host;
+                }
+            }
+        } catch (UnknownHostException e) {
+            logger.info("Cannot resolve local hostname, stateless calls are never pinned locally.");
+        }
+        return null;
+    }
+
+    private int getLoad(String host) {
+        return reportedQueueLength.get(host).get() + outstandingCalls.get(host).get();
+    }
+
+    /**
+     * Choose a host for a stateless function call.
+     * @param localQueueLength  number of requests queued at this worker.
+     * @return the chosen hostname.
+     */
+    public String chooseHost(int localQueueLength) {
+        if (hosts.size() == 1) {
+            return hosts.get(0);
+        }
+        if ((localHost != null) && (localQueueLength <= ApiaryConfig.statelessLocalQueueThreshold)) {
+            return localHost;
+        }
+        switch (ApiaryConfig.statelessPlacement) {
+            case LEAST_LOADED: {
+                String best = hosts.get(0);
+                for (String host : hosts) {
+                    if (getLoad(host) < getLoad(best)) {
+                        best = host;
+                    }
+                }
+                return best;
+            }
+            case POWER_OF_TWO_CHOICES: {
+                ThreadLocalRandom r = ThreadLocalRandom.current();
+                String first = hosts.get(r.nextInt(hosts.size()));
+                String second = hosts.get(r.nextInt(hosts.size()));
+                return (getLoad(second) < getLoad(first)) ? second : first;
+            }
+            default:
+                return hosts.get(0);
+        }
+    }
+
+    private static String getCallKey(String host, long callerID, long functionID) {
+        return callerID + ":" + functionID + "@" + host;
+    }
+
+    /**
+     * Record a stateless function call sent to a host.
+     */
+    public void onCall(String host, long callerID, long functionID) {
+        AtomicInteger outstanding = outstandingCalls.get(host);
+        if ((outstanding != null) && pendingCalls.add(getCallKey(host, callerID, functionID))) {
+            outstanding.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record a reply from a host, to any function call.
+     * @param queueLength   the queue length reported by the host.
+     */
+    public void onReply(String host, int queueLength, long callerID, long functionID) {
+        AtomicInteger outstanding = outstandingCalls.get(host);
+        if (outstanding == null) {
+            return;
+        }
+        if (pendingCalls.remove(getCallKey(host, callerID, functionID))) {
+            outstanding.decrementAndGet();
+        }
+        reportedQueueLength.get(host).set(queueLength);
+    }
+}
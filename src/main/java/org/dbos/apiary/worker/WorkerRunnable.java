@@ -0,0 +1,21 @@
+package org.dbos.apiary.worker;
+
+/**
+ * A task of a worker, in its request and reply queue.
+ * Tasks are ordered first by class (replies before requests), then by priority within the class.
+ */
+public abstract class WorkerRunnable implements Runnable, Comparable<WorkerRunnable> {
+    public static final int replyClass = 0;
+    public static final int requestClass = 1;
+
+    protected int priorityClass;
+    public long priority;
+
+    @Override
+    public int compareTo(WorkerRunnable other) {
+        if (priorityClass != other.priorityClass) {
+            return Integer.compare(priorityClass, other.priorityClass);
+        }
+        return Long.compare(priority, other.priority);
+    }
+}
@@ -2,8 +2,10 @@ package org.dbos.apiary;
 
 import com.google.protobuf.InvalidProtocolBufferException;
 import org.dbos.apiary.client.ApiaryWorkerClient;
+import org.dbos.apiary.function.FunctionOutput;
 import org.dbos.apiary.function.ProvenanceBuffer;
 import org.dbos.apiary.postgres.PostgresConnection;
+import org.dbos.apiary.postgres.ShardedPostgresConnection;
 import org.dbos.apiary.procedures.postgres.replay.*;
 import org.dbos.apiary.procedures.postgres.retwis.*;
 import org.dbos.apiary.procedures.postgres.tests.*;
@@ -17,6 +19,9 @@ import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -57,6 +62,9 @@ public class PostgresTests {
             conn.createTable("ForumSubscription", "UserId integer NOT NULL, ForumId integer NOT NULL");
             conn.dropTable("BigIntTable");
             conn.createTable("BigIntTable", "col1 BIGINT NOT NULL, col2 BIGINT NOT NULL, col3 BIGINT NOT NULL");
+            conn.dropTable("TypedTable");
+            conn.createTable("TypedTable", "Id integer PRIMARY KEY NOT NULL, Small SMALLINT NOT NULL, Big BIGINT NOT NULL, " +
+                    "Ratio DOUBLE PRECISION NOT NULL, Name VARCHAR(100) NOT NULL, Created TIMESTAMP NOT NULL, CreatedTz TIMESTAMPTZ NOT NULL");
             conn.dropTable(ProvenanceBuffer.PROV_ApiaryMetadata);
             conn.dropTable(ProvenanceBuffer.PROV_QueryMetadata);
         } catch (Exception e) {
@@ -100,6 +108,58 @@ public class PostgresTests {
         assertEquals(numRows, res);
     }
 
+    @Test
+    public void testBulkCopyMatchesBatch() throws SQLException, InvalidProtocolBufferException {
+        logger.info("testBulkCopyMatchesBatch");
+        PostgresConnection conn = new PostgresConnection("localhost", ApiaryConfig.postgresPort, "postgres", "dbos");
+
+        apiaryWorker = new ApiaryWorker(new ApiaryNaiveScheduler(), 4);
+        apiaryWorker.registerConnection(ApiaryConfig.postgres, conn);
+        apiaryWorker.registerFunction("PostgresInsertTypedRows", ApiaryConfig.postgres, PostgresInsertTypedRows::new);
+        apiaryWorker.startServing();
+
+        ApiaryWorkerClient client = new ApiaryWorkerClient("localhost");
+
+        int numRows = 100;
+        int origThreshold = ApiaryConfig.bulkCopyThreshold;
+        try {
+            // Insert the same rows once with COPY and once with a batch insert.
+            ApiaryConfig.bulkCopyThreshold = 0;
+            assertEquals(numRows, client.executeFunction("PostgresInsertTypedRows", 0, numRows).getInt());
+            ApiaryConfig.bulkCopyThreshold = -1;
+            assertEquals(numRows, client.executeFunction("PostgresInsertTypedRows", numRows, numRows).getInt());
+        } finally {
+            ApiaryConfig.bulkCopyThreshold = origThreshold;
+        }
+
+        Connection c = conn.acquireConnection();
+        try {
+            String query = "SELECT Small, Big, Ratio, Name, Created, CreatedTz FROM TypedTable WHERE Id >= ? AND Id < ? ORDER BY Id;";
+            PreparedStatement copied = c.prepareStatement(query);
+            copied.setInt(1, 0);
+            copied.setInt(2, numRows);
+            PreparedStatement batched = c.prepareStatement(query);
+            batched.setInt(1, numRows);
+            batched.setInt(2, 2 * numRows);
+            ResultSet copiedRs = copied.executeQuery();
+            ResultSet batchedRs = batched.executeQuery();
+            int numColumns = copiedRs.getMetaData().getColumnCount();
+            for (int i = 0; i < numRows; i++) {
+                assertTrue(copiedRs.next());
+                assertTrue(batchedRs.next());
+                for (int col = 1; col <= numColumns; col++) {
+                    assertEquals(batchedRs.getObject(col), copiedRs.getObject(col), "Row " + i + " column " + col);
+                }
+            }
+            assertFalse(copiedRs.next());
+            assertFalse(batchedRs.next());
+            copied.close();
+            batched.close();
+        } finally {
+            conn.releaseConnection(c);
+        }
+    }
+
     @Test
     public void testForumSubscribe() throws SQLException, InvalidProtocolBufferException {
         logger.info("testForumSubscribe");
@@ -260,4 +320,160 @@ public class PostgresTests {
         assertTrue(Arrays.asList(timeline).contains("hello1"));
         assertTrue(Arrays.asList(timeline).contains("hello2"));
     }
+
+    @Test
+    public void testShardedRouting() throws InvalidProtocolBufferException, SQLException {
+        logger.info("testShardedRouting");
+
+        // Two shards on the same database and worker, so calls to the second shard take the routing paths locally.
+        ShardedPostgresConnection conn = new ShardedPostgresConnection(List.of("localhost", "localhost"), 0, ApiaryConfig.postgresPort, "postgres", "dbos");
+        int localUser = 0;
+        while (ShardedPostgresConnection.getPartition(localUser, 2) != 0) {
+            localUser++;
+        }
+        int remoteUser = 0;
+        while (ShardedPostgresConnection.getPartition(remoteUser, 2) != 1) {
+            remoteUser++;
+        }
+        assertTrue(conn.isLocal(localUser));
+        assertFalse(conn.isLocal(remoteUser));
+        assertTrue(conn.isLocal());
+        assertEquals("localhost", conn.getHostname(remoteUser));
+        assertEquals("localhost", conn.getHostname());
+
+        apiaryWorker = new ApiaryWorker(new ApiaryNaiveScheduler(), 4, ApiaryConfig.postgres, ApiaryConfig.provenanceDefaultAddress);
+        apiaryWorker.registerConnection(ApiaryConfig.postgres, conn);
+        apiaryWorker.registerFunction("RetwisPost", ApiaryConfig.postgres, RetwisPost::new);
+        apiaryWorker.registerFunction("RetwisFollow", ApiaryConfig.postgres, RetwisFollow::new);
+        apiaryWorker.registerFunction("RetwisGetPosts", ApiaryConfig.postgres, RetwisGetPosts::new, true);
+        apiaryWorker.registerFunction("RetwisGetFollowees", ApiaryConfig.postgres, RetwisGetFollowees::new, true);
+        apiaryWorker.registerFunction("RetwisGetTimeline", ApiaryConfig.postgres, RetwisGetTimeline::new, true);
+        apiaryWorker.registerFunction("PostgresFibonacciFunction", ApiaryConfig.postgres, PostgresFibonacciFunction::new);
+        apiaryWorker.registerFunction("PostgresFibSumFunction", ApiaryConfig.postgres, PostgresFibSumFunction::new);
+        apiaryWorker.startServing();
+
+        ApiaryWorkerClient client = new ApiaryWorkerClient("localhost");
+
+        // Queued functions are routed by key, half of them run on the remote shard.
+        assertEquals(55, client.executeFunction("PostgresFibonacciFunction", 10).getInt());
+
+        assertEquals(localUser, client.executeFunction("RetwisPost", localUser, 0, 0, "local").getInt());
+        assertEquals(remoteUser, client.executeFunction("RetwisPost", remoteUser, 1, 1, "remote").getInt());
+        assertEquals(localUser, client.executeFunction("RetwisFollow", localUser, localUser).getInt());
+        assertEquals(localUser, client.executeFunction("RetwisFollow", localUser, remoteUser).getInt());
+
+        // The timeline reads the posts of the remote followee from its own shard.
+        String[] timeline = client.executeFunction("RetwisGetTimeline", localUser).getStringArray();
+        assertEquals(2, timeline.length);
+        assertTrue(Arrays.asList(timeline).contains("local"));
+        assertTrue(Arrays.asList(timeline).contains("remote"));
+    }
+
+    @Test
+    public void testReadOnlyCoalescing() throws InvalidProtocolBufferException, SQLException, InterruptedException, ExecutionException {
+        logger.info("testReadOnlyCoalescing");
+        ApiaryConfig.coalesceReadOnly = true;
+        try {
+            PostgresConnection conn = new PostgresConnection("localhost", ApiaryConfig.postgresPort, "postgres", "dbos");
+
+            apiaryWorker = new ApiaryWorker(new ApiaryNaiveScheduler(), 4);
+            apiaryWorker.registerConnection(ApiaryConfig.postgres, conn);
+            apiaryWorker.registerFunction("PostgresIncrementFunction", ApiaryConfig.postgres, PostgresIncrementFunction::new);
+            apiaryWorker.registerFunction("PostgresSlowGetValue", ApiaryConfig.postgres, PostgresSlowGetValue::new, true);
+            apiaryWorker.startServing();
+
+            ApiaryWorkerClient client = new ApiaryWorkerClient("localhost");
+            int resInt = client.executeFunction("PostgresIncrementFunction", 0).getInt();
+            assertEquals(1, resInt);
+
+            // Each read takes 100 ms, so concurrent identical reads overlap and share executions.
+            int numCalls = 16;
+            ExecutorService threadPool = Executors.newFixedThreadPool(numCalls);
+            List<Callable<Integer>> tasks = new ArrayList<>();
+            for (int i = 0; i < numCalls; i++) {
+                tasks.add(() -> new ApiaryWorkerClient("localhost").executeFunction("PostgresSlowGetValue", 0).getInt());
+            }
+            for (Future<Integer> future : threadPool.invokeAll(tasks)) {
+                assertEquals(1, future.get());
+            }
+            threadPool.shutdown();
+            long numCoalesced = apiaryWorker.getNumCoalescedCalls();
+            assertTrue(numCoalesced > 0);
+            assertTrue(numCoalesced < numCalls);
+
+            // A read after a committed write must observe it, and not share the output of an earlier read.
+            resInt = client.executeFunction("PostgresIncrementFunction", 0).getInt();
+            assertEquals(2, resInt);
+            resInt = client.executeFunction("PostgresSlowGetValue", 0).getInt();
+            assertEquals(2, resInt);
+            assertEquals(numCoalesced, apiaryWorker.getNumCoalescedCalls());
+        } finally {
+            ApiaryConfig.coalesceReadOnly = false;
+        }
+    }
+
+    @Test
+    public void testCommitModes() throws InvalidProtocolBufferException, SQLException {
+        logger.info("testCommitModes");
+        PostgresConnection conn = new PostgresConnection("localhost", ApiaryConfig.postgresPort, "postgres", "dbos");
+
+        apiaryWorker = new ApiaryWorker(new ApiaryNaiveScheduler(), 4);
+        apiaryWorker.registerConnection(ApiaryConfig.postgres, conn);
+        apiaryWorker.registerFunction("PostgresIncrementFunction", ApiaryConfig.postgres, PostgresIncrementFunction::new);
+        apiaryWorker.registerFunction("PostgresIncrementGroup", ApiaryConfig.postgres, PostgresIncrementFunction::new,
+                ApiaryConfig.CommitMode.GROUP_COMMIT);
+        apiaryWorker.registerFunction("PostgresIncrementAsync", ApiaryConfig.postgres, PostgresIncrementFunction::new,
+                ApiaryConfig.CommitMode.ASYNCHRONOUS);
+        apiaryWorker.startServing();
+
+        ApiaryWorkerClient client = new ApiaryWorkerClient("localhost");
+
+        // Every mode commits, and later calls in any mode see the commits.
+        int expected = 0;
+        String[] functions = {"PostgresIncrementFunction", "PostgresIncrementGroup", "PostgresIncrementAsync"};
+        for (int i = 0; i < 10; i++) {
+            for (String function : functions) {
+                FunctionOutput o = client.executeFunction(function, 0);
+                assertFalse(o.isFailed(), o.getErrorMessage());
+                expected++;
+                assertEquals(expected, o.getInt());
+            }
+        }
+
+        // Stop the worker, flushing pending group commits and closing its connections, then a new worker sees every commit.
+        apiaryWorker.shutdown();
+        conn = new PostgresConnection("localhost", ApiaryConfig.postgresPort, "postgres", "dbos");
+        apiaryWorker = new ApiaryWorker(new ApiaryNaiveScheduler(), 4);
+        apiaryWorker.registerConnection(ApiaryConfig.postgres, conn);
+        apiaryWorker.registerFunction("PostgresIncrementGroup", ApiaryConfig.postgres, PostgresIncrementFunction::new,
+                ApiaryConfig.CommitMode.GROUP_COMMIT);
+        apiaryWorker.startServing();
+        assertEquals(expected + 1, client.executeFunction("PostgresIncrementGroup", 0).getInt());
+    }
+
+    @Test
+    public void testTransactionReadCache() throws InvalidProtocolBufferException {
+        logger.info("testTransactionReadCache");
+        PostgresConnection conn = new PostgresConnection("localhost", ApiaryConfig.postgresPort, "postgres", "dbos");
+
+        apiaryWorker = new ApiaryWorker(new ApiaryNaiveScheduler(), 4);
+        apiaryWorker.registerConnection(ApiaryConfig.postgres, conn);
+        apiaryWorker.registerFunction("PostgresReadCache", ApiaryConfig.postgres, PostgresReadCache::new);
+        apiaryWorker.startServing();
+
+        ApiaryWorkerClient client = new ApiaryWorkerClient("localhost");
+
+        // Without the cache, every read runs again.
+        int[] res = client.executeFunction("PostgresReadCache", 1, 10).getIntArray();
+        assertArrayEquals(new int[]{0, 11, 12, 10}, res);
+
+        ApiaryConfig.transactionReadCache = true;
+        try {
+            // A repeated read hits the cache, and executeUpdate, executeUpdateBatch, and insertMany each evict it.
+            res = client.executeFunction("PostgresReadCache", 5, 50).getIntArray();
+            assertArrayEquals(new int[]{1, 51, 52, 50}, res);
+        } finally {
+            ApiaryConfig.transactionReadCache = false;
+        }
+    }
 }
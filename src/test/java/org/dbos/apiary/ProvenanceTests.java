@@ -8,9 +8,14 @@ import org.dbos.apiary.procedures.postgres.replay.PostgresFetchSubscribers;
 import org.dbos.apiary.procedures.postgres.replay.PostgresForumSubscribe;
 import org.dbos.apiary.procedures.postgres.replay.PostgresIsSubscribed;
 import org.dbos.apiary.procedures.postgres.retro.PostgresIsSubscribedTxn;
+import org.dbos.apiary.procedures.postgres.retwis.*;
 import org.dbos.apiary.procedures.postgres.tests.PostgresProvenanceBasic;
+import org.dbos.apiary.procedures.postgres.tests.PostgresProvenanceBatch;
 import org.dbos.apiary.procedures.postgres.tests.PostgresProvenanceJoins;
 import org.dbos.apiary.procedures.postgres.tests.PostgresProvenanceMultiRows;
+import org.dbos.apiary.procedures.postgres.tests.PostgresProvenancePartialRead;
+import org.dbos.apiary.procedures.postgres.tests.PostgresReadCacheReplay;
+import org.dbos.apiary.procedures.postgres.tests.PostgresProvenanceUpdateBatch;
 import org.dbos.apiary.utilities.ApiaryConfig;
 import org.dbos.apiary.utilities.Utilities;
 import org.dbos.apiary.worker.ApiaryNaiveScheduler;
@@ -67,6 +72,10 @@ public class ProvenanceTests {
             conn.createTable("KVTableTwo", "KVKeyTwo integer PRIMARY KEY NOT NULL, KVValueTwo integer NOT NULL");
             conn.dropTable("ForumSubscription");
             conn.createTable("ForumSubscription", "UserId integer NOT NULL, ForumId integer NOT NULL");
+            conn.dropTable("RetwisPosts");
+            conn.createTable("RetwisPosts", "UserID integer NOT NULL, PostID integer NOT NULL, Timestamp integer NOT NULL, Post varchar(1000) NOT NULL");
+            conn.dropTable("RetwisFollowees");
+            conn.createTable("RetwisFollowees", "UserID integer NOT NULL, FolloweeID integer NOT NULL");
         } catch (Exception e) {
             e.printStackTrace();
             logger.info("Failed to connect to Postgres.");
@@ -230,6 +239,114 @@ public class ProvenanceTests {
         Thread.sleep(ProvenanceBuffer.exportInterval * 2);
     }
 
+    @Test
+    public void testReadOnlyRetro() throws InterruptedException, SQLException, InvalidProtocolBufferException {
+        logger.info("testReadOnlyRetro");
+        PostgresConnection conn = new PostgresConnection("localhost", ApiaryConfig.postgresPort, "postgres", "dbos");
+
+        apiaryWorker = new ApiaryWorker(new ApiaryNaiveScheduler(), 4, ApiaryConfig.postgres, ApiaryConfig.provenanceDefaultAddress);
+        apiaryWorker.registerConnection(ApiaryConfig.postgres, conn);
+        apiaryWorker.registerFunction("PostgresIsSubscribed", ApiaryConfig.postgres, PostgresIsSubscribed::new);
+        apiaryWorker.registerFunction("PostgresForumSubscribe", ApiaryConfig.postgres, PostgresForumSubscribe::new);
+        // Read-only functions get synthetic negative transaction IDs.
+        apiaryWorker.registerFunction("PostgresFetchSubscribers", ApiaryConfig.postgres, PostgresFetchSubscribers::new, true);
+        apiaryWorker.startServing();
+
+        ApiaryWorkerClient client = new ApiaryWorkerClient("localhost");
+
+        assertEquals(123, client.executeFunction("PostgresIsSubscribed", 123, 555).getInt());
+        int[] resList = client.executeFunction("PostgresFetchSubscribers", 555).getIntArray();
+        assertEquals(1, resList.length);
+        assertEquals(456, client.executeFunction("PostgresIsSubscribed", 456, 555).getInt());
+        resList = client.executeFunction("PostgresFetchSubscribers", 555).getIntArray();
+        assertEquals(2, resList.length);
+
+        Thread.sleep(ProvenanceBuffer.exportInterval * 2);
+        Connection provConn = apiaryWorker.workerContext.provBuff.conn.get();
+        Statement stmt = provConn.createStatement();
+        ResultSet rs = stmt.executeQuery(String.format("SELECT * FROM %s ORDER BY %s ASC;",
+                ApiaryConfig.tableFuncInvocations, ProvenanceBuffer.PROV_APIARY_TIMESTAMP));
+        rs.next();
+        long resExecId = rs.getLong(ProvenanceBuffer.PROV_EXECUTIONID);
+        assertTrue(rs.getLong(ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID) > 0);
+        int numReadOnly = 0;
+        while (rs.next()) {
+            if (rs.getString(ProvenanceBuffer.PROV_PROCEDURENAME).endsWith("PostgresFetchSubscribers")) {
+                assertTrue(rs.getLong(ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID) < 0);
+                numReadOnly++;
+            }
+        }
+        assertEquals(2, numReadOnly);
+        rs.close();
+
+        // Reset the table and replay all, the last execution is the second read-only one and sees both subscribers.
+        conn.truncateTable("ForumSubscription", false);
+        int[] retroResList = client.retroReplay(resExecId).getIntArray();
+        assertEquals(2, retroResList.length);
+        Arrays.sort(retroResList);
+        assertArrayEquals(new int[]{123, 456}, retroResList);
+        stmt.close();
+    }
+
+    @Test
+    public void testBatchCallMatchesLoop() throws InterruptedException, SQLException, InvalidProtocolBufferException {
+        logger.info("testBatchCallMatchesLoop");
+        PostgresConnection conn = new PostgresConnection("localhost", ApiaryConfig.postgresPort, "postgres", "dbos");
+
+        apiaryWorker = new ApiaryWorker(new ApiaryNaiveScheduler(), 4, ApiaryConfig.postgres, ApiaryConfig.provenanceDefaultAddress);
+        apiaryWorker.registerConnection(ApiaryConfig.postgres, conn);
+        apiaryWorker.registerFunction("RetwisPost", ApiaryConfig.postgres, RetwisPost::new);
+        apiaryWorker.registerFunction("RetwisFollow", ApiaryConfig.postgres, RetwisFollow::new);
+        apiaryWorker.registerFunction("RetwisGetPosts", ApiaryConfig.postgres, RetwisGetPosts::new);
+        apiaryWorker.registerFunction("RetwisGetFollowees", ApiaryConfig.postgres, RetwisGetFollowees::new);
+        apiaryWorker.registerFunction("RetwisGetTimeline", ApiaryConfig.postgres, RetwisGetTimeline::new);
+        apiaryWorker.startServing();
+
+        ApiaryWorkerClient client = new ApiaryWorkerClient("localhost");
+
+        // User 0 has more posts than the per-user limit, user 3 has none.
+        for (int i = 0; i < 12; i++) {
+            client.executeFunction("RetwisPost", 0, i, 11 - i, "post0-" + i);
+        }
+        client.executeFunction("RetwisPost", 2, 12, 0, "post2");
+        client.executeFunction("RetwisFollow", 1, 0);
+        client.executeFunction("RetwisFollow", 1, 2);
+        client.executeFunction("RetwisFollow", 1, 3);
+
+        // The batched timeline returns the same posts as one call per followee.
+        String[] timeline = client.executeFunction("RetwisGetTimeline", 1).getStringArray();
+        int[] followees = client.executeFunction("RetwisGetFollowees", 1).getIntArray();
+        assertEquals(3, followees.length);
+        List<String> expected = new ArrayList<>();
+        for (int followee: followees) {
+            expected.addAll(Arrays.asList(client.executeFunction("RetwisGetPosts", followee).getStringArray()));
+        }
+        assertEquals(11, expected.size());
+        assertEquals(expected, Arrays.asList(timeline));
+
+        // The batch is recorded as one embedded invocation per followee.
+        Thread.sleep(ProvenanceBuffer.exportInterval * 2);
+        Connection provConn = apiaryWorker.workerContext.provBuff.conn.get();
+        Statement stmt = provConn.createStatement();
+        ResultSet rs = stmt.executeQuery(String.format("SELECT %s FROM %s WHERE %s LIKE '%%RetwisGetTimeline';",
+                ProvenanceBuffer.PROV_EXECUTIONID, ApiaryConfig.tableFuncInvocations, ProvenanceBuffer.PROV_PROCEDURENAME));
+        assertTrue(rs.next());
+        long timelineExecId = rs.getLong(1);
+        assertFalse(rs.next());
+        rs.close();
+        rs = stmt.executeQuery(String.format("SELECT %s FROM %s WHERE %s LIKE '%%RetwisGetPosts' AND %s = %d;",
+                ProvenanceBuffer.PROV_FUNC_STATUS, ApiaryConfig.tableFuncInvocations, ProvenanceBuffer.PROV_PROCEDURENAME,
+                ProvenanceBuffer.PROV_EXECUTIONID, timelineExecId));
+        int numPosts = 0;
+        while (rs.next()) {
+            assertEquals(ProvenanceBuffer.PROV_STATUS_EMBEDDED, rs.getString(1));
+            numPosts++;
+        }
+        assertEquals(followees.length, numPosts);
+        rs.close();
+        stmt.close();
+    }
+
     @Test
     public void testForumSubscribeRetro() throws SQLException, InterruptedException, InvalidProtocolBufferException, ExecutionException {
         logger.info("testForumSubscribeRetro");
@@ -328,6 +445,7 @@ public class ProvenanceTests {
 
         // Now, register the new code and see if it can get the correct result.
         apiaryWorker.shutdown(); // Stop the existing worker.
+        conn = new PostgresConnection("localhost", ApiaryConfig.postgresPort, "postgres", "dbos");  // Shutdown closed the old one.
         apiaryWorker = new ApiaryWorker(new ApiaryNaiveScheduler(), 4, ApiaryConfig.postgres, ApiaryConfig.provenanceDefaultAddress);
         apiaryWorker.registerConnection(ApiaryConfig.postgres, conn);
         apiaryWorker.registerFunction("PostgresIsSubscribed", ApiaryConfig.postgres, PostgresIsSubscribedTxn::new);  // Register the new one.
@@ -354,7 +472,7 @@ public class ProvenanceTests {
         // Wait until previous exporter finished.
         Thread.sleep(ProvenanceBuffer.exportInterval * 2);
         PostgresConnection pgconn = new PostgresConnection("localhost", ApiaryConfig.postgresPort, "postgres", "dbos");
-        Connection conn = pgconn.connection.get();
+        Connection conn = pgconn.acquireConnection();
         Statement stmt = conn.createStatement();
 
         // Add something to function invocation log table.
@@ -551,6 +669,217 @@ public class ProvenanceTests {
         assertEquals(value+1, resValue);
     }
 
+    @Test
+    public void testWalProvenanceCapture() throws InvalidProtocolBufferException, SQLException, InterruptedException {
+        logger.info("testWalProvenanceCapture");
+
+        PostgresConnection conn = new PostgresConnection("localhost", ApiaryConfig.postgresPort, "postgres", "dbos");
+        Connection c = conn.acquireConnection();
+        Statement s = c.createStatement();
+        ResultSet r = s.executeQuery("SHOW wal_level;");
+        r.next();
+        String walLevel = r.getString(1);
+        s.close();
+        conn.releaseConnection(c);
+        conn.close();
+        assumeTrue(walLevel.equals("logical"));
+
+        boolean captureUpdatesFromWal = ApiaryConfig.captureUpdatesFromWal;
+        try {
+            // Capturing updates from the WAL must record the same events as RETURNING.
+            List<String> returningEvents = runProvenanceBasic(false, null);
+            List<String> walEvents = runProvenanceBasic(true, returningEvents.size());
+            assertEquals(returningEvents, walEvents);
+        } finally {
+            ApiaryConfig.captureUpdatesFromWal = captureUpdatesFromWal;
+        }
+    }
+
+    // Run PostgresProvenanceBasic on a new worker and return its KVTable events, optionally wait for the given number of them.
+    private List<String> runProvenanceBasic(boolean fromWal, Integer numEvents) throws InvalidProtocolBufferException, SQLException, InterruptedException {
+        ApiaryConfig.captureUpdatesFromWal = fromWal;
+        PostgresConnection conn = new PostgresConnection("localhost", ApiaryConfig.postgresPort, "postgres", "dbos");
+        // Recreating the table sets up its WAL logging.
+        conn.createTable("KVTable", "KVKey integer PRIMARY KEY NOT NULL, KVValue integer NOT NULL");
+
+        apiaryWorker = new ApiaryWorker(new ApiaryNaiveScheduler(), 4, ApiaryConfig.postgres, ApiaryConfig.provenanceDefaultAddress);
+        apiaryWorker.registerConnection(ApiaryConfig.postgres, conn);
+        apiaryWorker.registerFunction("PostgresProvenanceBasic", ApiaryConfig.postgres, PostgresProvenanceBasic::new);
+        apiaryWorker.startServing();
+
+        ProvenanceBuffer provBuff = apiaryWorker.workerContext.provBuff;
+        assert(provBuff != null);
+
+        // Wait a bit so previous provenance capture data would be flushed out.
+        Thread.sleep(ProvenanceBuffer.exportInterval * 4);
+        Connection provConn = provBuff.conn.get();
+        Statement stmt = provConn.createStatement();
+        String[] tables = {"KVTable", "KVTableEvents"};
+        for (String table : tables) {
+            stmt.execute(String.format("TRUNCATE TABLE %s;", table));
+        }
+
+        ApiaryWorkerClient client = new ApiaryWorkerClient("localhost");
+        int res = client.executeFunction("PostgresProvenanceBasic", 10, 100).getInt();
+        assertEquals(101, res);
+
+        // The WAL is decoded in the background, wait until all events are exported.
+        List<String> events = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Thread.sleep(ProvenanceBuffer.exportInterval * 2);
+            events.clear();
+            ResultSet rs = stmt.executeQuery(String.format("SELECT * FROM KVTableEvents ORDER BY %s, %s, KVKey;",
+                    ProvenanceBuffer.PROV_QUERY_SEQNUM, ProvenanceBuffer.PROV_APIARY_OPERATION_TYPE));
+            while (rs.next()) {
+                events.add(String.format("%d,%d,%d,%d", rs.getInt(ProvenanceBuffer.PROV_APIARY_OPERATION_TYPE),
+                        rs.getInt(ProvenanceBuffer.PROV_QUERY_SEQNUM), rs.getInt("KVKey"), rs.getInt("KVValue")));
+            }
+            rs.close();
+            if ((numEvents == null) || (events.size() >= numEvents)) {
+                break;
+            }
+        }
+        stmt.close();
+        apiaryWorker.shutdown();
+        apiaryWorker = null;
+        return events;
+    }
+
+    @Test
+    public void testPostgresProvenanceBatch() throws InvalidProtocolBufferException, SQLException, InterruptedException {
+        logger.info("testPostgresProvenanceBatch");
+
+        PostgresConnection conn = new PostgresConnection("localhost", ApiaryConfig.postgresPort, "postgres", "dbos");
+
+        apiaryWorker = new ApiaryWorker(new ApiaryNaiveScheduler(), 4, ApiaryConfig.postgres, ApiaryConfig.provenanceDefaultAddress);
+        apiaryWorker.registerConnection(ApiaryConfig.postgres, conn);
+        apiaryWorker.registerFunction("PostgresProvenanceBatch", ApiaryConfig.postgres, PostgresProvenanceBatch::new);
+        apiaryWorker.startServing();
+
+        ProvenanceBuffer provBuff = apiaryWorker.workerContext.provBuff;
+        assert(provBuff != null);
+
+        // Wait a bit so previous provenance capture data would be flushed out.
+        Thread.sleep(ProvenanceBuffer.exportInterval * 4);
+        Connection provConn = provBuff.conn.get();
+        Statement stmt = provConn.createStatement();
+        String[] tables = {"FUNCINVOCATIONS", "KVTableEvents", ProvenanceBuffer.PROV_QueryMetadata};
+        for (String table : tables) {
+            stmt.execute(String.format("TRUNCATE TABLE %s;", table));
+        }
+
+        ApiaryWorkerClient client = new ApiaryWorkerClient("localhost");
+
+        int key = 10, value = 100;
+        int res = client.executeFunction("PostgresProvenanceBatch", key, value).getInt();
+        assertEquals(value + 1, res);
+
+        Thread.sleep(ProvenanceBuffer.exportInterval * 2);
+
+        ResultSet rs = stmt.executeQuery(String.format("SELECT * FROM %s;", ApiaryConfig.tableFuncInvocations));
+        assertTrue(rs.next());
+        long txid = rs.getLong(ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID);
+        assertFalse(rs.next());
+
+        // Every statement in the batch has its own sequence number, in program order.
+        String[] expectedStatements = {"SELECT", "INSERT", "SELECT", "UPDATE", "SELECT"};
+        rs = stmt.executeQuery(String.format("SELECT * FROM %s WHERE %s=%d ORDER BY %s;", ProvenanceBuffer.PROV_QueryMetadata,
+                ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID, txid, ProvenanceBuffer.PROV_QUERY_SEQNUM));
+        for (int i = 0; i < expectedStatements.length; i++) {
+            assertTrue(rs.next());
+            assertEquals(i, rs.getInt(ProvenanceBuffer.PROV_QUERY_SEQNUM));
+            assertTrue(rs.getString(ProvenanceBuffer.PROV_QUERY_STRING).toUpperCase().contains(expectedStatements[i]));
+        }
+        assertFalse(rs.next());
+
+        // The events match executing the statements one by one. The first query returns no value.
+        int[] expectedOps = {ProvenanceBuffer.ExportOperation.INSERT.getValue(), ProvenanceBuffer.ExportOperation.READ.getValue(),
+                ProvenanceBuffer.ExportOperation.UPDATE.getValue(), ProvenanceBuffer.ExportOperation.READ.getValue()};
+        int[] expectedValues = {value, value, value + 1, value + 1};
+        rs = stmt.executeQuery(String.format("SELECT * FROM KVTableEvents ORDER BY %s;", ProvenanceBuffer.PROV_QUERY_SEQNUM));
+        for (int i = 0; i < expectedOps.length; i++) {
+            assertTrue(rs.next());
+            assertEquals(txid, rs.getLong(ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID));
+            assertEquals(i + 1, rs.getInt(ProvenanceBuffer.PROV_QUERY_SEQNUM));
+            assertEquals(expectedOps[i], rs.getInt(ProvenanceBuffer.PROV_APIARY_OPERATION_TYPE));
+            assertEquals(key, rs.getInt("KVKey"));
+            assertEquals(expectedValues[i], rs.getInt("KVValue"));
+        }
+        assertFalse(rs.next());
+        rs.close();
+        stmt.close();
+    }
+
+    @Test
+    public void testPostgresProvenanceUpdateBatch() throws InvalidProtocolBufferException, SQLException, InterruptedException {
+        logger.info("testPostgresProvenanceUpdateBatch");
+
+        PostgresConnection conn = new PostgresConnection("localhost", ApiaryConfig.postgresPort, "postgres", "dbos");
+
+        apiaryWorker = new ApiaryWorker(new ApiaryNaiveScheduler(), 4, ApiaryConfig.postgres, ApiaryConfig.provenanceDefaultAddress);
+        apiaryWorker.registerConnection(ApiaryConfig.postgres, conn);
+        apiaryWorker.registerFunction("PostgresProvenanceUpdateBatch", ApiaryConfig.postgres, PostgresProvenanceUpdateBatch::new);
+        apiaryWorker.startServing();
+
+        ProvenanceBuffer provBuff = apiaryWorker.workerContext.provBuff;
+        assert(provBuff != null);
+
+        // Wait a bit so previous provenance capture data would be flushed out.
+        Thread.sleep(ProvenanceBuffer.exportInterval * 4);
+        Connection provConn = provBuff.conn.get();
+        Statement stmt = provConn.createStatement();
+        String[] tables = {"FUNCINVOCATIONS", "KVTableEvents", ProvenanceBuffer.PROV_QueryMetadata};
+        for (String table : tables) {
+            stmt.execute(String.format("TRUNCATE TABLE %s;", table));
+        }
+
+        ApiaryWorkerClient client = new ApiaryWorkerClient("localhost");
+
+        int key = 20, value = 200;
+        int res = client.executeFunction("PostgresProvenanceUpdateBatch", key, value).getInt();
+        assertEquals(3, res);
+
+        Thread.sleep(ProvenanceBuffer.exportInterval * 2);
+
+        ResultSet rs = stmt.executeQuery(String.format("SELECT * FROM %s;", ApiaryConfig.tableFuncInvocations));
+        assertTrue(rs.next());
+        long txid = rs.getLong(ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID);
+        assertFalse(rs.next());
+
+        // Each execution of a batch is recorded like a separate executeUpdate, the last statement.
+        String[] expectedStatements = {"INSERT", "INSERT", "UPDATE", "UPDATE", "UPDATE"};
+        rs = stmt.executeQuery(String.format("SELECT * FROM %s WHERE %s=%d ORDER BY %s;", ProvenanceBuffer.PROV_QueryMetadata,
+                ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID, txid, ProvenanceBuffer.PROV_QUERY_SEQNUM));
+        for (int i = 0; i < expectedStatements.length; i++) {
+            assertTrue(rs.next());
+            assertEquals(i, rs.getInt(ProvenanceBuffer.PROV_QUERY_SEQNUM));
+            String queryString = rs.getString(ProvenanceBuffer.PROV_QUERY_STRING);
+            assertTrue(queryString.startsWith(expectedStatements[i]));
+            assertTrue(queryString.contains(" RETURNING *"));
+            assertEquals(queryString.toUpperCase(), queryString);
+        }
+        assertFalse(rs.next());
+
+        // The rows returned by a batch are attributed to their executions, the update of a missing key has none.
+        int[] expectedSeqNums = {0, 1, 2, 4};
+        int[] expectedOps = {ProvenanceBuffer.ExportOperation.INSERT.getValue(), ProvenanceBuffer.ExportOperation.INSERT.getValue(),
+                ProvenanceBuffer.ExportOperation.UPDATE.getValue(), ProvenanceBuffer.ExportOperation.UPDATE.getValue()};
+        int[] expectedKeys = {key, key + 1, key, key + 1};
+        int[] expectedValues = {value, value, value + 1, value + 2};
+        rs = stmt.executeQuery(String.format("SELECT * FROM KVTableEvents ORDER BY %s;", ProvenanceBuffer.PROV_QUERY_SEQNUM));
+        for (int i = 0; i < expectedSeqNums.length; i++) {
+            assertTrue(rs.next());
+            assertEquals(txid, rs.getLong(ProvenanceBuffer.PROV_APIARY_TRANSACTION_ID));
+            assertEquals(expectedSeqNums[i], rs.getInt(ProvenanceBuffer.PROV_QUERY_SEQNUM));
+            assertEquals(expectedOps[i], rs.getInt(ProvenanceBuffer.PROV_APIARY_OPERATION_TYPE));
+            assertEquals(expectedKeys[i], rs.getInt("KVKey"));
+            assertEquals(expectedValues[i], rs.getInt("KVValue"));
+        }
+        assertFalse(rs.next());
+        rs.close();
+        stmt.close();
+    }
+
     @Test
     public void testPostgresProvenanceJoins() throws InvalidProtocolBufferException, SQLException, InterruptedException {
         logger.info("testPostgresProvenanceJoins");
@@ -766,4 +1095,131 @@ public class ProvenanceTests {
         assertEquals(key2, resKey);
         assertEquals(value2, resValue);
     }
+
+    @Test
+    public void testPostgresProvenancePartialRead() throws InvalidProtocolBufferException, SQLException, InterruptedException {
+        logger.info("testPostgresProvenancePartialRead");
+
+        PostgresConnection conn = new PostgresConnection("localhost", ApiaryConfig.postgresPort, "postgres", "dbos");
+
+        apiaryWorker = new ApiaryWorker(new ApiaryNaiveScheduler(), 4, ApiaryConfig.postgres, ApiaryConfig.provenanceDefaultAddress);
+        apiaryWorker.registerConnection(ApiaryConfig.postgres, conn);
+        apiaryWorker.registerFunction("PostgresProvenancePartialRead", ApiaryConfig.postgres, PostgresProvenancePartialRead::new);
+        apiaryWorker.startServing();
+
+        ProvenanceBuffer provBuff = apiaryWorker.workerContext.provBuff;
+        assert(provBuff != null);
+
+        // Wait a bit so previous provenance capture data would be flushed out.
+        Thread.sleep(ProvenanceBuffer.exportInterval * 4);
+        Connection provConn = provBuff.conn.get();
+        Statement stmt = provConn.createStatement();
+        String[] tables = {"FUNCINVOCATIONS", "KVTableEvents"};
+        for (String table : tables) {
+            stmt.execute(String.format("TRUNCATE TABLE %s;", table));
+        }
+
+        // Stream the result in small chunks, so most rows are never fetched.
+        int fetchSize = ApiaryConfig.queryFetchSize;
+        ApiaryConfig.queryFetchSize = 2;
+        try {
+            ApiaryWorkerClient client = new ApiaryWorkerClient("localhost");
+            int numRows = 10, numRead = 3;
+            int res = client.executeFunction("PostgresProvenancePartialRead", numRows, numRead).getInt();
+            assertEquals(10 + 20, res);
+        } finally {
+            ApiaryConfig.queryFetchSize = fetchSize;
+        }
+
+        Thread.sleep(ProvenanceBuffer.exportInterval * 2);
+
+        // Only the rows the function consumed are recorded as reads.
+        ResultSet rs = stmt.executeQuery(String.format("SELECT KVKey, KVValue FROM KVTableEvents WHERE %s = %d ORDER BY KVKey;",
+                ProvenanceBuffer.PROV_APIARY_OPERATION_TYPE, ProvenanceBuffer.ExportOperation.READ.getValue()));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(rs.next());
+            assertEquals(i, rs.getInt("KVKey"));
+            assertEquals(i * 10, rs.getInt("KVValue"));
+        }
+        assertFalse(rs.next());
+    }
+
+    @Test
+    public void testCapturePlanReuse() throws InvalidProtocolBufferException, SQLException {
+        logger.info("testCapturePlanReuse");
+
+        PostgresConnection conn = new PostgresConnection("localhost", ApiaryConfig.postgresPort, "postgres", "dbos");
+
+        apiaryWorker = new ApiaryWorker(new ApiaryNaiveScheduler(), 4, ApiaryConfig.postgres, ApiaryConfig.provenanceDefaultAddress);
+        apiaryWorker.registerConnection(ApiaryConfig.postgres, conn);
+        apiaryWorker.registerFunction("PostgresProvenanceMultiRows", ApiaryConfig.postgres, PostgresProvenanceMultiRows::new);
+        apiaryWorker.startServing();
+
+        ApiaryWorkerClient client = new ApiaryWorkerClient("localhost");
+        assertEquals(111, client.executeFunction("PostgresProvenanceMultiRows", 10, 100, 20, 11).getInt());
+        long numPlans = PostgresConnection.getNumCapturePlans();
+
+        // A repeated query reuses its capture plan.
+        assertEquals(222, client.executeFunction("PostgresProvenanceMultiRows", 30, 200, 40, 22).getInt());
+        assertEquals(333, client.executeFunction("PostgresProvenanceMultiRows", 50, 300, 60, 33).getInt());
+        assertEquals(numPlans, PostgresConnection.getNumCapturePlans());
+
+        // Recreating the table drops the plans reading it, so the next execution computes a new one.
+        conn.dropTable("KVTable");
+        conn.createTable("KVTable", "KVKey integer PRIMARY KEY NOT NULL, KVValue integer NOT NULL");
+        assertEquals(111, client.executeFunction("PostgresProvenanceMultiRows", 10, 100, 20, 11).getInt());
+        assertEquals(numPlans + 1, PostgresConnection.getNumCapturePlans());
+    }
+
+    @Test
+    public void testReadCacheReplay() throws InvalidProtocolBufferException, SQLException, InterruptedException {
+        logger.info("testReadCacheReplay");
+        PostgresConnection conn = new PostgresConnection("localhost", ApiaryConfig.postgresPort, "postgres", "dbos");
+
+        apiaryWorker = new ApiaryWorker(new ApiaryNaiveScheduler(), 4, ApiaryConfig.postgres, ApiaryConfig.provenanceDefaultAddress);
+        apiaryWorker.registerConnection(ApiaryConfig.postgres, conn);
+        apiaryWorker.registerFunction("PostgresReadCacheReplay", ApiaryConfig.postgres, PostgresReadCacheReplay::new);
+        apiaryWorker.startServing();
+
+        ProvenanceBuffer provBuff = apiaryWorker.workerContext.provBuff;
+        assert(provBuff != null);
+
+        // Wait a bit so previous provenance capture data would be flushed out.
+        Thread.sleep(ProvenanceBuffer.exportInterval * 4);
+        Connection provConn = provBuff.conn.get();
+        Statement stmt = provConn.createStatement();
+        String[] tables = {"FUNCINVOCATIONS", "KVTableEvents"};
+        for (String table : tables) {
+            stmt.execute(String.format("TRUNCATE TABLE %s;", table));
+        }
+
+        ApiaryWorkerClient client = new ApiaryWorkerClient("localhost");
+        ApiaryConfig.transactionReadCache = true;
+        try {
+            assertEquals(20, client.executeFunction("PostgresReadCacheReplay", 1, 10).getInt());
+            Thread.sleep(ProvenanceBuffer.exportInterval * 2);
+
+            // The cached read is recorded with its own query sequence number.
+            ResultSet rs = stmt.executeQuery(String.format("SELECT %s, KVValue FROM KVTableEvents WHERE %s = %d ORDER BY %s;",
+                    ProvenanceBuffer.PROV_QUERY_SEQNUM, ProvenanceBuffer.PROV_APIARY_OPERATION_TYPE,
+                    ProvenanceBuffer.ExportOperation.READ.getValue(), ProvenanceBuffer.PROV_QUERY_SEQNUM));
+            assertTrue(rs.next());
+            assertEquals(1, rs.getLong(1));
+            assertEquals(10, rs.getInt(2));
+            assertTrue(rs.next());
+            assertEquals(2, rs.getLong(1));
+            assertEquals(10, rs.getInt(2));
+            assertFalse(rs.next());
+
+            rs = stmt.executeQuery(String.format("SELECT %s FROM %s;", ProvenanceBuffer.PROV_EXECUTIONID, ApiaryConfig.tableFuncInvocations));
+            assertTrue(rs.next());
+            long resExecId = rs.getLong(1);
+
+            // Replay reads both rows from provenance, not from the table.
+            conn.truncateTable("KVTable", false);
+            assertEquals(20, client.replayFunction(resExecId, "PostgresReadCacheReplay", 1, 10).getInt());
+        } finally {
+            ApiaryConfig.transactionReadCache = false;
+        }
+    }
 }
@@ -1,11 +1,39 @@
 package org.dbos.apiary;
 
+import org.dbos.apiary.function.ReadOnlyTxIDGenerator;
+import org.dbos.apiary.function.TransactionContext;
+import org.dbos.apiary.function.TransactionSnapshot;
+import org.dbos.apiary.postgres.ContentionAwareRetryPolicy;
+import org.dbos.apiary.postgres.GroupCommitCoordinator;
+import org.dbos.apiary.postgres.PostgresConnectionPool;
+import org.dbos.apiary.postgres.ReadReplicaRouter;
+import org.dbos.apiary.postgres.ShardedPostgresConnection;
+import org.dbos.apiary.postgres.TransactionSet;
+import org.dbos.apiary.postgres.WalProvenanceCapture;
+import org.dbos.apiary.utilities.ApiaryConfig;
+import org.dbos.apiary.utilities.PooledThreadLocal;
 import org.dbos.apiary.utilities.Utilities;
+import org.dbos.apiary.worker.DispatcherPriorityQueue;
+import org.dbos.apiary.worker.HedgingPolicy;
+import org.dbos.apiary.worker.PriorityAdmissionGate;
+import org.dbos.apiary.worker.StatelessPlacement;
+import org.dbos.apiary.worker.WorkerRunnable;
 import org.junit.jupiter.api.Test;
+import org.postgresql.ds.PGSimpleDataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
 
 public class UtilTests {
     private static final Logger logger = LoggerFactory.getLogger(UtilTests.class);
@@ -27,4 +55,663 @@ public class UtilTests {
         }
     }
 
+    @Test
+    public void testTransactionSnapshot() {
+        logger.info("testTransactionSnapshot");
+        TransactionSnapshot s = TransactionSnapshot.parse("100:110:107,102,105");
+        assertEquals(100, s.xmin);
+        assertEquals(110, s.xmax);
+        assertArrayEquals(new long[]{102, 105, 107}, s.getActiveTransactions());
+        assertTrue(s.isVisible(99));
+        assertTrue(s.isVisible(101));
+        assertFalse(s.isVisible(105));
+        assertFalse(s.isVisible(110));
+        assertTrue(s.isActive(102));
+        assertFalse(s.isActive(103));
+        assertEquals("100:110:102,105,107", s.toString());
+        assertEquals(s, TransactionSnapshot.decode(s.encode()));
+
+        TransactionSnapshot empty = TransactionSnapshot.parse("5000000000:5000000000:");
+        assertEquals(0, empty.numActiveTransactions());
+        assertEquals(empty, TransactionSnapshot.decode(empty.encode()));
+
+        // Aborted transactions below xmax become invisible, the rest are ignored.
+        TransactionSnapshot aborted = s.withActiveTransactions(new long[]{90, 105, 120}, 3);
+        assertEquals(90, aborted.xmin);
+        assertFalse(aborted.isVisible(90));
+        assertTrue(aborted.isVisible(95));
+        assertArrayEquals(new long[]{90, 102, 105, 107}, aborted.getActiveTransactions());
+    }
+
+    @Test
+    public void testShardPartition() {
+        logger.info("testShardPartition");
+        int numShards = 4;
+        int[] counts = new int[numShards];
+        for (int key = 0; key < 4000; key++) {
+            int p = ShardedPostgresConnection.getPartition(key, numShards);
+            assertTrue(p >= 0 && p < numShards);
+            // Integer and string keys of the same value are different keys, but each maps consistently.
+            assertEquals(p, ShardedPostgresConnection.getPartition((long) key, numShards));
+            assertEquals(ShardedPostgresConnection.getPartition(Integer.toString(key), numShards),
+                    ShardedPostgresConnection.getPartition(Integer.toString(key), numShards));
+            counts[p]++;
+        }
+        // Sequential keys spread over all shards.
+        for (int c : counts) {
+            assertTrue(c > 800);
+        }
+        // Array keys are hashed by content, so equal arrays map to the same shard on every worker.
+        for (long key = 0; key < 100; key++) {
+            assertEquals(ShardedPostgresConnection.getPartition(new long[]{key, key + 1}, numShards),
+                    ShardedPostgresConnection.getPartition(new long[]{key, key + 1}, numShards));
+            assertEquals(ShardedPostgresConnection.getPartition(new int[]{(int) key}, numShards),
+                    ShardedPostgresConnection.getPartition(new int[]{(int) key}, numShards));
+        }
+    }
+
+    // A task with a scheduler priority, lower runs first.
+    private static class PriorityTask implements Runnable, Comparable<PriorityTask> {
+        final int priority;
+        final Runnable body;
+
+        PriorityTask(int priority, Runnable body) {
+            this.priority = priority;
+            this.body = body;
+        }
+
+        @Override
+        public void run() {
+            body.run();
+        }
+
+        @Override
+        public int compareTo(PriorityTask o) {
+            return Integer.compare(priority, o.priority);
+        }
+    }
+
+    @Test
+    public void testPriorityAdmissionGate() throws InterruptedException {
+        logger.info("testPriorityAdmissionGate");
+        ExecutorService executor = Executors.newCachedThreadPool();
+        PriorityAdmissionGate gate = new PriorityAdmissionGate(executor, 1);
+
+        // Hold the only slot, so the next tasks queue up.
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch unblock = new CountDownLatch(1);
+        gate.execute(new PriorityTask(0, () -> {
+            started.countDown();
+            try {
+                unblock.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        for (int priority : new int[]{3, 1, 2}) {
+            gate.execute(new PriorityTask(priority, () -> order.add(priority)));
+        }
+        assertEquals(3, gate.queueLength());
+        unblock.countDown();
+
+        gate.shutdown();
+        assertTrue(gate.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(List.of(1, 2, 3), order);
+        assertThrows(RejectedExecutionException.class, () -> gate.execute(new PriorityTask(0, () -> {})));
+        executor.shutdown();
+    }
+
+    @Test
+    public void testPriorityAdmissionLimit() throws InterruptedException {
+        logger.info("testPriorityAdmissionLimit");
+        ExecutorService executor = Executors.newCachedThreadPool();
+        int maxConcurrency = 2;
+        PriorityAdmissionGate gate = new PriorityAdmissionGate(executor, maxConcurrency);
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicInteger maxRunning = new AtomicInteger(0);
+        AtomicInteger finished = new AtomicInteger(0);
+        int numTasks = 20;
+        for (int i = 0; i < numTasks; i++) {
+            gate.execute(new PriorityTask(i, () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                finished.incrementAndGet();
+            }));
+        }
+        gate.shutdown();
+        assertTrue(gate.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(numTasks, finished.get());
+        assertTrue(maxRunning.get() <= maxConcurrency);
+        assertTrue(gate.isTerminated());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testTransactionSet() {
+        logger.info("testTransactionSet");
+        TransactionContext t1 = new TransactionContext(101, 100, 110);
+        TransactionContext t2 = new TransactionContext(102, 100, 110);
+        TransactionContext t3 = new TransactionContext(103, 100, 110);
+
+        TransactionSet empty = TransactionSet.empty();
+        TransactionSet s12 = empty.with(t1).with(t2);
+        assertEquals(0, empty.size());
+        assertEquals(Set.of(t1, t2), s12);
+        assertTrue(s12.contains(t1));
+        assertFalse(s12.contains(t3));
+        // Updates copy, the published set never changes.
+        assertEquals(Set.of(t2), s12.without(t1));
+        assertEquals(Set.of(t1, t2), s12);
+        assertSame(s12, s12.without(t3));
+        assertEquals(Set.of(t1, t3), s12.replace(t2, t3));
+        assertEquals(Set.of(t1, t2, t3), s12.replace(new TransactionContext(104, 100, 110), t3));
+        assertThrows(UnsupportedOperationException.class, () -> s12.add(t3));
+
+        // A transaction registers a placeholder with a lower bound of its xmin before taking its snapshot,
+        // so the GC never sees a set without it and never computes a global xmin above its snapshot.
+        AtomicReference<TransactionSet> active = new AtomicReference<>(TransactionSet.empty());
+        TransactionSet.add(active, t1);
+        TransactionContext placeholder = new TransactionContext(-1, TransactionSnapshot.of(100));
+        TransactionSet.add(active, placeholder);
+        TransactionSet.remove(active, t1);
+        TransactionSet gcView = active.get();
+        TransactionContext txc = new TransactionContext(105, 104, 110);
+        TransactionSet.replace(active, placeholder, txc);
+        assertEquals(100, gcView.stream().mapToLong(t -> t.xmin).min().getAsLong());
+        assertEquals(Set.of(txc), active.get());
+    }
+
+    @Test
+    public void testPooledThreadLocal() throws Exception {
+        logger.info("testPooledThreadLocal");
+        AtomicInteger created = new AtomicInteger(0);
+        PooledThreadLocal<Integer> local = new PooledThreadLocal<>(created::incrementAndGet);
+
+        // A released value is reused by the next thread instead of creating a new one.
+        List<Integer> values = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Thread t = new Thread(() -> {
+                values.add(local.get());
+                PooledThreadLocal.releaseAll();
+            });
+            t.start();
+            t.join();
+        }
+        assertEquals(List.of(1, 1, 1), values);
+        assertEquals(1, created.get());
+
+        // A thread that does not release keeps its value, so a concurrent thread gets a new one.
+        CountDownLatch holding = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            local.get();
+            holding.countDown();
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            PooledThreadLocal.releaseAll();
+        });
+        holder.start();
+        assertTrue(holding.await(5, TimeUnit.SECONDS));
+        assertEquals(2, local.get());
+        assertEquals(2, created.get());
+
+        // After releaseAll, the same thread takes a value from the pool again.
+        PooledThreadLocal.releaseAll();
+        done.countDown();
+        holder.join();
+        int v = local.get();
+        assertTrue(v == 1 || v == 2);
+        assertEquals(2, created.get());
+        PooledThreadLocal.releaseAll();
+
+        // Releasing a removed value, or releasing twice, creates nothing and pools nothing twice.
+        int w = local.get();
+        local.remove();
+        PooledThreadLocal.releaseAll();
+        PooledThreadLocal.releaseAll();
+        assertEquals(2, created.get());
+        // The removed value is gone, so the only idle value left is the other one.
+        int u = local.get();
+        assertNotEquals(w, u);
+        PooledThreadLocal.releaseAll();
+        assertEquals(2, created.get());
+    }
+
+    @Test
+    public void testPooledThreadLocalBounds() throws Exception {
+        logger.info("testPooledThreadLocalBounds");
+        AtomicInteger created = new AtomicInteger(0);
+        Set<Integer> invalid = ConcurrentHashMap.newKeySet();
+        List<Integer> closed = Collections.synchronizedList(new ArrayList<>());
+        PooledThreadLocal<Integer> local = new PooledThreadLocal<>(created::incrementAndGet,
+                v -> !invalid.contains(v), closed::add, 1);
+
+        // Two values released at once, only one is kept idle and the other is closed.
+        CountDownLatch bothBound = new CountDownLatch(2);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            Thread t = new Thread(() -> {
+                local.get();
+                bothBound.countDown();
+                try {
+                    bothBound.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                local.release();
+            });
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(2, created.get());
+        assertEquals(1, closed.size());
+
+        // An invalid idle value is closed instead of reused.
+        int idleValue = 3 - closed.get(0);
+        invalid.add(idleValue);
+        assertEquals(3, local.get());
+        assertEquals(List.of(closed.get(0), idleValue), closed);
+
+        // Close closes the bound value, and a value released afterwards is not pooled again.
+        local.close();
+        assertEquals(3, closed.size());
+        assertTrue(closed.contains(3));
+        local.release();
+        assertEquals(3, closed.size());
+        assertEquals(4, local.get());
+        local.release();
+        assertEquals(4, closed.size());
+    }
+
+    @Test
+    public void testHedgingPolicy() {
+        logger.info("testHedgingPolicy");
+        HedgingPolicy policy = new HedgingPolicy(95, 0.25);
+        // Latencies 1..128 ms in a scrambled order.
+        for (int i = 0; i < 128; i++) {
+            assertEquals(-1, policy.getHedgeDelayNs());
+            long ms = (i * 37) % 128 + 1;
+            policy.recordLatency(ms * 1000000L);
+        }
+        // The 95th percentile of 128 samples is the 122nd smallest.
+        assertEquals(122 * 1000000L, policy.getHedgeDelayNs());
+
+        // The window keeps the latest samples, so the percentile follows a shift in latency.
+        for (int i = 0; i < 1024; i++) {
+            policy.recordLatency(5000000L);
+        }
+        assertEquals(5000000L, policy.getHedgeDelayNs());
+
+        // Every call earns a quarter of a hedge.
+        assertFalse(policy.tryAcquireHedge());
+        for (int i = 0; i < 3; i++) {
+            policy.onCall();
+            assertFalse(policy.tryAcquireHedge());
+        }
+        policy.onCall();
+        assertTrue(policy.tryAcquireHedge());
+        assertFalse(policy.tryAcquireHedge());
+
+        // Unused tokens are capped, so hedges cannot burst after a long quiet period.
+        for (int i = 0; i < 1000; i++) {
+            policy.onCall();
+        }
+        int numHedges = 0;
+        while (policy.tryAcquireHedge()) {
+            numHedges++;
+        }
+        assertEquals(10, numHedges);
+    }
+
+    @Test
+    public void testStatelessPlacement() {
+        logger.info("testStatelessPlacement");
+        ApiaryConfig.StatelessPlacementPolicy origPolicy = ApiaryConfig.statelessPlacement;
+        int origThreshold = ApiaryConfig.statelessLocalQueueThreshold;
+        try {
+            assertEquals("host0", new StatelessPlacement(List.of("host0")).chooseHost(100));
+
+            // Calls are pinned locally only if enabled.
+            StatelessPlacement placement = new StatelessPlacement(List.of("host0", "localhost"));
+            ApiaryConfig.statelessPlacement = ApiaryConfig.StatelessPlacementPolicy.FIRST_HOST;
+            assertEquals("host0", placement.chooseHost(0));
+            ApiaryConfig.statelessLocalQueueThreshold = 2;
+            assertEquals("localhost", placement.chooseHost(2));
+            assertEquals("host0", placement.chooseHost(3));
+            ApiaryConfig.statelessLocalQueueThreshold = -1;
+
+            // The load of a host is its reported queue length plus our outstanding stateless calls.
+            ApiaryConfig.statelessPlacement = ApiaryConfig.StatelessPlacementPolicy.LEAST_LOADED;
+            placement = new StatelessPlacement(List.of("host0", "host1", "host2"));
+            placement.onReply("host0", 5, 1, 1);
+            placement.onCall("host1", 1, 2);
+            placement.onCall("host1", 1, 3);
+            assertEquals("host2", placement.chooseHost(0));
+            placement.onReply("host2", 3, 1, 4);
+            assertEquals("host1", placement.chooseHost(0));
+            // A reply to a call that was not a stateless call to that host does not change the outstanding count.
+            placement.onReply("host1", 0, 1, 99);
+            placement.onReply("host0", 0, 1, 2);
+            assertEquals("host0", placement.chooseHost(0));
+            placement.onReply("host1", 0, 1, 2);
+            placement.onReply("host1", 0, 1, 3);
+            assertEquals("host0", placement.chooseHost(0));
+            placement.onCall("host0", 2, 1);
+            assertEquals("host1", placement.chooseHost(0));
+
+            // With two random choices, the most loaded host is only picked if both choices are the same host.
+            ApiaryConfig.statelessPlacement = ApiaryConfig.StatelessPlacementPolicy.POWER_OF_TWO_CHOICES;
+            placement = new StatelessPlacement(List.of("host0", "host1", "host2"));
+            placement.onReply("host0", 100, 1, 1);
+            int numPicked = 0;
+            for (int i = 0; i < 900; i++) {
+                if (placement.chooseHost(0).equals("host0")) {
+                    numPicked++;
+                }
+            }
+            assertTrue(numPicked < 200);
+        } finally {
+            ApiaryConfig.statelessPlacement = origPolicy;
+            ApiaryConfig.statelessLocalQueueThreshold = origThreshold;
+        }
+    }
+
+    @Test
+    public void testRetryBackoff() {
+        logger.info("testRetryBackoff");
+        long origBase = ApiaryConfig.retryBaseBackoffUs;
+        long origMax = ApiaryConfig.retryMaxBackoffUs;
+        try {
+            ApiaryConfig.retryBaseBackoffUs = 1000;
+            ApiaryConfig.retryMaxBackoffUs = 2000;
+            ContentionAwareRetryPolicy policy = new ContentionAwareRetryPolicy();
+            // The first attempt never waits.
+            assertNull(policy.beginAttempt("f", new Object[0], 0));
+            // Later attempts wait a random time up to the capped backoff, even for large attempt numbers.
+            int numRetries = 20;
+            long tStart = System.nanoTime();
+            for (int i = 1; i <= numRetries; i++) {
+                assertNull(policy.beginAttempt("f", new Object[0], i * 10));
+            }
+            long elapsedUs = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - tStart);
+            assertTrue(elapsedUs > 0);
+            assertTrue(elapsedUs <= numRetries * ApiaryConfig.retryMaxBackoffUs + 200000, "Waited " + elapsedUs + "us");
+            assertEquals(numRetries + 1, policy.getStats("f").attempts.get());
+            assertEquals(numRetries, policy.getStats("f").retries.get());
+        } finally {
+            ApiaryConfig.retryBaseBackoffUs = origBase;
+            ApiaryConfig.retryMaxBackoffUs = origMax;
+        }
+    }
+
+    @Test
+    public void testRetryAttemptCap() {
+        logger.info("testRetryAttemptCap");
+        int origMaxAttempts = ApiaryConfig.retryMaxAttempts;
+        try {
+            ApiaryConfig.retryMaxAttempts = 3;
+            ContentionAwareRetryPolicy policy = new ContentionAwareRetryPolicy();
+            assertTrue(policy.shouldRetry("f", new Object[0], 0));
+            assertTrue(policy.shouldRetry("f", new Object[0], 1));
+            assertFalse(policy.shouldRetry("f", new Object[0], 2));
+            assertEquals(3, policy.getStats("f").aborts.get());
+            assertEquals(1, policy.getStats("f").giveUps.get());
+
+            // Zero retries until the function commits.
+            ApiaryConfig.retryMaxAttempts = 0;
+            assertTrue(policy.shouldRetry("f", new Object[0], 100));
+            assertEquals(1, policy.getStats("f").giveUps.get());
+        } finally {
+            ApiaryConfig.retryMaxAttempts = origMaxAttempts;
+        }
+    }
+
+    @Test
+    public void testRetryHotKeyFairness() throws InterruptedException {
+        logger.info("testRetryHotKeyFairness");
+        long origBase = ApiaryConfig.retryBaseBackoffUs;
+        int origHotKeyAborts = ApiaryConfig.retryHotKeyAborts;
+        try {
+            ApiaryConfig.retryBaseBackoffUs = 0;
+            ApiaryConfig.retryHotKeyAborts = 2;
+            ContentionAwareRetryPolicy policy = new ContentionAwareRetryPolicy();
+            policy.setContentionKey("f", inputs -> inputs[0]);
+            Object[] hotInputs = new Object[]{1};
+            Object[] coldInputs = new Object[]{2};
+            assertTrue(policy.shouldRetry("f", hotInputs, 0));
+            assertTrue(policy.shouldRetry("f", hotInputs, 0));
+            assertTrue(policy.shouldRetry("f", coldInputs, 0));
+
+            // Retries of a cold key or a first attempt do not take the lock.
+            assertNull(policy.beginAttempt("f", coldInputs, 1));
+            assertNull(policy.beginAttempt("f", hotInputs, 0));
+
+            // Retries of a hot key run one at a time, in arrival order.
+            Object handle = policy.beginAttempt("f", hotInputs, 1);
+            assertNotNull(handle);
+            List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                int id = i;
+                Thread t = new Thread(() -> {
+                    Object h = policy.beginAttempt("f", hotInputs, 1);
+                    order.add(id);
+                    policy.endAttempt(h, "f", true);
+                });
+                t.start();
+                threads.add(t);
+                Thread.sleep(50);  // Queue up in order.
+            }
+            assertTrue(order.isEmpty());
+            policy.endAttempt(handle, "f", false);
+            for (Thread t : threads) {
+                t.join(10000);
+            }
+            assertEquals(List.of(0, 1, 2), order);
+            assertEquals(3, policy.getStats("f").commits.get());
+        } finally {
+            ApiaryConfig.retryBaseBackoffUs = origBase;
+            ApiaryConfig.retryHotKeyAborts = origHotKeyAborts;
+        }
+    }
+
+    @Test
+    public void testGroupCommitCoordinator() throws InterruptedException {
+        logger.info("testGroupCommitCoordinator");
+        long origTimeout = ApiaryConfig.groupCommitTimeoutMs;
+        try {
+            ApiaryConfig.groupCommitTimeoutMs = 100;
+            // A pool that cannot connect, so no WAL flush barrier succeeds.
+            PostgresConnectionPool pool = new PostgresConnectionPool("test", () -> null, 1, 10);
+            GroupCommitCoordinator coordinator = new GroupCommitCoordinator(pool);
+            CompletableFuture<Void> durable = coordinator.register();
+            ExecutionException e = assertThrows(ExecutionException.class, () -> durable.get(10, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof TimeoutException);
+
+            // Closing stops the barrier thread and fails the commits it cannot flush.
+            ApiaryConfig.groupCommitTimeoutMs = 100000;
+            CompletableFuture<Void> pending = coordinator.register();
+            coordinator.close();
+            assertTrue(pending.isCompletedExceptionally());
+            assertTrue(coordinator.register().isCompletedExceptionally());
+        } finally {
+            ApiaryConfig.groupCommitTimeoutMs = origTimeout;
+        }
+    }
+
+    @Test
+    public void testReadReplicaRouting() {
+        logger.info("testReadReplicaRouting");
+        boolean origReadYourWrites = ApiaryConfig.readYourWrites;
+        long origMaxLag = ApiaryConfig.replicaMaxLagBytes;
+        // A primary pool that cannot connect, so the poller never overwrites the positions set here.
+        ReadReplicaRouter router = new ReadReplicaRouter(new PostgresConnectionPool("test", () -> null, 1, 10));
+        try {
+            ApiaryConfig.readYourWrites = true;
+            ApiaryConfig.replicaMaxLagBytes = 1000;
+            ReadReplicaRouter.ReadReplica near = new ReadReplicaRouter.ReadReplica("near", new PGSimpleDataSource(),
+                    new PostgresConnectionPool("near", () -> null, 1, 10));
+            ReadReplicaRouter.ReadReplica far = new ReadReplicaRouter.ReadReplica("far", new PGSimpleDataSource(),
+                    new PostgresConnectionPool("far", () -> null, 1, 10));
+            router.addReplica(near);
+            router.addReplica(far);
+            long client1 = (1L << 48) + 5;
+            long client2 = (2L << 48) + 5;
+
+            // Replicas with unknown positions are not eligible, functions fall back to the primary.
+            assertNull(router.choose(client1));
+
+            // Only replicas lagging by at most replicaMaxLagBytes are eligible.
+            near.updatePosition(10000, 9500);
+            far.updatePosition(10000, 5000);
+            for (int i = 0; i < 20; i++) {
+                assertSame(near, router.choose(client1));
+            }
+
+            // A client only reads from replicas that replayed its last write, other clients are not affected.
+            router.recordCommitLsn(client1, 9800);
+            assertNull(router.choose(client1));
+            assertSame(near, router.choose(client2));
+            // Commit positions only move forward.
+            router.recordCommitLsn(client1, 9000);
+            assertNull(router.choose(client1));
+            near.updatePosition(10000, 9800);
+            assertSame(near, router.choose(client1));
+
+            // Among eligible replicas, the less lagging one is preferred.
+            far.updatePosition(10000, 9900);
+            int numFar = 0;
+            for (int i = 0; i < 100; i++) {
+                if (router.choose(client2) == far) {
+                    numFar++;
+                }
+            }
+            assertTrue(numFar > 50);
+        } finally {
+            router.close();
+            ApiaryConfig.readYourWrites = origReadYourWrites;
+            ApiaryConfig.replicaMaxLagBytes = origMaxLag;
+        }
+    }
+
+    @Test
+    public void testWalDecoding() {
+        logger.info("testWalDecoding");
+        // xids before the wraparound of the next transaction ID belong to the previous epoch.
+        long nextTxID = (3L << 32) | 100;
+        assertEquals((3L << 32) | 99, WalProvenanceCapture.toTxID(99, nextTxID));
+        assertEquals((2L << 32) | 0xFFFFFFF0L, WalProvenanceCapture.toTxID(0xFFFFFFF0L, nextTxID));
+        assertEquals(1234, WalProvenanceCapture.toTxID(1234, 2000));
+
+        assertEquals(42, WalProvenanceCapture.toObject("integer", "42", false));
+        assertEquals(1L << 40, WalProvenanceCapture.toObject("bigint", Long.toString(1L << 40), false));
+        assertEquals((short) -7, WalProvenanceCapture.toObject("smallint", "-7", false));
+        assertArrayEquals(new byte[]{0x01, (byte) 0xab}, (byte[]) WalProvenanceCapture.toObject("bytea", "\\x01ab", true));
+        assertNull(WalProvenanceCapture.toObject("integer", "null", false));
+        assertNull(WalProvenanceCapture.toObject("text", "unchanged-toast-datum", false));
+        assertEquals("null", WalProvenanceCapture.toObject("text", "null", true));
+
+        Map<String, Integer> schemaMap = new HashMap<>();
+        schemaMap.put("id", 0);
+        schemaMap.put("name", 1);
+        schemaMap.put("Score", 2);
+        schemaMap.put("note", 3);
+        Object[] rowData = new Object[4 + schemaMap.size()];
+        // Quotes are doubled inside strings, quoted names keep their case, unknown columns are skipped.
+        WalProvenanceCapture.parseTuple("id[integer]:5 name[text]:'it''s a b' \"Score\"[bigint]:10 extra[integer]:1 note[text]:null",
+                schemaMap, rowData);
+        assertArrayEquals(new Object[]{null, null, null, null, 5, "it's a b", 10L, null}, rowData);
+    }
+
+    private static class TestRunnable extends WorkerRunnable {
+        private final String name;
+        private final List<String> runOrder;
+
+        TestRunnable(int priorityClass, long priority, String name, List<String> runOrder) {
+            this.priorityClass = priorityClass;
+            this.priority = priority;
+            this.name = name;
+            this.runOrder = runOrder;
+        }
+
+        @Override
+        public void run() {
+            runOrder.add(name);
+        }
+    }
+
+    @Test
+    public void testReplyPriority() throws InterruptedException {
+        logger.info("testReplyPriority");
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new DispatcherPriorityQueue<>());
+        List<String> runOrder = Collections.synchronizedList(new ArrayList<>());
+        // Occupy the only thread, so the following tasks queue up.
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        pool.execute(() -> {
+            started.countDown();
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        pool.execute(new TestRunnable(WorkerRunnable.requestClass, 2, "request2", runOrder));
+        pool.execute(new TestRunnable(WorkerRunnable.replyClass, 0, "reply0", runOrder));
+        pool.execute(new TestRunnable(WorkerRunnable.requestClass, 1, "request1", runOrder));
+        pool.execute(new TestRunnable(WorkerRunnable.replyClass, 1, "reply1", runOrder));
+        blocked.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        // Replies overtake queued requests in arrival order, then requests run by scheduler priority.
+        assertEquals(List.of("reply0", "reply1", "request1", "request2"), runOrder);
+    }
+
+    @Test
+    public void testReadOnlyTxIDs() throws InterruptedException {
+        logger.info("testReadOnlyTxIDs");
+        // Two workers generating IDs at the same time never produce the same one.
+        ReadOnlyTxIDGenerator first = new ReadOnlyTxIDGenerator(1);
+        ReadOnlyTxIDGenerator second = new ReadOnlyTxIDGenerator(2);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        int numIDs = 100000;
+        Thread t1 = new Thread(() -> {
+            for (int i = 0; i < numIDs; i++) {
+                assertTrue(ids.add(first.next()));
+            }
+        });
+        Thread t2 = new Thread(() -> {
+            for (int i = 0; i < numIDs; i++) {
+                assertTrue(ids.add(second.next()));
+            }
+        });
+        t1.start();
+        t2.start();
+        t1.join();
+        t2.join();
+        assertEquals(2 * numIDs, ids.size());
+        for (long id : ids) {
+            assertTrue(id < 0);
+        }
+        // The worker ID is in the high bits, so the ranges of two workers are disjoint.
+        long firstStart = -new ReadOnlyTxIDGenerator(1).next();
+        long secondStart = -new ReadOnlyTxIDGenerator(2).next();
+        assertEquals(1L << ReadOnlyTxIDGenerator.counterBits, secondStart - firstStart);
+        // Worker IDs wrap around, the largest one still gives a negative ID.
+        assertTrue(new ReadOnlyTxIDGenerator((1L << ReadOnlyTxIDGenerator.workerIDBits) - 1).next() < 0);
+    }
 }